@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the throughput of {@link DatabaseRequestLogger} against an embedded Derby database in a temporary
+ * directory. Each operation logs the full life cycle of one request, i.e. its creation, work start and work end.
+ * <ul>
+ * <li><code>enqueue</code> measures the cost for the calling thread. With the default queue capacity and the
+ * <code>BLOCK</code> overflow policy, this converges to the drain rate once the queue is full.</li>
+ * <li><code>drain</code> enqueues a fixed number of requests and waits until the logger has written all of them, so it
+ * measures end-to-end write throughput.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DatabaseRequestLoggerBenchmark {
+
+	private static final int DRAIN_REQUESTS = 1000;
+
+	private static final String RESOURCE = "http://selenium-1.example.org:4444/wd/hub";
+
+	@Param({ "1", "100" })
+	public int batchSize;
+
+	@Param({ "20" })
+	public long lingerMillis;
+
+	@Param({ "" + DatabaseRequestLogger.DEFAULT_QUEUE_CAPACITY })
+	public int queueCapacity;
+
+	private EmbeddedRequestLog requestLog;
+
+	private DatabaseRequestLogger logger;
+
+	@Setup
+	public void setUp() throws Exception {
+		requestLog = new EmbeddedRequestLog(batchSize, lingerMillis, queueCapacity);
+		logger = requestLog.getLogger();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		requestLog.close();
+	}
+
+	@Benchmark
+	public long enqueue() {
+		return logRequest();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DRAIN_REQUESTS)
+	public void drain() throws InterruptedException {
+		for (int i = 0; i < DRAIN_REQUESTS; i++) {
+			logRequest();
+		}
+		requestLog.awaitWritten();
+	}
+
+	private long logRequest() {
+		long id = logger.allocateRequestId();
+		long now = System.currentTimeMillis();
+		logger.logRequestCreated(0, id, now, "benchmark", "local", "Nightly regression run");
+		logger.logWorkStarted(0, id, now, "selenium", RESOURCE);
+		logger.logWorkDone(0, id, now, "SUCCESS", 1);
+		return id;
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A request log database in a temporary directory, written by a {@link DatabaseRequestLogger} running in its own
+ * thread. The directory is deleted on {@link #close()}.
+ */
+public final class EmbeddedRequestLog implements AutoCloseable {
+
+	private File directory;
+
+	private LogDbAccess database;
+
+	private DatabaseRequestLogger logger;
+
+	private Thread loggerThread;
+
+	private long markerSequence;
+
+	/**
+	 * Creates the database and starts the request logger.
+	 *
+	 * @param batchSize
+	 *            Maximum number of commands to execute within one transaction.
+	 * @param lingerMillis
+	 *            Maximum time to wait for further commands of a batch.
+	 * @param queueCapacity
+	 *            Maximum number of commands to keep in memory. New commands block when the queue is full.
+	 *
+	 * @throws Exception
+	 *             If the database could not be created.
+	 */
+	public EmbeddedRequestLog(int batchSize, long lingerMillis, int queueCapacity) throws Exception {
+		directory = Files.createTempDirectory("acm-perf").toFile();
+		database = new LogDbAccess(directory, null);
+		logger = new DatabaseRequestLogger(database, batchSize, lingerMillis, queueCapacity, LogOverflowPolicy.BLOCK,
+				null);
+		loggerThread = new Thread(logger, "acm-perf-request-logger");
+		loggerThread.start();
+	}
+
+	public DatabaseRequestLogger getLogger() {
+		return logger;
+	}
+
+	/**
+	 * Waits until all commands enqueued before this call have been written to the database, or discarded because of
+	 * an error.
+	 *
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	public synchronized void awaitWritten() throws InterruptedException {
+		// commands are executed in order, so once a final command carrying a journal sequence number has been
+		// checkpointed, all previous commands have been processed. The marker does not match any log entry.
+		long sequence = ++markerSequence;
+		logger.logWorkStarted(sequence, -1, System.currentTimeMillis(), null, null);
+		while (logger.getCommittedJournalSequence() < sequence) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+	}
+
+	/**
+	 * Stops the request logger, shuts the database down and deletes its directory.
+	 *
+	 * @throws IOException
+	 *             If the directory could not be deleted.
+	 */
+	@Override
+	public void close() throws IOException {
+		loggerThread.interrupt();
+		try {
+			loggerThread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		database.shutdown();
+		FileUtils.deleteDirectory(directory);
+	}
+
+}
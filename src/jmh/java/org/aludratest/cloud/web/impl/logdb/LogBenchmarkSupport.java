@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Gives benchmarks in other packages access to package-private parts of the log database.
+ */
+public final class LogBenchmarkSupport {
+
+	private LogBenchmarkSupport() {
+	}
+
+	/**
+	 * Opens a new connection to the given database and executes the given query on it, like the reader connections
+	 * used for ad-hoc log queries. Closing the returned cursor also closes the connection.
+	 *
+	 * @param url
+	 *            JDBC URL of the database to query.
+	 * @param query
+	 *            SQL query to execute.
+	 *
+	 * @return A cursor over the results of the query.
+	 *
+	 * @throws SQLException
+	 *             If the connection could not be opened or the query could not be executed.
+	 */
+	public static LogQueryCursor openCursor(String url, String query) throws SQLException {
+		Connection connection = DriverManager.getConnection(url);
+		try {
+			Statement statement = connection.createStatement();
+			return new LogQueryCursor(connection, statement, statement.executeQuery(query));
+		}
+		catch (SQLException e) {
+			LogDbAccess.closeQuietly(connection);
+			throw e;
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the insert throughput, in rows per second, of SQL statements with concatenated values against cached
+ * prepared statements with bound values, on a {@link WriterConnection} to an embedded Derby database in a temporary
+ * directory. Both variants insert the same columns as the request logger's initial <code>acm_request</code> row and
+ * commit every {@value #ROWS} rows.
+ * <ul>
+ * <li><code>concatenated</code> builds a distinct SQL string per row, as the request logger did before, so Derby has
+ * to compile every statement.</li>
+ * <li><code>prepared</code> executes one cached prepared statement, which Derby compiles only once.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LogStatementBenchmark {
+
+	private static final int ROWS = 100;
+
+	private static final String PREPARED_SQL = "INSERT INTO bench_request (request_id, start_wait_time_utc, "
+			+ "user_name, user_source, job_name) VALUES (?, ?, ?, ?, ?)";
+
+	private File directory;
+
+	private LogDbAccess database;
+
+	private WriterConnection connection;
+
+	private DateFormat timestampFormat;
+
+	private long nextRequestId;
+
+	@Setup
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("acm-perf").toFile();
+		database = new LogDbAccess(directory, null);
+		database.createDatabase();
+		connection = database.openWriterConnection();
+		connection.executeStatement("CREATE TABLE bench_request (request_id BIGINT NOT NULL PRIMARY KEY, "
+				+ "start_wait_time_utc TIMESTAMP, user_name VARCHAR(50), user_source VARCHAR(100), "
+				+ "job_name VARCHAR(400))");
+		connection.commit();
+
+		timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		connection.close();
+		database.shutdown();
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void concatenated() throws SQLException {
+		for (int i = 0; i < ROWS; i++) {
+			long requestId = nextRequestId++;
+			connection.executeStatement("INSERT INTO bench_request (request_id, start_wait_time_utc, user_name, "
+					+ "user_source, job_name) VALUES (" + requestId + ", TIMESTAMP('"
+					+ timestampFormat.format(new Date()) + "'), 'benchmark', 'local', 'Nightly regression run "
+					+ requestId + "')");
+		}
+		connection.commit();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void prepared() throws SQLException {
+		for (int i = 0; i < ROWS; i++) {
+			long requestId = nextRequestId++;
+			connection.executeUpdate(PREPARED_SQL, requestId, new Timestamp(System.currentTimeMillis()), "benchmark",
+					"local", "Nightly regression run " + requestId);
+		}
+		connection.commit();
+	}
+
+}
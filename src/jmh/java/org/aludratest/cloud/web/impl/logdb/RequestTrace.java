@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Recorded resource requests, read from the <code>acm_request</code> table of a log database, or from a file in the
+ * JSON format of {@link RequestLogRows}. Requests are ordered by the time they started waiting.
+ */
+public final class RequestTrace {
+
+	private final List<Entry> entries;
+
+	private RequestTrace(List<Entry> entries) {
+		entries.sort(Comparator.comparing((Entry e) -> e.startWaitTime));
+		this.entries = Collections.unmodifiableList(entries);
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Reads the requests which started waiting in the given time range from the log database in the given directory.
+	 * The database must not be in use by a running Cloud Manager instance; use a copy, or an export file, instead.
+	 *
+	 * @param dbHome
+	 *            Directory of the log database, as configured by <code>acm.db.home</code>.
+	 * @param from
+	 *            Start of the time range, inclusive.
+	 * @param to
+	 *            End of the time range, exclusive.
+	 *
+	 * @return The requests read from the database.
+	 *
+	 * @throws Exception
+	 *             If the database could not be opened or read.
+	 */
+	public static RequestTrace fromDatabase(File dbHome, Instant from, Instant to) throws Exception {
+		LogDbAccess database = new LogDbAccess(dbHome, null);
+		try {
+			if (!database.isDatabaseExisting()) {
+				throw new IOException("No log database found in " + dbHome);
+			}
+
+			String sql = "SELECT " + RequestLogRows.COLUMNS + " FROM acm_request WHERE start_wait_time_utc >= ? "
+					+ "AND start_wait_time_utc < ?";
+			List<Entry> entries = new ArrayList<Entry>();
+			try (LogQueryCursor cursor = database.openQuery(sql, Timestamp.from(from), Timestamp.from(to))) {
+				while (cursor.next()) {
+					entries.add(new Entry(RequestLogRows.toJson(cursor.getResultSet())));
+				}
+			}
+			return new RequestTrace(entries);
+		}
+		catch (SQLException e) {
+			throw new IOException("Could not read requests from log database", e);
+		}
+		finally {
+			database.shutdown();
+		}
+	}
+
+	/**
+	 * Reads the requests which started waiting in the given time range from the given file. Files ending with
+	 * <code>.json</code> must contain a response of the <code>/api/logdb/requests</code> endpoint. All other files must
+	 * contain one request per line, like the files of the {@link LogArchive}, and may be GZIP compressed.
+	 *
+	 * @param file
+	 *            File to read.
+	 * @param from
+	 *            Start of the time range, inclusive, or <code>null</code> for no lower bound.
+	 * @param to
+	 *            End of the time range, exclusive, or <code>null</code> for no upper bound.
+	 *
+	 * @return The requests read from the file.
+	 *
+	 * @throws IOException
+	 *             If the file could not be read.
+	 */
+	public static RequestTrace fromFile(File file, Instant from, Instant to) throws IOException {
+		List<JSONObject> requests = new ArrayList<JSONObject>();
+		try (InputStream in = openFile(file)) {
+			if (file.getName().endsWith(".json")) {
+				JSONObject response = new JSONObject(IOUtils.toString(in, StandardCharsets.UTF_8));
+				if (response.has("result")) {
+					response = response.getJSONObject("result");
+				}
+				JSONArray array = response.getJSONArray("requests");
+				for (int i = 0; i < array.length(); i++) {
+					requests.add(array.getJSONObject(i));
+				}
+			}
+			else {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!line.trim().isEmpty()) {
+						requests.add(new JSONObject(line));
+					}
+				}
+			}
+		}
+
+		List<Entry> entries = new ArrayList<Entry>();
+		for (JSONObject request : requests) {
+			Entry entry = new Entry(request);
+			if ((from == null || !entry.startWaitTime.isBefore(from))
+					&& (to == null || entry.startWaitTime.isBefore(to))) {
+				entries.add(entry);
+			}
+		}
+		return new RequestTrace(entries);
+	}
+
+	private static InputStream openFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (file.getName().endsWith(".gz")) {
+			try {
+				return new GZIPInputStream(in);
+			}
+			catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+		return in;
+	}
+
+	/**
+	 * A recorded resource request.
+	 */
+	public static final class Entry {
+
+		private final Instant startWaitTime;
+
+		private final Instant startWorkTime;
+
+		private final Instant endWorkTime;
+
+		private final String userName;
+
+		private final String userSource;
+
+		private final String jobName;
+
+		private final String resourceType;
+
+		private Entry(JSONObject request) {
+			startWaitTime = Instant.parse(request.getString("startWaitTime"));
+			startWorkTime = parseInstant(request, "startWorkTime");
+			endWorkTime = parseInstant(request, "endWorkTime");
+			userName = request.optString("userName", null);
+			userSource = request.optString("userSource", null);
+			jobName = request.optString("jobName", null);
+			resourceType = request.optString("resourceType", null);
+		}
+
+		public Instant getStartWaitTime() {
+			return startWaitTime;
+		}
+
+		public Instant getStartWorkTime() {
+			return startWorkTime;
+		}
+
+		public Instant getEndWorkTime() {
+			return endWorkTime;
+		}
+
+		public String getUserName() {
+			return userName;
+		}
+
+		public String getUserSource() {
+			return userSource;
+		}
+
+		public String getJobName() {
+			return jobName;
+		}
+
+		public String getResourceType() {
+			return resourceType;
+		}
+
+		/**
+		 * Returns <code>true</code> if a resource has been assigned to this request and released again, i.e. if its
+		 * wait and work durations are known.
+		 *
+		 * @return <code>true</code> if this request has been completed, <code>false</code> otherwise.
+		 */
+		public boolean isCompleted() {
+			return resourceType != null && startWorkTime != null && endWorkTime != null;
+		}
+
+		/**
+		 * Returns the time this request waited for a resource. Only available for completed requests.
+		 *
+		 * @return The time this request waited for a resource.
+		 */
+		public Duration getWaitDuration() {
+			return Duration.between(startWaitTime, startWorkTime);
+		}
+
+		/**
+		 * Returns the time this request used its resource. Only available for completed requests.
+		 *
+		 * @return The time this request used its resource.
+		 */
+		public Duration getWorkDuration() {
+			return Duration.between(startWorkTime, endWorkTime);
+		}
+
+		private static Instant parseInstant(JSONObject request, String key) {
+			return request.has(key) ? Instant.parse(request.getString(key)) : null;
+		}
+
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Helpers for setting up benchmarks and load tests without a Spring context. Collaborators are replaced by dynamic
+ * proxies which return fixed values per method name, and injected fields are set via reflection.
+ */
+final class BenchmarkStubs {
+
+	private BenchmarkStubs() {
+	}
+
+	/**
+	 * Computes the result of a stubbed method call from its arguments.
+	 */
+	@FunctionalInterface
+	interface Answer {
+
+		Object answer(Object[] args);
+
+	}
+
+	/**
+	 * Creates a proxy implementing the given interface. Methods not listed return <code>null</code>, or the default
+	 * value of a primitive return type.
+	 *
+	 * @param type
+	 *            Interface to implement.
+	 * @param methodResults
+	 *            Pairs of method name and value to return from that method. If the value is an {@link Answer}, it is
+	 *            invoked for every call instead.
+	 *
+	 * @return The created proxy.
+	 */
+	static <T> T stub(Class<T> type, Object... methodResults) {
+		return type.cast(stub(new Class<?>[] { type }, methodResults));
+	}
+
+	/**
+	 * Creates a proxy implementing all of the given interfaces, see {@link #stub(Class, Object...)}.
+	 *
+	 * @param types
+	 *            Interfaces to implement.
+	 * @param methodResults
+	 *            Pairs of method name and value to return from that method, or {@link Answer} to invoke.
+	 *
+	 * @return The created proxy.
+	 */
+	static Object stub(Class<?>[] types, Object... methodResults) {
+		Map<String, Object> results = new HashMap<String, Object>();
+		for (int i = 0; i < methodResults.length; i += 2) {
+			results.put((String) methodResults[i], methodResults[i + 1]);
+		}
+
+		return Proxy.newProxyInstance(types[0].getClassLoader(), types, (p, method, args) -> {
+			Object result = results.get(method.getName());
+			if (result instanceof Answer) {
+				return ((Answer) result).answer(args);
+			}
+			if (result != null || results.containsKey(method.getName())) {
+				return result;
+			}
+			switch (method.getName()) {
+				case "toString":
+					return types[0].getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(p));
+				case "hashCode":
+					return System.identityHashCode(p);
+				case "equals":
+					return p == args[0];
+				default:
+					return defaultValue(method);
+			}
+		});
+	}
+
+	static void setField(Object target, String fieldName, Object value) throws ReflectiveOperationException {
+		getDeclaredField(target, fieldName).set(target, value);
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T getField(Object target, String fieldName) throws ReflectiveOperationException {
+		return (T) getDeclaredField(target, fieldName).get(target);
+	}
+
+	static void invoke(Object target, String methodName) throws ReflectiveOperationException {
+		Method method = target.getClass().getDeclaredMethod(methodName);
+		method.setAccessible(true);
+		method.invoke(target);
+	}
+
+	private static Field getDeclaredField(Object target, String fieldName) throws NoSuchFieldException {
+		Field field = target.getClass().getDeclaredField(fieldName);
+		field.setAccessible(true);
+		return field;
+	}
+
+	private static Object defaultValue(Method method) {
+		Class<?> returnType = method.getReturnType();
+		if (!returnType.isPrimitive() || returnType == void.class) {
+			return null;
+		}
+		return Array.get(Array.newInstance(returnType, 1), 0);
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import static org.aludratest.cloud.web.impl.rest.BenchmarkStubs.getField;
+import static org.aludratest.cloud.web.impl.rest.BenchmarkStubs.invoke;
+import static org.aludratest.cloud.web.impl.rest.BenchmarkStubs.setField;
+import static org.aludratest.cloud.web.impl.rest.BenchmarkStubs.stub;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.aludratest.cloud.impl.request.ClientRequestImpl;
+import org.aludratest.cloud.manager.ManagedResourceRequest;
+import org.aludratest.cloud.module.ResourceModuleRegistry;
+import org.aludratest.cloud.resource.Resource;
+import org.aludratest.cloud.resource.ResourceType;
+import org.aludratest.cloud.resource.writer.JSONResourceWriter;
+import org.aludratest.cloud.resource.writer.ResourceWriterFactory;
+import org.aludratest.cloud.user.User;
+import org.aludratest.cloud.web.impl.metrics.MetricsRegistry;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the per-poll hot paths of {@link ClientRequestHandlerImpl}: looking up a request by its ID, generating a
+ * new unique request ID, and building the JSON response for a request which has been assigned a resource. All are
+ * measured with a varying number of requests in flight.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("deprecation")
+public class ClientRequestHandlerBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int inFlightRequests;
+
+	private ClientRequestHandlerImpl handler;
+
+	private String[] requestIds;
+
+	private int nextRequestIndex;
+
+	private ManagedResourceRequest assignedRequest;
+
+	private String assignedRequestId;
+
+	@Setup
+	public void setUp() throws ReflectiveOperationException {
+		handler = new ClientRequestHandlerImpl();
+		setField(handler, "metricsRegistry", new MetricsRegistry());
+		invoke(handler, "registerMetrics");
+
+		ResourceType resourceType = stub(ResourceType.class, "getName", "selenium");
+		JSONObject resourceJson = new JSONObject();
+		resourceJson.put("url", "http://localhost:4444/wd/hub");
+		resourceJson.put("state", "IN_USE");
+		JSONResourceWriter writer = stub(JSONResourceWriter.class, "writeToJSON", resourceJson);
+		ResourceWriterFactory writerFactory = stub(ResourceWriterFactory.class, "getResourceWriter", writer);
+		setField(handler, "resourceModuleRegistry",
+				stub(ResourceModuleRegistry.class, "getResourceWriterFactory", writerFactory));
+
+		User user = stub(User.class, "getName", "benchmark", "getSource", "local");
+		Map<String, ManagedResourceRequest> requestsById = getField(handler, "requestsById");
+		requestIds = new String[inFlightRequests];
+		for (int i = 0; i < inFlightRequests; i++) {
+			String requestId = handler.generateUniqueRequestKey();
+			requestsById.put(requestId, createRequest(requestId, user, resourceType, null));
+			requestIds[i] = requestId;
+		}
+
+		assignedRequestId = requestIds[0];
+		assignedRequest = createRequest(assignedRequestId, user, resourceType,
+				stub(Resource.class, "getResourceType", resourceType));
+	}
+
+	@TearDown
+	public void tearDown() {
+		handler.shutdown();
+	}
+
+	@Benchmark
+	public Optional<? extends ManagedResourceRequest> getRequest() {
+		int index = nextRequestIndex;
+		nextRequestIndex = index + 1 == requestIds.length ? 0 : index + 1;
+		return handler.getRequest(requestIds[index]);
+	}
+
+	@Benchmark
+	public Optional<? extends ManagedResourceRequest> getUnknownRequest() {
+		return handler.getRequest("unknown-request");
+	}
+
+	@Benchmark
+	public String generateUniqueRequestKey() {
+		return handler.generateUniqueRequestKey();
+	}
+
+	@Benchmark
+	public JSONObject createCompletedObject() {
+		return handler.createCompletedObject(assignedRequest, assignedRequestId);
+	}
+
+	private static ManagedResourceRequest createRequest(String requestId, User user, ResourceType resourceType,
+			Resource resource) {
+		ClientRequestImpl request = new ClientRequestImpl(requestId, user, resourceType, 0, "benchmark",
+				Collections.<String, String> emptyMap());
+		CompletableFuture<Resource> future = resource == null ? new CompletableFuture<Resource>()
+				: CompletableFuture.completedFuture(resource);
+		return stub(ManagedResourceRequest.class, "getRequest", request, "getResourceFuture", future, "getState",
+				resource == null ? ManagedResourceRequest.State.WAITING : ManagedResourceRequest.State.WORKING);
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import static org.aludratest.cloud.web.impl.rest.BenchmarkStubs.invoke;
+import static org.aludratest.cloud.web.impl.rest.BenchmarkStubs.setField;
+import static org.aludratest.cloud.web.impl.rest.BenchmarkStubs.stub;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletRegistration;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.aludratest.cloud.user.User;
+import org.aludratest.cloud.web.impl.threads.VirtualThreadConfiguration;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.springframework.boot.context.embedded.EmbeddedServletContainer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * An embedded Tomcat on a random local port, serving the resource request endpoints of {@link RequestController}
+ * (<code>POST /resource</code> and <code>DELETE /resource/{requestId}</code>) for a {@link ClientRequestHandlerImpl}.
+ * The servlet answers polls asynchronously and maps results like the controller, but skips Spring MVC and
+ * authentication; the user name is taken from the {@value #CLIENT_HEADER} header. <br>
+ * With virtual threads enabled, the container is customized by {@link VirtualThreadConfiguration}, exactly as with
+ * <code>acm.threads.virtual=true</code> in the application.
+ */
+@SuppressWarnings("deprecation")
+final class HarnessServer implements AutoCloseable {
+
+	/**
+	 * Request header containing the name of the simulated user.
+	 */
+	static final String CLIENT_HEADER = "X-Load-Client";
+
+	private VirtualThreadConfiguration threadConfiguration;
+
+	private EmbeddedServletContainer container;
+
+	/**
+	 * Starts the server.
+	 *
+	 * @param handler
+	 *            Request handler to pass requests to.
+	 * @param virtualThreads
+	 *            If <code>true</code>, Tomcat processes requests on virtual threads.
+	 *
+	 * @throws ReflectiveOperationException
+	 *             If the thread configuration could not be initialized.
+	 */
+	HarnessServer(ClientRequestHandlerImpl handler, boolean virtualThreads) throws ReflectiveOperationException {
+		TomcatEmbeddedServletContainerFactory factory = new TomcatEmbeddedServletContainerFactory(0);
+		threadConfiguration = new VirtualThreadConfiguration();
+		setField(threadConfiguration, "virtualThreads", virtualThreads);
+		invoke(threadConfiguration, "createExecutors");
+		threadConfiguration.customize(factory);
+
+		container = factory.getEmbeddedServletContainer((servletContext) -> {
+			ServletRegistration.Dynamic registration = servletContext.addServlet("resource",
+					new ResourceServlet(handler));
+			registration.setAsyncSupported(true);
+			registration.addMapping("/resource/*");
+		});
+		container.start();
+	}
+
+	/**
+	 * Returns the base URL of the server, without a trailing slash.
+	 *
+	 * @return The base URL of the server.
+	 */
+	String getBaseUrl() {
+		return "http://127.0.0.1:" + container.getPort();
+	}
+
+	@Override
+	public void close() {
+		container.stop();
+		threadConfiguration.shutdown();
+	}
+
+	private static final class ResourceServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient ClientRequestHandlerImpl handler;
+
+		private final transient Map<String, User> users = new ConcurrentHashMap<String, User>();
+
+		private ResourceServlet(ClientRequestHandlerImpl handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			JSONObject requestObject;
+			try {
+				requestObject = new JSONObject(new JSONTokener(request.getReader()));
+			}
+			catch (JSONException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+				return;
+			}
+			String clientName = String.valueOf(request.getHeader(CLIENT_HEADER));
+			User user = users.computeIfAbsent(clientName,
+					(name) -> stub(User.class, "getName", name, "getSource", "loadtest"));
+
+			// like Spring MVC for a returned future, release the container thread until the result is available
+			AsyncContext asyncContext = request.startAsync();
+			asyncContext.setTimeout(0);
+			handler.handleResourceRequest(user, requestObject).handle((resultObject, t) -> {
+				if (t != null) {
+					Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+					resultObject = handler.createErrorObject(cause);
+				}
+				writeResponse((HttpServletResponse) asyncContext.getResponse(),
+						ClientRequestHandlerImpl.toResponseEntity(resultObject));
+				asyncContext.complete();
+				return null;
+			});
+		}
+
+		@Override
+		protected void doDelete(HttpServletRequest request, HttpServletResponse response) {
+			String pathInfo = request.getPathInfo();
+			String requestId = pathInfo == null ? "" : pathInfo.substring(1);
+			response.setStatus(handler.handleReleaseRequest(requestId) ? HttpServletResponse.SC_NO_CONTENT
+					: HttpServletResponse.SC_NOT_FOUND);
+		}
+
+		private static void writeResponse(HttpServletResponse response, ResponseEntity<String> entity) {
+			response.setStatus(entity.getStatusCodeValue());
+			for (Map.Entry<String, List<String>> header : entity.getHeaders().entrySet()) {
+				for (String value : header.getValue()) {
+					response.addHeader(header.getKey(), value);
+				}
+			}
+			response.setContentType("application/json;charset=UTF-8");
+			try {
+				response.getWriter().write(entity.getBody());
+			}
+			catch (IOException e) {
+				// client has gone away
+			}
+		}
+
+	}
+
+}
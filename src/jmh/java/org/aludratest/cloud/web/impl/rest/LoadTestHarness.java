@@ -0,0 +1,521 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import static org.aludratest.cloud.web.impl.rest.BenchmarkStubs.invoke;
+import static org.aludratest.cloud.web.impl.rest.BenchmarkStubs.setField;
+import static org.aludratest.cloud.web.impl.rest.BenchmarkStubs.stub;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.aludratest.cloud.user.User;
+import org.aludratest.cloud.web.impl.admission.AdmissionControl;
+import org.aludratest.cloud.web.impl.logdb.DatabaseRequestLogger;
+import org.aludratest.cloud.web.impl.logdb.EmbeddedRequestLog;
+import org.aludratest.cloud.web.impl.metrics.Histogram;
+import org.aludratest.cloud.web.impl.metrics.MetricsRegistry;
+import org.aludratest.cloud.web.impl.threads.VirtualThreads;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * In-process load test of the resource request flow. <code>M</code> simulated clients repeatedly submit a request to
+ * {@link ClientRequestHandlerImpl}, poll until a resource has been assigned, hold it for a random time and release
+ * it. Resources are provided by a {@link SimulatedResourceManager} with <code>N</code> fake resources, and request
+ * life cycles are written to an embedded log database, so no Selenium grid or network is needed. <br>
+ * Afterwards, the client-side wait latency percentiles, the throughput in requests per second and the lag of the log
+ * database are reported as JSON. With <code>--virtual-threads</code>, each simulated client runs on a virtual thread,
+ * and the peak number of platform threads and the peak heap usage can be compared against a run with platform
+ * threads. <br>
+ * By default, the clients call the handler directly, without a servlet container. With <code>--server-modes</code>,
+ * they send their requests via HTTP to an in-process Tomcat instead (see {@link HarnessServer}). The load is then run
+ * twice, once with Tomcat on platform threads and once with the server side virtual thread mode of
+ * {@link org.aludratest.cloud.web.impl.threads.VirtualThreadConfiguration}, and both runs are reported.
+ */
+@SuppressWarnings("deprecation")
+public final class LoadTestHarness {
+
+	private final int resourceCount;
+
+	private final int clientCount;
+
+	private final long holdMinMillis;
+
+	private final long holdMaxMillis;
+
+	private final long thinkMillis;
+
+	private final long warmupSeconds;
+
+	private final long durationSeconds;
+
+	private final int logBatchSize;
+
+	private final long logLingerMillis;
+
+	private final boolean admissionControl;
+
+	private final boolean virtualThreads;
+
+	private final String serverThreadMode;
+
+	private ClientRequestHandlerImpl handler;
+
+	private String serverUrl;
+
+	private long measureStartNanos;
+
+	private long endNanos;
+
+	private final Histogram waitMicros = new Histogram();
+
+	private final Histogram logLagMicros = new Histogram();
+
+	private final LongAdder completedRequests = new LongAdder();
+
+	private final LongAdder polls = new LongAdder();
+
+	private final LongAdder throttledSubmissions = new LongAdder();
+
+	private final LongAdder errors = new LongAdder();
+
+	private long maxHeapUsed;
+
+	private LoadTestHarness(CommandLine cmd, String serverThreadMode) {
+		resourceCount = intOption(cmd, "resources", 10);
+		clientCount = intOption(cmd, "clients", 50);
+		holdMinMillis = intOption(cmd, "hold-min", 100);
+		holdMaxMillis = Math.max(holdMinMillis, intOption(cmd, "hold-max", 500));
+		thinkMillis = intOption(cmd, "think", 0);
+		warmupSeconds = intOption(cmd, "warmup", 10);
+		durationSeconds = Math.max(1, intOption(cmd, "duration", 60));
+		logBatchSize = intOption(cmd, "log-batch-size", 100);
+		logLingerMillis = intOption(cmd, "log-linger", 20);
+		admissionControl = cmd.hasOption("admission");
+		virtualThreads = cmd.hasOption("virtual-threads");
+		this.serverThreadMode = serverThreadMode;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption(numberOption("r", "resources", "Number of simulated resources (default 10)"));
+		options.addOption(numberOption("c", "clients", "Number of concurrent simulated clients (default 50)"));
+		options.addOption(numberOption(null, "hold-min", "Minimum resource hold time, in ms (default 100)"));
+		options.addOption(numberOption(null, "hold-max", "Maximum resource hold time, in ms (default 500)"));
+		options.addOption(numberOption(null, "think", "Time between two requests of a client, in ms (default 0)"));
+		options.addOption(numberOption("w", "warmup", "Warmup time not included in results, in s (default 10)"));
+		options.addOption(numberOption("d", "duration", "Measured time, in s (default 60)"));
+		options.addOption(numberOption(null, "log-batch-size", "Log database batch size (default 100)"));
+		options.addOption(numberOption(null, "log-linger", "Log database batch linger time, in ms (default 20)"));
+		options.addOption(Option.builder().longOpt("admission")
+				.desc("Enable admission control with the application defaults").build());
+		options.addOption(Option.builder().longOpt("virtual-threads")
+				.desc("Run the simulated clients on virtual threads (requires Java 21)").build());
+		options.addOption(Option.builder().longOpt("server-modes")
+				.desc("Send requests via HTTP to an in-process Tomcat, and run once with platform and once with "
+						+ "virtual request threads (acm.threads.virtual, requires Java 21)").build());
+		options.addOption(Option.builder("o").longOpt("output").hasArg().argName("file")
+				.desc("File to write the JSON report to, in addition to stdout").build());
+		options.addOption(Option.builder("h").longOpt("help").desc("Print this help").build());
+
+		CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		}
+		catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp(LoadTestHarness.class.getName(), options);
+			System.exit(1);
+			return;
+		}
+		if (cmd.hasOption("help")) {
+			new HelpFormatter().printHelp(LoadTestHarness.class.getName(), options);
+			return;
+		}
+		if ((cmd.hasOption("virtual-threads") || cmd.hasOption("server-modes")) && !VirtualThreads.isSupported()) {
+			System.err.println("Virtual threads are not supported by this Java runtime");
+			System.exit(1);
+			return;
+		}
+
+		JSONObject result;
+		if (cmd.hasOption("server-modes")) {
+			// keep the connections of all clients alive between their requests
+			System.setProperty("http.maxConnections", Integer.toString(intOption(cmd, "clients", 50)));
+			result = new JSONObject();
+			result.put("platform", new LoadTestHarness(cmd, "platform").run());
+			result.put("virtual", new LoadTestHarness(cmd, "virtual").run());
+		}
+		else {
+			result = new LoadTestHarness(cmd, null).run();
+		}
+
+		String report = result.toString(2);
+		System.out.println(report);
+		if (cmd.hasOption("output")) {
+			Files.write(new File(cmd.getOptionValue("output")).toPath(), report.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private JSONObject run() throws Exception {
+		try (EmbeddedRequestLog requestLog = new EmbeddedRequestLog(logBatchSize, logLingerMillis,
+				DatabaseRequestLogger.DEFAULT_QUEUE_CAPACITY)) {
+			handler = createRequestHandler(new SimulatedResourceManager(resourceCount, requestLog.getLogger()),
+					admissionControl);
+			HarnessServer server = null;
+			if (serverThreadMode != null) {
+				server = new HarnessServer(handler, "virtual".equals(serverThreadMode));
+				serverUrl = server.getBaseUrl();
+			}
+
+			long startNanos = System.nanoTime();
+			measureStartNanos = startNanos + TimeUnit.SECONDS.toNanos(warmupSeconds);
+			endNanos = measureStartNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+			ThreadFactory clientFactory = virtualThreads ? VirtualThreads.newThreadFactory("acm-load-client-")
+					: Thread::new;
+			List<Thread> clients = new ArrayList<Thread>();
+			for (int i = 0; i < clientCount; i++) {
+				final int index = i;
+				Thread client = clientFactory.newThread(() -> runClient(index));
+				client.setName("acm-load-client-" + i);
+				client.start();
+				clients.add(client);
+			}
+
+			// measure how long a log entry written now takes to reach the database, and sample heap usage
+			ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+			MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+			threadBean.resetPeakThreadCount();
+			while (System.nanoTime() < endNanos) {
+				long sampleStart = System.nanoTime();
+				requestLog.awaitWritten();
+				if (sampleStart >= measureStartNanos) {
+					logLagMicros.record((System.nanoTime() - sampleStart) / 1000);
+				}
+				maxHeapUsed = Math.max(maxHeapUsed, memoryBean.getHeapMemoryUsage().getUsed());
+				Thread.sleep(Math.max(0, 1000 - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sampleStart)));
+			}
+
+			for (Thread client : clients) {
+				client.join();
+			}
+			long drainStart = System.nanoTime();
+			requestLog.awaitWritten();
+			long drainMicros = (System.nanoTime() - drainStart) / 1000;
+
+			if (server != null) {
+				server.close();
+			}
+			handler.shutdown();
+			return createReport(requestLog.getLogger(), drainMicros, threadBean.getPeakThreadCount());
+		}
+	}
+
+	/**
+	 * Creates a request handler which uses the given simulated resource manager, without a Spring context.
+	 *
+	 * @param manager
+	 *            Simulated resource manager to submit requests to.
+	 * @param admissionControl
+	 *            If <code>true</code>, submissions are throttled using the default limits of the application.
+	 *
+	 * @return The created request handler.
+	 *
+	 * @throws ReflectiveOperationException
+	 *             If the dependencies of the handler could not be injected.
+	 */
+	static ClientRequestHandlerImpl createRequestHandler(SimulatedResourceManager manager, boolean admissionControl)
+			throws ReflectiveOperationException {
+		MetricsRegistry metricsRegistry = new MetricsRegistry();
+
+		// without Spring, all limits are 0, i.e. admission control is disabled
+		AdmissionControl admission = new AdmissionControl();
+		setField(admission, "metricsRegistry", metricsRegistry);
+		if (admissionControl) {
+			setField(admission, "userPermitsPerSecond", 10.0);
+			setField(admission, "userBurst", 20);
+			setField(admission, "resourceTypePermitsPerSecond", 100.0);
+			setField(admission, "resourceTypeBurst", 200);
+		}
+		invoke(admission, "registerMetrics");
+
+		ClientRequestHandlerImpl requestHandler = new ClientRequestHandlerImpl();
+		manager.setTerminationListener(requestHandler::unregisterRequest);
+		setField(requestHandler, "manager", manager.asResourceManager());
+		setField(requestHandler, "resourceModuleRegistry", manager.asResourceModuleRegistry());
+		setField(requestHandler, "admissionControl", admission);
+		setField(requestHandler, "metricsRegistry", metricsRegistry);
+		invoke(requestHandler, "registerMetrics");
+		return requestHandler;
+	}
+
+	private void runClient(int index) {
+		User user = stub(User.class, "getName", "client-" + index, "getSource", "loadtest");
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		try {
+			while (System.nanoTime() < endNanos) {
+				long startTime = System.nanoTime();
+				JSONObject request = new JSONObject();
+				request.put("resourceType", SimulatedResourceManager.RESOURCE_TYPE);
+				request.put("jobName", "Load test client " + index);
+				JSONObject response;
+				try {
+					response = serverUrl == null ? submitAndWait(handler, user, request, polls)
+							: submitAndWait(serverUrl, user.getName(), request, polls);
+				}
+				catch (IOException e) {
+					errors.increment();
+					continue;
+				}
+
+				if (response.has("retryAfterMs")) {
+					throttledSubmissions.increment();
+					Thread.sleep(response.getLong("retryAfterMs"));
+					continue;
+				}
+				if (!response.has("resource")) {
+					errors.increment();
+					continue;
+				}
+
+				boolean measured = startTime >= measureStartNanos;
+				if (measured) {
+					waitMicros.record((System.nanoTime() - startTime) / 1000);
+				}
+
+				Thread.sleep(random.nextLong(holdMinMillis, holdMaxMillis + 1));
+				if (!release(response.getString("requestId"))) {
+					errors.increment();
+				}
+				if (measured && System.nanoTime() <= endNanos) {
+					completedRequests.increment();
+				}
+
+				if (thinkMillis > 0) {
+					Thread.sleep(thinkMillis);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Submits the given resource request and polls for it until it is no longer waiting for a resource, like a client
+	 * of the Cloud Manager does.
+	 *
+	 * @param handler
+	 *            Request handler to submit the request to.
+	 * @param user
+	 *            User submitting the request.
+	 * @param request
+	 *            Request object to submit.
+	 * @param polls
+	 *            Counter to increment for each poll.
+	 *
+	 * @return The final response, describing the assigned resource or an error.
+	 */
+	static JSONObject submitAndWait(ClientRequestHandlerImpl handler, User user, JSONObject request,
+			LongAdder polls) {
+		JSONObject response = handler.handleResourceRequest(user, request).join();
+		while (response.optBoolean("waiting")) {
+			polls.increment();
+			JSONObject poll = new JSONObject();
+			poll.put("requestId", response.getString("requestId"));
+			response = handler.handleResourceRequest(user, poll).join();
+		}
+		return response;
+	}
+
+	/**
+	 * Submits the given resource request via HTTP and polls for it until it is no longer waiting for a resource.
+	 *
+	 * @param serverUrl
+	 *            Base URL of the {@link HarnessServer} to send the requests to.
+	 * @param clientName
+	 *            Name of the user submitting the request.
+	 * @param request
+	 *            Request object to submit.
+	 * @param polls
+	 *            Counter to increment for each poll.
+	 *
+	 * @return The final response, describing the assigned resource or an error.
+	 *
+	 * @throws IOException
+	 *             If the server could not be reached, or did not return a JSON object.
+	 */
+	static JSONObject submitAndWait(String serverUrl, String clientName, JSONObject request, LongAdder polls)
+			throws IOException {
+		JSONObject response = post(serverUrl, clientName, request);
+		while (response.optBoolean("waiting")) {
+			polls.increment();
+			JSONObject poll = new JSONObject();
+			poll.put("requestId", response.getString("requestId"));
+			response = post(serverUrl, clientName, poll);
+		}
+		return response;
+	}
+
+	private static JSONObject post(String serverUrl, String clientName, JSONObject request) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl + "/resource").openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setRequestProperty(HarnessServer.CLIENT_HEADER, clientName);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		// throttled submissions are answered with 429, but still carry a JSON object
+		InputStream in = connection.getResponseCode() >= 400 ? connection.getErrorStream()
+				: connection.getInputStream();
+		if (in == null) {
+			throw new IOException("HTTP " + connection.getResponseCode() + " without response body");
+		}
+		try {
+			return new JSONObject(IOUtils.toString(in, StandardCharsets.UTF_8));
+		}
+		catch (JSONException e) {
+			throw new IOException("Invalid JSON response", e);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private boolean release(String requestId) {
+		if (serverUrl == null) {
+			return handler.handleReleaseRequest(requestId);
+		}
+		try {
+			return release(serverUrl, requestId);
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static boolean release(String serverUrl, String requestId) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl + "/resource/" + requestId)
+				.openConnection();
+		connection.setRequestMethod("DELETE");
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (in != null) {
+			in.close();
+		}
+		return status == 204;
+	}
+
+	private JSONObject createReport(DatabaseRequestLogger requestLogger, long drainMicros, int peakPlatformThreads) {
+		JSONObject config = new JSONObject();
+		config.put("resources", resourceCount);
+		config.put("clients", clientCount);
+		config.put("holdMinMillis", holdMinMillis);
+		config.put("holdMaxMillis", holdMaxMillis);
+		config.put("thinkMillis", thinkMillis);
+		config.put("warmupSeconds", warmupSeconds);
+		config.put("durationSeconds", durationSeconds);
+		config.put("logBatchSize", logBatchSize);
+		config.put("logLingerMillis", logLingerMillis);
+		config.put("admissionControl", admissionControl);
+		config.put("clientThreadMode", virtualThreads ? "virtual" : "platform");
+		// without a server, the handler is called directly, so no server side thread mode applies
+		config.put("serverThreadMode", serverThreadMode == null ? "none" : serverThreadMode);
+
+		JSONObject jvm = new JSONObject();
+		// ThreadMXBean only counts platform threads, i.e. carrier threads in virtual thread mode
+		jvm.put("peakPlatformThreads", peakPlatformThreads);
+		jvm.put("maxHeapUsedMb", maxHeapUsed / (1024.0 * 1024));
+
+		JSONObject logDb = new JSONObject();
+		logDb.put("lagMillis", toMillisJson(logLagMicros));
+		logDb.put("drainMillis", drainMicros / 1000.0);
+		logDb.put("queueHighWaterMark", requestLogger.getQueueHighWaterMark());
+		logDb.put("droppedCommands", requestLogger.getDroppedCommands());
+
+		JSONObject result = new JSONObject();
+		result.put("configuration", config);
+		result.put("completedRequests", completedRequests.sum());
+		result.put("requestsPerSecond", (double) completedRequests.sum() / durationSeconds);
+		result.put("waitMillis", toMillisJson(waitMicros));
+		result.put("polls", polls.sum());
+		result.put("throttledSubmissions", throttledSubmissions.sum());
+		result.put("errors", errors.sum());
+		result.put("logDb", logDb);
+		result.put("jvm", jvm);
+		return result;
+	}
+
+	/**
+	 * Converts the given histogram of microsecond values to a JSON object with count, mean and percentiles in
+	 * milliseconds.
+	 */
+	static JSONObject toMillisJson(Histogram histogram) {
+		JSONObject result = new JSONObject();
+		result.put("count", histogram.getCount());
+		result.put("mean", histogram.getMean() / 1000);
+		result.put("p50", histogram.getValueAtPercentile(50) / 1000.0);
+		result.put("p95", histogram.getValueAtPercentile(95) / 1000.0);
+		result.put("p99", histogram.getValueAtPercentile(99) / 1000.0);
+		result.put("max", histogram.getMax() / 1000.0);
+		return result;
+	}
+
+	private static Option numberOption(String shortName, String longName, String description) {
+		return Option.builder(shortName).longOpt(longName).hasArg().argName("n").desc(description).build();
+	}
+
+	private static int intOption(CommandLine cmd, String name, int defaultValue) {
+		String value = cmd.getOptionValue(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+
+import org.aludratest.cloud.web.impl.logdb.LogBenchmarkSupport;
+import org.aludratest.cloud.web.impl.logdb.LogQueryCursor;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the conversion of large log query results to JSON by {@link LogController}, both into an in-memory JSON
+ * object and streamed. The rows are read from an in-memory Derby table shaped like the request log, so each
+ * invocation includes executing the query and fetching its rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogControllerBenchmark {
+
+	private static final String DB_URL = "jdbc:derby:memory:acm-jmh";
+
+	private static final String QUERY = "SELECT * FROM acm_request ORDER BY request_id";
+
+	@Param({ "1000", "10000", "100000" })
+	public int rows;
+
+	private LogController controller;
+
+	@Setup
+	public void setUp() throws SQLException {
+		controller = new LogController();
+
+		try (Connection connection = DriverManager.getConnection(DB_URL + ";create=true")) {
+			connection.setAutoCommit(false);
+			try (Statement statement = connection.createStatement()) {
+				// @formatter:off
+				statement.executeUpdate("CREATE TABLE acm_request (request_id BIGINT NOT NULL PRIMARY KEY, "
+						+ "start_wait_time_utc TIMESTAMP, "
+						+ "start_work_time_utc TIMESTAMP, "
+						+ "end_work_time_utc TIMESTAMP, "
+						+ "user_name VARCHAR(50), "
+						+ "user_source VARCHAR(100), "
+						+ "job_name VARCHAR(400), "
+						+ "received_resource VARCHAR(400), "
+						+ "resource_type VARCHAR(40), "
+						+ "end_work_status VARCHAR(20), "
+						+ "cnt_active_res_after_work INTEGER)");
+				// @formatter:on
+			}
+
+			String sql = "INSERT INTO acm_request VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+			try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+				long baseTime = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+				for (int i = 0; i < rows; i++) {
+					long waitTime = baseTime + i * 100l;
+					stmt.setLong(1, i + 1);
+					stmt.setTimestamp(2, new Timestamp(waitTime));
+					stmt.setTimestamp(3, new Timestamp(waitTime + 2000));
+					stmt.setString(5, "user" + (i % 20));
+					stmt.setString(6, "local");
+					stmt.setString(7, "Nightly regression run " + (i % 50));
+					stmt.setString(8, "http://selenium-" + (i % 30) + ".example.org:4444/wd/hub");
+					stmt.setString(9, "selenium");
+					// every tenth request is still working, leaving NULL columns
+					if (i % 10 == 0) {
+						stmt.setNull(4, Types.TIMESTAMP);
+						stmt.setNull(10, Types.VARCHAR);
+						stmt.setNull(11, Types.INTEGER);
+					}
+					else {
+						stmt.setTimestamp(4, new Timestamp(waitTime + 60000));
+						stmt.setString(10, "SUCCESS");
+						stmt.setInt(11, i % 30);
+					}
+					stmt.addBatch();
+					if (i % 1000 == 999) {
+						stmt.executeBatch();
+					}
+				}
+				stmt.executeBatch();
+			}
+			connection.commit();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		try {
+			DriverManager.getConnection(DB_URL + ";drop=true");
+		}
+		catch (SQLException e) {
+			// expected; Derby signals a successful drop with an exception
+		}
+	}
+
+	@Benchmark
+	public String toJson() throws SQLException {
+		try (LogQueryCursor cursor = LogBenchmarkSupport.openCursor(DB_URL, QUERY)) {
+			return controller.toJson(cursor).toString();
+		}
+	}
+
+	@Benchmark
+	public long writeJson() throws IOException, SQLException {
+		CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+		try (LogQueryCursor cursor = LogBenchmarkSupport.openCursor(DB_URL, QUERY)) {
+			controller.writeJson(cursor, out);
+		}
+		return out.getByteCount();
+	}
+
+}
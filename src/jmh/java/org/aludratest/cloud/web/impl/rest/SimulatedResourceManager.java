@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import static org.aludratest.cloud.web.impl.rest.BenchmarkStubs.stub;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import org.aludratest.cloud.manager.ManagedResourceRequest;
+import org.aludratest.cloud.manager.ResourceManager;
+import org.aludratest.cloud.module.ResourceModule;
+import org.aludratest.cloud.module.ResourceModuleRegistry;
+import org.aludratest.cloud.request.ResourceRequest;
+import org.aludratest.cloud.resource.Resource;
+import org.aludratest.cloud.resource.ResourceType;
+import org.aludratest.cloud.resource.UsableResource;
+import org.aludratest.cloud.resource.writer.JSONResourceWriter;
+import org.aludratest.cloud.resource.writer.ResourceWriterFactory;
+import org.aludratest.cloud.web.impl.logdb.RequestLogSink;
+import org.aludratest.cloud.web.impl.rest.BenchmarkStubs.Answer;
+import org.json.JSONObject;
+
+/**
+ * Resource manager and module registry for simulated resource types, each with a fixed number of fake resources.
+ * Requests are assigned free resources of their type in FIFO order. Resources are held until the request handler
+ * releases them, which makes them available to the next waiting request. Request life cycles are written to a request
+ * log sink, like the log database does for real requests.
+ */
+final class SimulatedResourceManager {
+
+	/**
+	 * Name of the resource type used if only a number of resources is given.
+	 */
+	static final String RESOURCE_TYPE = "simulated";
+
+	private final Map<String, SimulatedPool> pools = new LinkedHashMap<String, SimulatedPool>();
+
+	private final Map<Resource, SimulatedRequest> assignments = new HashMap<Resource, SimulatedRequest>();
+
+	private final RequestLogSink requestLog;
+
+	private volatile Consumer<ManagedResourceRequest> terminationListener = (request) -> {
+	};
+
+	/**
+	 * Creates a new simulated resource manager with a single resource type named {@link #RESOURCE_TYPE}.
+	 *
+	 * @param resourceCount
+	 *            Number of fake resources to manage.
+	 * @param requestLog
+	 *            Sink to log request life cycles to.
+	 */
+	SimulatedResourceManager(int resourceCount, RequestLogSink requestLog) {
+		this(Collections.singletonMap(RESOURCE_TYPE, Integer.valueOf(resourceCount)), requestLog);
+	}
+
+	/**
+	 * Creates a new simulated resource manager.
+	 *
+	 * @param resourceCounts
+	 *            Number of fake resources to manage, by resource type name.
+	 * @param requestLog
+	 *            Sink to log request life cycles to.
+	 */
+	SimulatedResourceManager(Map<String, Integer> resourceCounts, RequestLogSink requestLog) {
+		this.requestLog = requestLog;
+		for (Map.Entry<String, Integer> entry : resourceCounts.entrySet()) {
+			pools.put(entry.getKey(), new SimulatedPool(entry.getKey(), entry.getValue().intValue()));
+		}
+	}
+
+	/**
+	 * Sets the listener to notify when a request has finished or has been canceled, like the request handler is via
+	 * application events in the real application.
+	 *
+	 * @param terminationListener
+	 *            Listener to notify about terminated requests.
+	 */
+	void setTerminationListener(Consumer<ManagedResourceRequest> terminationListener) {
+		this.terminationListener = terminationListener;
+	}
+
+	ResourceManager asResourceManager() {
+		return stub(ResourceManager.class, "handleResourceRequest",
+				(Answer) (args) -> submit((ResourceRequest) args[0]), "getManagedRequests",
+				(Answer) (args) -> Collections.emptyIterator());
+	}
+
+	ResourceModuleRegistry asResourceModuleRegistry() {
+		JSONResourceWriter writer = stub(JSONResourceWriter.class, "writeToJSON", (Answer) (args) -> {
+			JSONObject result = new JSONObject();
+			result.put("url", "simulated://" + args[0]);
+			return result;
+		});
+		ResourceWriterFactory writerFactory = stub(ResourceWriterFactory.class, "getResourceWriter", writer);
+
+		return stub(ResourceModuleRegistry.class, "getResourceModule", (Answer) (args) -> {
+			SimulatedPool pool = pools.get(args[0]);
+			return pool == null ? null : pool.module;
+		}, "getResourceWriterFactory", writerFactory);
+	}
+
+	private ManagedResourceRequest submit(ResourceRequest request) {
+		SimulatedPool pool = pools.get(request.getResourceType().getName());
+		SimulatedRequest simulated = new SimulatedRequest(request,
+				requestLog.createRequestLog(request.getRequestingUser(), request.getJobName()));
+
+		synchronized (this) {
+			Resource resource = pool.idleResources.poll();
+			if (resource != null) {
+				assign(simulated, resource);
+			}
+			else {
+				pool.waitingRequests.add(simulated);
+			}
+		}
+		return simulated.managedRequest;
+	}
+
+	private void assign(SimulatedRequest request, Resource resource) {
+		assignments.put(resource, request);
+		request.state = ManagedResourceRequest.State.READY;
+		request.resourceFuture.complete(resource);
+	}
+
+	private void startUsing(SimulatedPool pool, Resource resource) {
+		SimulatedRequest request;
+		synchronized (this) {
+			request = assignments.get(resource);
+			if (request == null || request.state != ManagedResourceRequest.State.READY) {
+				return;
+			}
+			request.state = ManagedResourceRequest.State.WORKING;
+			pool.workingResources++;
+		}
+		requestLog.updateRequestLogWorkStarted(request.logId, pool.name, resource.toString());
+	}
+
+	private void release(SimulatedPool pool, Resource resource) {
+		SimulatedRequest request;
+		int workingLeft;
+		synchronized (this) {
+			request = assignments.remove(resource);
+			if (request == null) {
+				return;
+			}
+			if (request.state == ManagedResourceRequest.State.WORKING) {
+				pool.workingResources--;
+			}
+			request.state = ManagedResourceRequest.State.FINISHED;
+			workingLeft = pool.workingResources;
+
+			// hand resource to next waiting request; waiting requests may have been canceled meanwhile
+			SimulatedRequest next;
+			while ((next = pool.waitingRequests.poll()) != null && next.resourceFuture.isCancelled()) {
+				terminationListener.accept(next.managedRequest);
+			}
+			if (next != null) {
+				assign(next, resource);
+			}
+			else {
+				pool.idleResources.add(resource);
+			}
+		}
+
+		requestLog.updateRequestLogWorkDone(request.logId, "SUCCESS", workingLeft);
+		terminationListener.accept(request.managedRequest);
+	}
+
+	private final class SimulatedPool {
+
+		private final String name;
+
+		private final ResourceModule module;
+
+		private final Resource[] resources;
+
+		private final Queue<Resource> idleResources = new ArrayDeque<Resource>();
+
+		private final Queue<SimulatedRequest> waitingRequests = new ArrayDeque<SimulatedRequest>();
+
+		private int workingResources;
+
+		private SimulatedPool(String name, int resourceCount) {
+			this.name = name;
+			ResourceType resourceType = stub(ResourceType.class, "getName", name);
+			module = stub(ResourceModule.class, "getResourceType", resourceType, "getDisplayName",
+					"Simulated " + name);
+
+			resources = new Resource[resourceCount];
+			for (int i = 0; i < resourceCount; i++) {
+				final int index = i;
+				resources[i] = (Resource) stub(new Class<?>[] { UsableResource.class, Resource.class },
+						"getResourceType", resourceType, "startUsing", (Answer) (args) -> {
+							startUsing(this, resources[index]);
+							return null;
+						}, "stopUsing", (Answer) (args) -> {
+							release(this, resources[index]);
+							return null;
+						}, "toString", name + "-" + i);
+				idleResources.add(resources[i]);
+			}
+		}
+
+	}
+
+	private static final class SimulatedRequest {
+
+		private final ManagedResourceRequest managedRequest;
+
+		private final CompletableFuture<Resource> resourceFuture = new CompletableFuture<Resource>();
+
+		private final long logId;
+
+		private volatile ManagedResourceRequest.State state = ManagedResourceRequest.State.WAITING;
+
+		private SimulatedRequest(ResourceRequest request, long logId) {
+			this.logId = logId;
+			this.managedRequest = stub(ManagedResourceRequest.class, "getRequest", request, "getResourceFuture",
+					resourceFuture, "getState", (Answer) (args) -> state);
+		}
+
+	}
+
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import static org.aludratest.cloud.web.impl.rest.BenchmarkStubs.stub;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.aludratest.cloud.user.User;
+import org.aludratest.cloud.web.impl.logdb.DatabaseRequestLogger;
+import org.aludratest.cloud.web.impl.logdb.EmbeddedRequestLog;
+import org.aludratest.cloud.web.impl.logdb.RequestTrace;
+import org.aludratest.cloud.web.impl.metrics.Histogram;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionGroup;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.json.JSONObject;
+
+/**
+ * Replays recorded resource requests against simulated resources. Each completed request of the trace is submitted at
+ * its recorded arrival time, holds its resource for its recorded work duration, and is then released, both divided by
+ * the acceleration factor. The setup is the same as for the {@link LoadTestHarness}. <br>
+ * Afterwards, the recorded and the replayed wait time distributions are reported as JSON, overall and per resource
+ * type. Replayed wait times are multiplied by the acceleration factor, so both are in the time scale of the trace.
+ */
+@SuppressWarnings("deprecation")
+public final class TraceReplay {
+
+	private final RequestTrace trace;
+
+	private final String source;
+
+	private final double acceleration;
+
+	private final Map<String, Integer> resourceCounts;
+
+	private final boolean admissionControl;
+
+	private final int logBatchSize;
+
+	private final long logLingerMillis;
+
+	private final List<RequestTrace.Entry> requests = new ArrayList<RequestTrace.Entry>();
+
+	private final WaitTimes totalWaitTimes = new WaitTimes();
+
+	private final Map<String, WaitTimes> waitTimesByType = new TreeMap<String, WaitTimes>();
+
+	private final LongAdder polls = new LongAdder();
+
+	private final LongAdder throttledSubmissions = new LongAdder();
+
+	private final LongAdder errors = new LongAdder();
+
+	private ClientRequestHandlerImpl handler;
+
+	private TraceReplay(CommandLine cmd) throws Exception {
+		Instant to = cmd.hasOption("to") ? Instant.parse(cmd.getOptionValue("to")) : null;
+		Instant from = cmd.hasOption("from") ? Instant.parse(cmd.getOptionValue("from")) : null;
+		if (cmd.hasOption("db")) {
+			to = to == null ? Instant.now() : to;
+			from = from == null ? to.minus(24, ChronoUnit.HOURS) : from;
+			source = cmd.getOptionValue("db");
+			trace = RequestTrace.fromDatabase(new File(source), from, to);
+		}
+		else {
+			source = cmd.getOptionValue("file");
+			trace = RequestTrace.fromFile(new File(source), from, to);
+		}
+
+		acceleration = cmd.hasOption("acceleration") ? Double.parseDouble(cmd.getOptionValue("acceleration")) : 1;
+		if (!(acceleration > 0)) {
+			throw new IllegalArgumentException("Acceleration must be positive");
+		}
+		admissionControl = cmd.hasOption("admission");
+		logBatchSize = cmd.hasOption("log-batch-size") ? Integer.parseInt(cmd.getOptionValue("log-batch-size")) : 100;
+		logLingerMillis = cmd.hasOption("log-linger") ? Long.parseLong(cmd.getOptionValue("log-linger")) : 20;
+
+		for (RequestTrace.Entry entry : trace.getEntries()) {
+			if (entry.isCompleted()) {
+				requests.add(entry);
+				waitTimesByType.computeIfAbsent(entry.getResourceType(), (type) -> new WaitTimes());
+			}
+		}
+		resourceCounts = parseResourceCounts(cmd.getOptionValue("resources"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		OptionGroup sources = new OptionGroup();
+		sources.addOption(Option.builder().longOpt("db").hasArg().argName("dir")
+				.desc("Log database directory (acm.db.home) to read requests from; must not be in use").build());
+		sources.addOption(Option.builder().longOpt("file").hasArg().argName("file").desc(
+				"File to read requests from: a response of /api/logdb/requests (*.json), or one request per line")
+				.build());
+		sources.setRequired(true);
+		options.addOptionGroup(sources);
+		options.addOption(Option.builder().longOpt("from").hasArg().argName("instant")
+				.desc("Replay requests which started waiting at or after this ISO-8601 instant").build());
+		options.addOption(Option.builder().longOpt("to").hasArg().argName("instant")
+				.desc("Replay requests which started waiting before this ISO-8601 instant").build());
+		options.addOption(Option.builder("a").longOpt("acceleration").hasArg().argName("factor")
+				.desc("Replay this many times faster than recorded (default 1)").build());
+		options.addOption(Option.builder("r").longOpt("resources").hasArg().argName("counts").desc(
+				"Simulated resources per type, as n or type=n,... (default: peak concurrent use in the trace)")
+				.build());
+		options.addOption(Option.builder().longOpt("admission")
+				.desc("Enable admission control with the application defaults").build());
+		options.addOption(Option.builder().longOpt("log-batch-size").hasArg().argName("n")
+				.desc("Log database batch size (default 100)").build());
+		options.addOption(Option.builder().longOpt("log-linger").hasArg().argName("n")
+				.desc("Log database batch linger time, in ms (default 20)").build());
+		options.addOption(Option.builder("o").longOpt("output").hasArg().argName("file")
+				.desc("File to write the JSON report to, in addition to stdout").build());
+
+		CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		}
+		catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp(TraceReplay.class.getName(), options);
+			System.exit(1);
+			return;
+		}
+
+		TraceReplay replay;
+		try {
+			replay = new TraceReplay(cmd);
+		}
+		catch (DateTimeParseException | IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		String report = replay.run().toString(2);
+		System.out.println(report);
+		if (cmd.hasOption("output")) {
+			Files.write(new File(cmd.getOptionValue("output")).toPath(), report.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private JSONObject run() throws Exception {
+		if (requests.isEmpty()) {
+			return createReport(null, 0, 0);
+		}
+
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		ExecutorService clients = Executors.newCachedThreadPool();
+		try (EmbeddedRequestLog requestLog = new EmbeddedRequestLog(logBatchSize, logLingerMillis,
+				DatabaseRequestLogger.DEFAULT_QUEUE_CAPACITY)) {
+			handler = LoadTestHarness.createRequestHandler(
+					new SimulatedResourceManager(resourceCounts, requestLog.getLogger()), admissionControl);
+
+			Instant traceStart = requests.get(0).getStartWaitTime();
+			long replayStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+			CountDownLatch done = new CountDownLatch(requests.size());
+			for (RequestTrace.Entry request : requests) {
+				long arrival = replayStart + scale(Duration.between(traceStart, request.getStartWaitTime()));
+				scheduler.schedule(() -> clients.execute(() -> {
+					try {
+						replay(request, arrival);
+					}
+					finally {
+						done.countDown();
+					}
+				}), arrival - System.nanoTime(), TimeUnit.NANOSECONDS);
+			}
+
+			done.await();
+			long replayNanos = System.nanoTime() - replayStart;
+			long drainStart = System.nanoTime();
+			requestLog.awaitWritten();
+			long drainMicros = (System.nanoTime() - drainStart) / 1000;
+
+			handler.shutdown();
+			return createReport(requestLog.getLogger(), replayNanos, drainMicros);
+		}
+		finally {
+			scheduler.shutdownNow();
+			clients.shutdownNow();
+		}
+	}
+
+	private void replay(RequestTrace.Entry entry, long arrival) {
+		User user = stub(User.class, "getName", entry.getUserName(), "getSource", entry.getUserSource());
+		JSONObject request = new JSONObject();
+		request.put("resourceType", entry.getResourceType());
+		request.putOpt("jobName", entry.getJobName());
+
+		try {
+			JSONObject response;
+			while ((response = LoadTestHarness.submitAndWait(handler, user, request, polls)).has("retryAfterMs")) {
+				throttledSubmissions.increment();
+				Thread.sleep(response.getLong("retryAfterMs"));
+			}
+			if (!response.has("resource")) {
+				errors.increment();
+				return;
+			}
+
+			long replayedWaitMicros = (long) ((System.nanoTime() - arrival) * acceleration / 1000);
+			long recordedWaitMicros = entry.getWaitDuration().toNanos() / 1000;
+			totalWaitTimes.record(recordedWaitMicros, replayedWaitMicros);
+			waitTimesByType.get(entry.getResourceType()).record(recordedWaitMicros, replayedWaitMicros);
+
+			TimeUnit.NANOSECONDS.sleep(scale(entry.getWorkDuration()));
+			handler.handleReleaseRequest(response.getString("requestId"));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private long scale(Duration duration) {
+		return (long) (duration.toNanos() / acceleration);
+	}
+
+	/**
+	 * Parses the resource counts option. Resource types of the trace without a count get their peak number of
+	 * concurrently working requests in the trace.
+	 */
+	private Map<String, Integer> parseResourceCounts(String option) {
+		Map<String, Integer> result = new TreeMap<String, Integer>();
+		Integer defaultCount = null;
+		if (option != null && !option.contains("=")) {
+			defaultCount = Integer.valueOf(option.trim());
+		}
+		else if (option != null) {
+			for (String part : option.split(",")) {
+				String[] typeAndCount = part.split("=", 2);
+				if (typeAndCount.length != 2) {
+					throw new IllegalArgumentException("Invalid resource count: " + part);
+				}
+				result.put(typeAndCount[0].trim(), Integer.valueOf(typeAndCount[1].trim()));
+			}
+		}
+
+		for (String type : waitTimesByType.keySet()) {
+			if (!result.containsKey(type)) {
+				result.put(type, defaultCount != null ? defaultCount : Integer.valueOf(getPeakConcurrency(type)));
+			}
+		}
+		return result;
+	}
+
+	private int getPeakConcurrency(String resourceType) {
+		// +1 at start of work, -1 at end of work; ends sort before starts at the same time
+		List<long[]> events = new ArrayList<long[]>();
+		for (RequestTrace.Entry entry : requests) {
+			if (resourceType.equals(entry.getResourceType())) {
+				events.add(new long[] { entry.getStartWorkTime().toEpochMilli(), 1 });
+				events.add(new long[] { entry.getEndWorkTime().toEpochMilli(), -1 });
+			}
+		}
+		events.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+		int current = 0;
+		int peak = 0;
+		for (long[] event : events) {
+			current += event[1];
+			peak = Math.max(peak, current);
+		}
+		return Math.max(1, peak);
+	}
+
+	private JSONObject createReport(DatabaseRequestLogger requestLogger, long replayNanos, long drainMicros) {
+		JSONObject config = new JSONObject();
+		config.put("source", source);
+		config.put("acceleration", acceleration);
+		config.put("resources", new JSONObject(resourceCounts));
+		config.put("admissionControl", admissionControl);
+		config.put("logBatchSize", logBatchSize);
+		config.put("logLingerMillis", logLingerMillis);
+
+		JSONObject byType = new JSONObject();
+		for (Map.Entry<String, WaitTimes> entry : waitTimesByType.entrySet()) {
+			byType.put(entry.getKey(), entry.getValue().toJson());
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("configuration", config);
+		result.put("tracedRequests", trace.getEntries().size());
+		result.put("replayedRequests", requests.size());
+		if (!requests.isEmpty()) {
+			result.put("traceStart", requests.get(0).getStartWaitTime().toString());
+			result.put("traceEnd", requests.get(requests.size() - 1).getStartWaitTime().toString());
+		}
+		result.put("replayMillis", replayNanos / 1000000);
+		result.put("waitMillis", totalWaitTimes.toJson());
+		result.put("byResourceType", byType);
+		result.put("polls", polls.sum());
+		result.put("throttledSubmissions", throttledSubmissions.sum());
+		result.put("errors", errors.sum());
+
+		if (requestLogger != null) {
+			JSONObject logDb = new JSONObject();
+			logDb.put("drainMillis", drainMicros / 1000.0);
+			logDb.put("queueHighWaterMark", requestLogger.getQueueHighWaterMark());
+			logDb.put("droppedCommands", requestLogger.getDroppedCommands());
+			result.put("logDb", logDb);
+		}
+		return result;
+	}
+
+	/**
+	 * Recorded and replayed wait times, in microseconds.
+	 */
+	private static final class WaitTimes {
+
+		private final Histogram recorded = new Histogram();
+
+		private final Histogram replayed = new Histogram();
+
+		private void record(long recordedMicros, long replayedMicros) {
+			recorded.record(recordedMicros);
+			replayed.record(replayedMicros);
+		}
+
+		private JSONObject toJson() {
+			JSONObject result = new JSONObject();
+			result.put("recorded", LoadTestHarness.toMillisJson(recorded));
+			result.put("replayed", LoadTestHarness.toMillisJson(replayed));
+			return result;
+		}
+
+	}
+
+}
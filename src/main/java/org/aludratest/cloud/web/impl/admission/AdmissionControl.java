@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.admission;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.aludratest.cloud.user.User;
+import org.aludratest.cloud.web.impl.metrics.MetricsRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admission control for incoming resource requests. New submissions are limited
+ * by one token bucket per user and one per resource type; if any of these
+ * buckets is empty, the submission is rejected immediately, and the caller is
+ * told when to retry. Polls for already submitted requests are never throttled
+ * and never wait for submissions. <br>
+ * <br>
+ * Limits are configured via the following properties (a rate of 0 disables the
+ * respective limit):
+ * <ul>
+ * <li><code>acm.admission.user.permitsPerSecond</code> (default 10)</li>
+ * <li><code>acm.admission.user.burst</code> (default 20)</li>
+ * <li><code>acm.admission.resourceType.permitsPerSecond</code> (default 100)</li>
+ * <li><code>acm.admission.resourceType.burst</code> (default 200)</li>
+ * </ul>
+ */
+@Component
+public class AdmissionControl {
+
+	/**
+	 * Buckets not used for this time are removed to keep the bucket maps small.
+	 */
+	private static final long BUCKET_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+	@Value("${acm.admission.user.permitsPerSecond:10}")
+	private double userPermitsPerSecond;
+
+	@Value("${acm.admission.user.burst:20}")
+	private int userBurst;
+
+	@Value("${acm.admission.resourceType.permitsPerSecond:100}")
+	private double resourceTypePermitsPerSecond;
+
+	@Value("${acm.admission.resourceType.burst:200}")
+	private int resourceTypeBurst;
+
+	private Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<String, TokenBucket>();
+
+	private Map<String, TokenBucket> resourceTypeBuckets = new ConcurrentHashMap<String, TokenBucket>();
+
+	private AtomicLong admittedSubmissions = new AtomicLong();
+
+	private AtomicLong throttledSubmissions = new AtomicLong();
+
+	private AtomicLong admittedPolls = new AtomicLong();
+
+	private AtomicLong lastCleanupNanos = new AtomicLong(System.nanoTime());
+
+	@Autowired
+	private MetricsRegistry metricsRegistry;
+
+	@PostConstruct
+	private void registerMetrics() {
+		metricsRegistry.registerCounter("acm_admission_admitted_submissions_total",
+				"Resource request submissions admitted", this::getAdmittedSubmissions);
+		metricsRegistry.registerCounter("acm_admission_throttled_submissions_total",
+				"Resource request submissions rejected because a token bucket was empty", this::getThrottledSubmissions);
+		metricsRegistry.registerCounter("acm_client_polls_total", "Polls for already submitted resource requests",
+				this::getAdmittedPolls);
+	}
+
+	/**
+	 * Checks if a new resource request of the given user for the given resource
+	 * type may be submitted now.
+	 *
+	 * @param user
+	 *            User submitting the request.
+	 * @param resourceType
+	 *            Name of the requested resource type.
+	 *
+	 * @return 0 if the request is admitted, otherwise the number of milliseconds
+	 *         after which the caller should retry.
+	 */
+	public long admitSubmission(User user, String resourceType) {
+		cleanupIdleBuckets();
+
+		TokenBucket userBucket = null;
+		if (userPermitsPerSecond > 0) {
+			userBucket = userBuckets.computeIfAbsent(user.getSource() + "/" + user.getName(),
+					(k) -> new TokenBucket(userPermitsPerSecond, userBurst));
+			long retryAfter = userBucket.tryAcquire();
+			if (retryAfter > 0) {
+				throttledSubmissions.incrementAndGet();
+				return retryAfter;
+			}
+		}
+
+		if (resourceTypePermitsPerSecond > 0) {
+			TokenBucket typeBucket = resourceTypeBuckets.computeIfAbsent(resourceType,
+					(k) -> new TokenBucket(resourceTypePermitsPerSecond, resourceTypeBurst));
+			long retryAfter = typeBucket.tryAcquire();
+			if (retryAfter > 0) {
+				if (userBucket != null) {
+					userBucket.release();
+				}
+				throttledSubmissions.incrementAndGet();
+				return retryAfter;
+			}
+		}
+
+		admittedSubmissions.incrementAndGet();
+		return 0;
+	}
+
+	/**
+	 * Registers a poll for an already submitted resource request. Polls are always
+	 * admitted; they are only counted.
+	 */
+	public void admitPoll() {
+		admittedPolls.incrementAndGet();
+	}
+
+	public long getAdmittedSubmissions() {
+		return admittedSubmissions.get();
+	}
+
+	public long getThrottledSubmissions() {
+		return throttledSubmissions.get();
+	}
+
+	public long getAdmittedPolls() {
+		return admittedPolls.get();
+	}
+
+	private void cleanupIdleBuckets() {
+		long now = System.nanoTime();
+		long last = lastCleanupNanos.get();
+		if (now - last < BUCKET_IDLE_NANOS || !lastCleanupNanos.compareAndSet(last, now)) {
+			return;
+		}
+
+		userBuckets.values().removeIf((b) -> now - b.getLastAccessNanos() > BUCKET_IDLE_NANOS);
+		resourceTypeBuckets.values().removeIf((b) -> now - b.getLastAccessNanos() > BUCKET_IDLE_NANOS);
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.admission;
+
+/**
+ * Simple token bucket, refilling continuously with a fixed rate up to a maximum
+ * number of tokens (burst size). Each bucket is synchronized on its own, so
+ * different buckets never contend with each other.
+ */
+final class TokenBucket {
+
+	private final double permitsPerNano;
+
+	private final double burstSize;
+
+	private double tokens;
+
+	private long lastRefillNanos;
+
+	private volatile long lastAccessNanos;
+
+	TokenBucket(double permitsPerSecond, int burstSize) {
+		this.permitsPerNano = permitsPerSecond / 1000000000.0;
+		this.burstSize = Math.max(1, burstSize);
+		this.tokens = this.burstSize;
+		this.lastRefillNanos = System.nanoTime();
+		this.lastAccessNanos = lastRefillNanos;
+	}
+
+	/**
+	 * Tries to take one token from this bucket.
+	 *
+	 * @return 0 if a token has been taken, otherwise the number of milliseconds
+	 *         after which a token will be available (at least 1).
+	 */
+	synchronized long tryAcquire() {
+		long now = System.nanoTime();
+		lastAccessNanos = now;
+		tokens = Math.min(burstSize, tokens + (now - lastRefillNanos) * permitsPerNano);
+		lastRefillNanos = now;
+
+		if (tokens >= 1) {
+			tokens -= 1;
+			return 0;
+		}
+
+		return Math.max(1, (long) Math.ceil((1 - tokens) / permitsPerNano / 1000000.0));
+	}
+
+	/**
+	 * Returns a token previously taken by {@link #tryAcquire()}, e.g. when a later
+	 * check failed and the call was not admitted.
+	 */
+	synchronized void release() {
+		tokens = Math.min(burstSize, tokens + 1);
+	}
+
+	long getLastAccessNanos() {
+		return lastAccessNanos;
+	}
+
+}
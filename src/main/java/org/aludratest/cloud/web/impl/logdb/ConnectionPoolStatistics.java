@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+/**
+ * Snapshot of the statistics of the connections to the log database, see {@link LogDbAccess#getPoolStatistics()}.
+ */
+public final class ConnectionPoolStatistics {
+
+	private final int activeConnections;
+
+	private final int idleConnections;
+
+	private final int maxConnections;
+
+	private final int waitingThreads;
+
+	private final long createdConnections;
+
+	private final long destroyedConnections;
+
+	private final long borrowedConnections;
+
+	private final long writerConnectionsOpened;
+
+	ConnectionPoolStatistics(int activeConnections, int idleConnections, int maxConnections, int waitingThreads,
+			long createdConnections, long destroyedConnections, long borrowedConnections, long writerConnectionsOpened) {
+		this.activeConnections = activeConnections;
+		this.idleConnections = idleConnections;
+		this.maxConnections = maxConnections;
+		this.waitingThreads = waitingThreads;
+		this.createdConnections = createdConnections;
+		this.destroyedConnections = destroyedConnections;
+		this.borrowedConnections = borrowedConnections;
+		this.writerConnectionsOpened = writerConnectionsOpened;
+	}
+
+	/**
+	 * Returns the number of pooled reader connections currently borrowed.
+	 *
+	 * @return The number of pooled reader connections currently borrowed.
+	 */
+	public int getActiveConnections() {
+		return activeConnections;
+	}
+
+	/**
+	 * Returns the number of idle pooled reader connections.
+	 *
+	 * @return The number of idle pooled reader connections.
+	 */
+	public int getIdleConnections() {
+		return idleConnections;
+	}
+
+	/**
+	 * Returns the maximum number of pooled reader connections.
+	 *
+	 * @return The maximum number of pooled reader connections.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Returns the number of threads currently waiting for a pooled reader connection.
+	 *
+	 * @return The number of threads currently waiting for a pooled reader connection.
+	 */
+	public int getWaitingThreads() {
+		return waitingThreads;
+	}
+
+	/**
+	 * Returns the number of pooled reader connections created since startup.
+	 *
+	 * @return The number of pooled reader connections created since startup.
+	 */
+	public long getCreatedConnections() {
+		return createdConnections;
+	}
+
+	/**
+	 * Returns the number of pooled reader connections closed since startup, e.g. after their maximum lifetime.
+	 *
+	 * @return The number of pooled reader connections closed since startup.
+	 */
+	public long getDestroyedConnections() {
+		return destroyedConnections;
+	}
+
+	/**
+	 * Returns the number of times a pooled reader connection has been borrowed since startup.
+	 *
+	 * @return The number of times a pooled reader connection has been borrowed since startup.
+	 */
+	public long getBorrowedConnections() {
+		return borrowedConnections;
+	}
+
+	/**
+	 * Returns the number of dedicated writer connections opened since startup. Each reconnect of the request logger,
+	 * e.g. after a failed batch, opens a new writer connection.
+	 *
+	 * @return The number of dedicated writer connections opened since startup.
+	 */
+	public long getWriterConnectionsOpened() {
+		return writerConnectionsOpened;
+	}
+
+}
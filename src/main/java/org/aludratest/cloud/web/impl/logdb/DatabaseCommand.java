@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.sql.Timestamp;
+
+/**
+ * A queued (modifying) database command of the request logger. Commands can be written to and read from a binary
+ * stream, which is used when commands are spilled to disk.
+ */
+final class DatabaseCommand {
+
+	private static final byte TYPE_NULL = 0;
+
+	private static final byte TYPE_STRING = 1;
+
+	private static final byte TYPE_INTEGER = 2;
+
+	private static final byte TYPE_LONG = 3;
+
+	private static final byte TYPE_TIMESTAMP = 4;
+
+	private static final byte FLAG_CREATE = 1;
+
+	private static final byte FLAG_DEPENDENT_COMMANDS = 2;
+
+	private static final DatabaseCommand[] NO_COMMANDS = new DatabaseCommand[0];
+
+	final String sql;
+
+	final Object[] parameters;
+
+	/**
+	 * <code>true</code> if this command creates a new row. Such commands must be executed before any updates of the
+	 * same batch.
+	 */
+	final boolean create;
+
+	/**
+	 * Sequence number of the journal record this command has been created from, or 0 if the command has not been
+	 * created from a journal record. Not preserved when the command is spilled to disk.
+	 */
+	final long journalSequence;
+
+	/**
+	 * Commands to execute after this command within the same transaction, but only if this command has updated at
+	 * least one row. This way, commands which must not be applied twice can be made conditional on an idempotent
+	 * update. Dependent commands must not have dependent commands themselves.
+	 */
+	final DatabaseCommand[] dependentCommands;
+
+	DatabaseCommand(String sql, Object[] parameters, boolean create) {
+		this(sql, parameters, create, 0);
+	}
+
+	DatabaseCommand(String sql, Object[] parameters, boolean create, long journalSequence) {
+		this(sql, parameters, create, journalSequence, NO_COMMANDS);
+	}
+
+	DatabaseCommand(String sql, Object[] parameters, boolean create, long journalSequence,
+			DatabaseCommand... dependentCommands) {
+		this.sql = sql;
+		this.parameters = parameters;
+		this.create = create;
+		this.journalSequence = journalSequence;
+		this.dependentCommands = dependentCommands;
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		out.writeUTF(sql);
+		// a single flags byte, compatible with spill files which only contained the create flag
+		int flags = (create ? FLAG_CREATE : 0) | (dependentCommands.length > 0 ? FLAG_DEPENDENT_COMMANDS : 0);
+		out.writeByte(flags);
+		out.writeInt(parameters.length);
+		for (Object param : parameters) {
+			if (param == null) {
+				out.writeByte(TYPE_NULL);
+			}
+			else if (param instanceof String) {
+				out.writeByte(TYPE_STRING);
+				out.writeUTF((String) param);
+			}
+			else if (param instanceof Integer) {
+				out.writeByte(TYPE_INTEGER);
+				out.writeInt(((Integer) param).intValue());
+			}
+			else if (param instanceof Long) {
+				out.writeByte(TYPE_LONG);
+				out.writeLong(((Long) param).longValue());
+			}
+			else if (param instanceof Timestamp) {
+				out.writeByte(TYPE_TIMESTAMP);
+				out.writeLong(((Timestamp) param).getTime());
+				out.writeInt(((Timestamp) param).getNanos());
+			}
+			else {
+				throw new IOException("Unsupported parameter type for database command: " + param.getClass().getName());
+			}
+		}
+		if (dependentCommands.length > 0) {
+			out.writeInt(dependentCommands.length);
+			for (DatabaseCommand command : dependentCommands) {
+				command.writeTo(out);
+			}
+		}
+	}
+
+	static DatabaseCommand readFrom(DataInput in) throws IOException {
+		String sql = in.readUTF();
+		byte flags = in.readByte();
+		Object[] parameters = new Object[in.readInt()];
+		for (int i = 0; i < parameters.length; i++) {
+			byte type = in.readByte();
+			switch (type) {
+				case TYPE_NULL:
+					break;
+				case TYPE_STRING:
+					parameters[i] = in.readUTF();
+					break;
+				case TYPE_INTEGER:
+					parameters[i] = Integer.valueOf(in.readInt());
+					break;
+				case TYPE_LONG:
+					parameters[i] = Long.valueOf(in.readLong());
+					break;
+				case TYPE_TIMESTAMP:
+					Timestamp ts = new Timestamp(in.readLong());
+					ts.setNanos(in.readInt());
+					parameters[i] = ts;
+					break;
+				default:
+					throw new IOException("Invalid parameter type in spilled database command: " + type);
+			}
+		}
+		DatabaseCommand[] dependentCommands = NO_COMMANDS;
+		if ((flags & FLAG_DEPENDENT_COMMANDS) != 0) {
+			dependentCommands = new DatabaseCommand[in.readInt()];
+			for (int i = 0; i < dependentCommands.length; i++) {
+				dependentCommands[i] = readFrom(in);
+			}
+		}
+		return new DatabaseCommand(sql, parameters, (flags & FLAG_CREATE) != 0, 0, dependentCommands);
+	}
+
+}
@@ -15,29 +15,40 @@
  */
 package org.aludratest.cloud.web.impl.logdb;
 
+import java.io.File;
 import java.sql.SQLException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
-import javax.sql.rowset.CachedRowSet;
-
 import org.aludratest.cloud.user.User;
+import org.aludratest.cloud.web.impl.metrics.Histogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Runnable which queues (modifying) database commands to not slow down application by slow database performance.
+ * Runnable which queues (modifying) database commands to not slow down application by slow database performance. <br>
+ * <br>
+ * If a maximum batch size greater than 1 is configured, the logger drains up to this number of commands from the queue,
+ * waiting at most the configured linger time for more commands to arrive, and executes them within one transaction on a
+ * long-lived writer connection. Otherwise, each command is executed in its own transaction on that connection. <br>
+ * <br>
+ * The command queue is bounded; see {@link LogOverflowPolicy} for what happens when it is full. <br>
+ * <br>
+ * Commands created from records of a {@link RequestJournal} carry the record's sequence number. The highest sequence
+ * number of each batch is written to <code>acm_journal_checkpoint</code> within the batch's transaction, so journal
+ * records are replayed exactly once in batch mode. Replayed commands are idempotent nevertheless: log entries are only
+ * created if they do not exist, and a request is only added to the hourly rollups when its end is first recorded.
  *
  * @author falbrech
  *
  */
-public class DatabaseRequestLogger implements Runnable {
+public class DatabaseRequestLogger implements Runnable, RequestLogSink {
 
 	// @formatter:off
 	/*
@@ -45,6 +56,15 @@ public class DatabaseRequestLogger implements Runnable {
 	 *
 	 * Version     Date        Author     Description
 	 *   1.0    2015-08-11    falbrech    Initial schema. Copied from previous HSDG software.
+	 *   1.1    2026-10-18    user-007    request_id allocated by application (hi/lo via sequence acm_request_id_block).
+	 *   1.2    2026-10-18    user-014    Hourly usage rollup table acm_request_hourly, backfill state acm_rollup_backfill.
+	 *   1.3    2026-10-18    user-016    Indexes for reporting queries; idx_user_name replaced by idx_user_start_wait.
+	 *   1.4    2026-10-18    user-017    Request journal checkpoint table acm_journal_checkpoint.
+	 *   1.5    2026-10-18    user-007    Primary key on acm_request.request_id; duplicate rows merged.
+	 *   1.6    2026-10-18    user-014    Progress column next_start_utc of acm_rollup_backfill.
+	 *   1.7    2026-10-18    user-011    Keyset paging indexes idx_start_wait_id(_desc), replacing idx_start_wait_time.
+	 *
+	 * Upgrade steps are defined in LogDbMigrator.
 	 *
 	 */
 	// @formatter:on
@@ -53,20 +73,48 @@ public class DatabaseRequestLogger implements Runnable {
 	 * The current schema version of the database module (software-side). This information is used when auto-updates are
 	 * performed, i.e. the database contains a different version information than this.
 	 */
-	private static final int[] DB_SCHEMA_VERSION = { 1, 0 };
+	static final int[] DB_SCHEMA_VERSION = { 1, 7 };
 
 	private static final Logger LOG = LoggerFactory.getLogger(DatabaseRequestLogger.class);
 
+	/**
+	 * Default maximum number of commands kept in memory.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 65536;
+
+	/**
+	 * Maximum age of requests whose rollup contribution is still awaited. Older requests are assumed to never end.
+	 */
+	private static final long PENDING_ROLLUP_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+	private static final int PENDING_ROLLUP_SWEEP_INTERVAL = 1024;
+
+	static final String JOURNAL_CHECKPOINT_TABLE = "acm_journal_checkpoint";
+
+	private static final String JOURNAL_CHECKPOINT_SQL = "UPDATE " + JOURNAL_CHECKPOINT_TABLE
+			+ " SET journal_sequence = ?";
+
 	private LogDbAccess database;
 
-	private ConcurrentLinkedQueue<DatabaseCommand> commandQueue = new ConcurrentLinkedQueue<DatabaseCommand>();
+	private LogCommandQueue commandQueue;
+
+	private LogIdAllocator idAllocator;
 
-	private Map<Long, Long> virtualToDbRequestIds = new ConcurrentHashMap<Long, Long>();
+	private final int maxBatchSize;
 
-	private final DateFormat DF_TIMESTAMP = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+	private final long lingerMillis;
 
-	private AtomicLong nextVirtualRequestId = new AtomicLong();
+	private WriterConnection writerConnection;
 
+	private Histogram batchSizes = new Histogram();
+
+	private Histogram commitLatenciesMicros = new Histogram();
+
+	private final AtomicLong writeEpoch = new AtomicLong();
+
+	private final Map<Long, PendingRollup> pendingRollups = new ConcurrentHashMap<Long, PendingRollup>();
+
+	private volatile long committedJournalSequence;
 
 	/**
 	 * Creates a new database request logger object. Use a Thread object to execute this logger. Interrupt that thread to
@@ -80,69 +128,357 @@ public class DatabaseRequestLogger implements Runnable {
 	 *             version.
 	 */
 	public DatabaseRequestLogger(LogDbAccess database) throws SQLException {
+		this(database, 1, 0, DEFAULT_QUEUE_CAPACITY, LogOverflowPolicy.BLOCK, null);
+	}
+
+	/**
+	 * Creates a new database request logger object which executes queued commands in batches. Use a Thread object to
+	 * execute this logger. Interrupt that thread to terminate the logger.
+	 *
+	 * @param database
+	 *            Database to write log entries to.
+	 * @param maxBatchSize
+	 *            Maximum number of commands to execute within one transaction. A value of 1 or less disables batching.
+	 * @param lingerMillis
+	 *            Maximum time, in milliseconds, to wait for further commands after the first command of a batch has been
+	 *            taken from the queue.
+	 * @param queueCapacity
+	 *            Maximum number of commands to keep in memory. Rounded up to the next power of two.
+	 * @param overflowPolicy
+	 *            What to do with new commands when the in-memory queue is full.
+	 * @param spillDirectory
+	 *            Directory to spill commands to, if overflow policy is {@link LogOverflowPolicy#SPILL}.
+	 *
+	 * @throws SQLException
+	 *             If the database could not be created or initialized with required tables, or has an incompatible schema
+	 *             version.
+	 */
+	public DatabaseRequestLogger(LogDbAccess database, int maxBatchSize, long lingerMillis, int queueCapacity,
+			LogOverflowPolicy overflowPolicy, File spillDirectory) throws SQLException {
 		this.database = database;
-		DF_TIMESTAMP.setTimeZone(TimeZone.getTimeZone("UTC"));
+		this.commandQueue = new LogCommandQueue(queueCapacity, overflowPolicy, spillDirectory);
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.lingerMillis = Math.max(0, lingerMillis);
+		this.idAllocator = new LogIdAllocator(database);
 
 		if (!database.isDatabaseExisting()) {
 			database.createDatabase();
 			createBasicTables();
 		}
-		checkTablesVersion();
+		new LogDbMigrator(database).migrate(DB_SCHEMA_VERSION[0], DB_SCHEMA_VERSION[1]);
 	}
 
 	private void enqueue(DatabaseCommand command) {
-		commandQueue.add(command);
-		synchronized (this) {
-			notify();
-		}
+		commandQueue.offer(command);
 	}
 
 	private void executeCommand(DatabaseCommand command) throws SQLException {
-		if (command.create) {
-			Long result = database.executeStatement(command.sql, new int[] { 1 });
-			virtualToDbRequestIds.put(command.mappingRequestId, result);
+		try {
+			WriterConnection connection = getWriterConnection();
+			if (connection.executeUpdate(command.sql, command.parameters) > 0) {
+				for (DatabaseCommand dependent : command.dependentCommands) {
+					connection.executeUpdate(dependent.sql, dependent.parameters);
+				}
+			}
+			connection.commit();
 		}
-		else {
-			Long dbId = virtualToDbRequestIds.get(command.mappingRequestId);
-			if (dbId == null) {
-				throw new SQLException("No database ID known to update request " + command.mappingRequestId);
+		catch (SQLException e) {
+			closeWriterConnection();
+			throw e;
+		}
+		writeEpoch.incrementAndGet();
+	}
+
+	/**
+	 * Executes a single statement in its own transaction on the writer connection. If it fails, the writer connection is
+	 * closed, so the next statement starts on a fresh connection.
+	 */
+	private void executeOnWriterConnection(String sql, Object[] parameters) throws SQLException {
+		try {
+			WriterConnection connection = getWriterConnection();
+			connection.executeUpdate(sql, parameters);
+			connection.commit();
+		}
+		catch (SQLException e) {
+			closeWriterConnection();
+			throw e;
+		}
+	}
+
+	/**
+	 * Records the given journal sequence number as processed, outside of any batch transaction. Journal records are then
+	 * replayed at least once, but possibly twice after a crash.
+	 */
+	private void checkpointJournal(long journalSequence) {
+		if (journalSequence > committedJournalSequence) {
+			try {
+				executeOnWriterConnection(JOURNAL_CHECKPOINT_SQL, new Object[] { Long.valueOf(journalSequence) });
 			}
-			database.executeStatement(command.sql.replace(":dbId", dbId.toString()));
+			catch (SQLException e) {
+				LOG.error("Could not update request journal checkpoint", e);
+			}
+			committedJournalSequence = journalSequence;
 		}
 	}
 
 	@Override
 	public void run() {
+		try {
+			if (maxBatchSize > 1) {
+				runBatched();
+			}
+			else {
+				runUnbatched();
+			}
+		}
+		finally {
+			closeWriterConnection();
+			commandQueue.close();
+		}
+	}
+
+	private void runUnbatched() {
 		while (!Thread.interrupted()) {
-			while (commandQueue.isEmpty()) {
-				synchronized (this) {
-					try {
-						wait();
-					}
-					catch (InterruptedException e) {
-						return;
+			DatabaseCommand command;
+			try {
+				command = commandQueue.take();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				executeCommand(command);
+			}
+			catch (SQLException e) {
+				LOG.error("Could not execute log database statement", e);
+			}
+			checkpointJournal(command.journalSequence);
+		}
+	}
+
+	private void runBatched() {
+		List<DatabaseCommand> batch = new ArrayList<DatabaseCommand>(maxBatchSize);
+		boolean interrupted = false;
+
+		while (!interrupted && !Thread.interrupted()) {
+			try {
+				batch.add(commandQueue.take());
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+
+			// collect batch, lingering for more commands if not full
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+			while (batch.size() < maxBatchSize) {
+				long remaining = deadline - System.nanoTime();
+				DatabaseCommand command;
+				try {
+					command = remaining > 0 ? commandQueue.poll(remaining, TimeUnit.NANOSECONDS) : commandQueue.poll();
+				}
+				catch (InterruptedException e) {
+					// flush what we have, then terminate
+					interrupted = true;
+					break;
+				}
+				if (command == null) {
+					break;
+				}
+				batch.add(command);
+			}
+
+			executeBatch(batch);
+			batch.clear();
+		}
+	}
+
+	private void executeBatch(List<DatabaseCommand> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		long journalSequence = 0;
+		for (DatabaseCommand command : batch) {
+			journalSequence = Math.max(journalSequence, command.journalSequence);
+		}
+
+		long startTime = System.nanoTime();
+		try {
+			WriterConnection connection = getWriterConnection();
+			List<DatabaseCommand> conditional = new ArrayList<DatabaseCommand>();
+			for (DatabaseCommand command : batch) {
+				if (command.dependentCommands.length > 0) {
+					conditional.add(command);
+				}
+			}
+			addBatches(connection, batch);
+			if (journalSequence > committedJournalSequence) {
+				connection.addBatch(JOURNAL_CHECKPOINT_SQL, Long.valueOf(journalSequence));
+			}
+			connection.executeBatches();
+
+			// the update counts of commands with dependent commands are required, so execute them one by one
+			if (!conditional.isEmpty()) {
+				List<DatabaseCommand> dependents = new ArrayList<DatabaseCommand>();
+				for (DatabaseCommand command : conditional) {
+					if (connection.executeUpdate(command.sql, command.parameters) > 0) {
+						dependents.addAll(Arrays.asList(command.dependentCommands));
 					}
 				}
+				addBatches(connection, dependents);
+				connection.executeBatches();
 			}
+			connection.commit();
+			writeEpoch.incrementAndGet();
+			if (journalSequence > committedJournalSequence) {
+				committedJournalSequence = journalSequence;
+			}
+
+			batchSizes.record(batch.size());
+			commitLatenciesMicros.record((System.nanoTime() - startTime) / 1000);
+		}
+		catch (SQLException e) {
+			LOG.warn("Could not execute batch of log database statements, executing them one by one", e);
+			closeWriterConnection();
 
-			while (!commandQueue.isEmpty()) {
-				DatabaseCommand command = commandQueue.poll();
+			for (DatabaseCommand command : batch) {
 				try {
 					executeCommand(command);
 				}
-				catch (SQLException e) {
-					LOG.error("Could not execute log database statement", e);
-				}
-				if (Thread.interrupted()) {
-					return;
+				catch (SQLException se) {
+					LOG.error("Could not execute log database statement", se);
 				}
 			}
+			checkpointJournal(journalSequence);
+		}
+	}
+
+	/**
+	 * Adds the given commands without dependent commands to the batches of the given connection. Rows must exist before
+	 * they are updated, so all INSERTs are added first.
+	 */
+	private static void addBatches(WriterConnection connection, List<DatabaseCommand> commands) throws SQLException {
+		for (DatabaseCommand command : commands) {
+			if (command.create && command.dependentCommands.length == 0) {
+				connection.addBatch(command.sql, command.parameters);
+			}
+		}
+		for (DatabaseCommand command : commands) {
+			if (!command.create && command.dependentCommands.length == 0) {
+				connection.addBatch(command.sql, command.parameters);
+			}
+		}
+	}
+
+	private WriterConnection getWriterConnection() throws SQLException {
+		if (writerConnection == null) {
+			writerConnection = database.openWriterConnection();
+		}
+		return writerConnection;
+	}
+
+	private void closeWriterConnection() {
+		if (writerConnection != null) {
+			writerConnection.close();
+			writerConnection = null;
 		}
 	}
 
+	/**
+	 * Returns the number of commands currently waiting in the in-memory queue.
+	 *
+	 * @return The number of commands currently waiting in the in-memory queue.
+	 */
+	public int getQueueDepth() {
+		return commandQueue.getDepth();
+	}
+
+	/**
+	 * Returns the capacity of the in-memory queue.
+	 *
+	 * @return The capacity of the in-memory queue.
+	 */
+	public int getQueueCapacity() {
+		return commandQueue.getCapacity();
+	}
+
+	/**
+	 * Returns the maximum number of commands which have been waiting in the in-memory queue at the same time.
+	 *
+	 * @return The maximum number of commands which have been waiting in the in-memory queue at the same time.
+	 */
+	public long getQueueHighWaterMark() {
+		return commandQueue.getHighWaterMark();
+	}
+
+	/**
+	 * Returns the number of commands dropped because the queue was full.
+	 *
+	 * @return The number of commands dropped because the queue was full.
+	 */
+	public long getDroppedCommands() {
+		return commandQueue.getDroppedCommands();
+	}
+
+	/**
+	 * Returns the number of commands spilled to disk because the in-memory queue was full.
+	 *
+	 * @return The number of commands spilled to disk because the in-memory queue was full.
+	 */
+	public long getSpilledCommands() {
+		return commandQueue.getSpilledCommands();
+	}
+
+	/**
+	 * Returns the number of spilled commands not yet read back from disk.
+	 *
+	 * @return The number of spilled commands not yet read back from disk.
+	 */
+	public long getPendingSpilledCommands() {
+		return commandQueue.getPendingSpilledCommands();
+	}
+
+	/**
+	 * Returns the distribution of the number of commands executed per batch. Only filled in batch mode.
+	 *
+	 * @return The distribution of the number of commands executed per batch.
+	 */
+	public Histogram getBatchSizes() {
+		return batchSizes;
+	}
+
+	/**
+	 * Returns the distribution of the time, in microseconds, taken to execute and commit a batch. Only filled in batch
+	 * mode.
+	 *
+	 * @return The distribution of the time taken to execute and commit a batch.
+	 */
+	public Histogram getCommitLatenciesMicros() {
+		return commitLatenciesMicros;
+	}
+
+	/**
+	 * Returns the current write epoch of the log database. The epoch is advanced whenever this logger has committed
+	 * changes to the database, so results read at an older epoch may be outdated.
+	 *
+	 * @return The current write epoch of the log database.
+	 */
+	public long getWriteEpoch() {
+		return writeEpoch.get();
+	}
+
+	/**
+	 * Advances the write epoch after log entries have been changed by others than this logger, e.g. by retention.
+	 */
+	void advanceWriteEpoch() {
+		writeEpoch.incrementAndGet();
+	}
+
 	/**
 	 * Creates a new log entry for a resource request. A unique ID is automatically
-	 * assigned and returned. <br>
+	 * assigned and returned. The ID is allocated on application side, so it is
+	 * already the final database ID of the log entry. <br>
 	 * The database INSERT statement is enqueued into the local command queue and
 	 * executed as soon as possible.
 	 *
@@ -152,16 +488,53 @@ public class DatabaseRequestLogger implements Runnable {
 	 *            Job name passed by the user, if any.
 	 *
 	 * @return The unique ID automatically assigned to the log entry. This ID is
-	 *         required for calling the <code>update*</code> methods.
+	 *         required for calling the <code>update*</code> methods. If no ID
+	 *         could be allocated, -1 is returned, and no log entry is created.
 	 */
+	@Override
 	public long createRequestLog(User user, String jobName) {
-		long virtualId = nextVirtualRequestId.incrementAndGet();
+		long id = allocateRequestId();
+		if (id >= 0) {
+			logRequestCreated(0, id, System.currentTimeMillis(), user.getName(), user.getSource(), jobName);
+		}
+		return id;
+	}
+
+	/**
+	 * Allocates a new, unique log entry ID.
+	 *
+	 * @return The allocated ID, or -1 if no ID could be allocated.
+	 */
+	long allocateRequestId() {
+		try {
+			return idAllocator.nextId();
+		}
+		catch (SQLException e) {
+			LOG.error("Could not allocate ID for request log entry", e);
+			return -1;
+		}
+	}
 
-		String sql = "INSERT INTO acm_request (start_wait_time_utc, user_name, user_source, job_name) VALUES ("
-				+ getCurrentUTCTimestampExpr() + ", '" + user.getName() + "', '" + user.getSource() + "', '" + jobName + "')";
+	/**
+	 * Enqueues the creation of a log entry with an already allocated ID, see {@link #createRequestLog(User, String)}.
+	 * The row is only inserted if it does not exist yet, as commands are written at least once when they are replayed
+	 * from a journal, from spill files or one by one after a failed batch.
+	 */
+	void logRequestCreated(long journalSequence, long id, long timeMillis, String userName, String userSource,
+			String jobName) {
+		String sql = "INSERT INTO acm_request (request_id, start_wait_time_utc, user_name, user_source, job_name) "
+				+ "SELECT CAST(? AS BIGINT), CAST(? AS TIMESTAMP), CAST(? AS VARCHAR(50)), CAST(? AS VARCHAR(100)), "
+				+ "CAST(? AS VARCHAR(400)) FROM SYSIBM.SYSDUMMY1 WHERE NOT EXISTS "
+				+ "(SELECT 1 FROM acm_request WHERE request_id = ?)";
+
+		if (id % PENDING_ROLLUP_SWEEP_INTERVAL == 0) {
+			long minStartWait = timeMillis - PENDING_ROLLUP_MAX_AGE_MILLIS;
+			pendingRollups.values().removeIf(p -> p.startWaitMillis < minStartWait);
+		}
+		pendingRollups.put(Long.valueOf(id), new PendingRollup(timeMillis, userName));
 
-		enqueue(new DatabaseCommand(sql, virtualId, true));
-		return virtualId;
+		enqueue(new DatabaseCommand(sql, new Object[] { Long.valueOf(id), new Timestamp(timeMillis), userName,
+				userSource, jobName, Long.valueOf(id) }, true, journalSequence));
 	}
 
 	/**
@@ -175,14 +548,30 @@ public class DatabaseRequestLogger implements Runnable {
 	 *            The resource assigned to the request. The String representation (<code>toString()</code>) of the resource is
 	 *            logged to the database.
 	 */
+	@Override
 	public void updateRequestLogWorkStarted(long id, String resourceType, String resource) {
-		String sql = "UPDATE acm_request SET start_work_time_utc = " + getCurrentUTCTimestampExpr() + ", resource_type = '"
-				+ resourceType + "', received_resource = '" + resource + "' WHERE request_id = :dbId";
-		enqueue(new DatabaseCommand(sql, id, false));
+		logWorkStarted(0, id, System.currentTimeMillis(), resourceType, resource);
+	}
+
+	/**
+	 * Enqueues the update of a log entry when a resource has been assigned, see
+	 * {@link #updateRequestLogWorkStarted(long, String, String)}.
+	 */
+	void logWorkStarted(long journalSequence, long id, long timeMillis, String resourceType, String resource) {
+		String sql = "UPDATE acm_request SET start_work_time_utc = ?, resource_type = ?, received_resource = ? "
+				+ "WHERE request_id = ?";
+		PendingRollup pending = pendingRollups.get(Long.valueOf(id));
+		if (pending != null) {
+			pending.workStarted(timeMillis, resourceType);
+		}
+		enqueue(new DatabaseCommand(sql,
+				new Object[] { new Timestamp(timeMillis), resourceType, resource, Long.valueOf(id) }, false,
+				journalSequence));
 	}
 
 	/**
-	 * Updates the given log entry when an assigned resource has been released.
+	 * Updates the given log entry when an assigned resource has been released. The request is also added to the hourly
+	 * usage rollups.
 	 *
 	 * @param id
 	 *            Log entry ID, as returned by {@link #createRequestLog(User, String)}.
@@ -193,87 +582,119 @@ public class DatabaseRequestLogger implements Runnable {
 	 *            Number of active (<code>IN_USE</code>) left of the associated resource type. This is logged in an extra field
 	 *            and can be used for easy "workload" reports.
 	 */
+	@Override
 	public void updateRequestLogWorkDone(long id, String status, int cntActiveResourcesLeft) {
-		String sql = "UPDATE acm_request SET end_work_time_utc = " + getCurrentUTCTimestampExpr() + ", end_work_status = '"
-				+ status + "', cnt_active_res_after_work = " + cntActiveResourcesLeft + " WHERE request_id = :dbId";
-		enqueue(new DatabaseCommand(sql, id, false));
+		logWorkDone(0, id, System.currentTimeMillis(), status, cntActiveResourcesLeft);
 	}
 
-	private void checkTablesVersion() throws SQLException {
-		// check if there is a previous version; upgrade in this case
-		String sql = "SELECT major, minor FROM acm_version";
-		CachedRowSet rs = database.populateQuery(sql);
-		if (!rs.next()) {
-			throw new SQLException("acm_version is empty");
+	/**
+	 * Enqueues the update of a log entry when an assigned resource has been released, see
+	 * {@link #updateRequestLogWorkDone(long, String, int)}. The update only applies to log entries which have not ended
+	 * yet, and the request is only added to the hourly rollups if the update applied, so a replayed command does not
+	 * count the request twice.
+	 */
+	void logWorkDone(long journalSequence, long id, long timeMillis, String status, int cntActiveResourcesLeft) {
+		String sql = "UPDATE acm_request SET end_work_time_utc = ?, end_work_status = ?, cnt_active_res_after_work = ? "
+				+ "WHERE request_id = ? AND end_work_time_utc IS NULL";
+		Object[] parameters = new Object[] { new Timestamp(timeMillis), status, Integer.valueOf(cntActiveResourcesLeft),
+				Long.valueOf(id) };
+
+		PendingRollup pending = pendingRollups.remove(Long.valueOf(id));
+		if (pending != null) {
+			HourlyRollup rollup = pending.toRollup(timeMillis, cntActiveResourcesLeft);
+			enqueue(new DatabaseCommand(sql, parameters, false, journalSequence,
+					rollup.createEnsureRowCommand(journalSequence), rollup.createAddCommand(journalSequence)));
 		}
-
-		int major = rs.getInt(1);
-		int minor = rs.getInt(2);
-
-		if (major != DB_SCHEMA_VERSION[0] || minor != DB_SCHEMA_VERSION[1]) {
-			throw new SQLException("Unsupported version of database schema: " + major + "." + minor);
+		else {
+			enqueue(new DatabaseCommand(sql, parameters, false, journalSequence));
 		}
 	}
 
-	private void createBasicTables() throws SQLException {
-		String sql = "CREATE TABLE acm_version (major INTEGER NOT NULL, minor INTEGER NOT NULL)";
-		database.executeStatement(sql);
-
-		// @formatter:off
-		sql = "CREATE TABLE acm_request (request_id BIGINT GENERATED ALWAYS AS IDENTITY, "
-			+ "start_wait_time_utc TIMESTAMP, "
-			+ "start_work_time_utc TIMESTAMP, "
-			+ "end_work_time_utc TIMESTAMP, "
-			+ "user_name VARCHAR(50), "
-			+ "user_source VARCHAR(100), "
-			+ "job_name VARCHAR(400), "
-			+ "received_resource VARCHAR(400), "
-			+ "resource_type VARCHAR(40), "
-			+ "end_work_status VARCHAR(20), "
-			+ "cnt_active_res_after_work INTEGER)";
-		// @formatter:on
-
-		database.executeStatement(sql);
-
-		// create useful indices
-		sql = "CREATE INDEX idx_start_wait_time ON acm_request (start_wait_time_utc)";
-		database.executeStatement(sql);
-		sql = "CREATE INDEX idx_start_work_time ON acm_request (start_work_time_utc)";
-		database.executeStatement(sql);
-		sql = "CREATE INDEX idx_user_name ON acm_request (user_name)";
-		database.executeStatement(sql);
-
-		writeAcmVersion();
+	/**
+	 * Returns the highest journal sequence number whose commands have been processed, i.e. written to the database or,
+	 * if writing failed, discarded.
+	 *
+	 * @return The highest processed journal sequence number.
+	 */
+	long getCommittedJournalSequence() {
+		return committedJournalSequence;
 	}
 
-	private void writeAcmVersion() throws SQLException {
-		String sql = "DELETE FROM acm_version";
-		database.executeStatement(sql);
-
-		sql = "INSERT INTO acm_version VALUES (" + DB_SCHEMA_VERSION[0] + ", " + DB_SCHEMA_VERSION[1] + ")";
-		database.executeStatement(sql);
+	/**
+	 * Reads the highest journal sequence number recorded as processed in the database, and initializes
+	 * {@link #getCommittedJournalSequence()} with it.
+	 *
+	 * @return The highest journal sequence number recorded as processed in the database.
+	 * @throws SQLException
+	 *             If the checkpoint could not be read.
+	 */
+	long readJournalCheckpoint() throws SQLException {
+		committedJournalSequence = database.queryLong("SELECT journal_sequence FROM " + JOURNAL_CHECKPOINT_TABLE);
+		return committedJournalSequence;
 	}
 
-	private String getCurrentUTCTimestampExpr() {
-		return getUTCTimestampExpr(new Date());
+	private void createBasicTables() throws SQLException {
+		// one transaction, so an interrupted creation does not leave a partial schema behind
+		try (WriterConnection connection = database.openWriterConnection()) {
+			String sql = "CREATE TABLE acm_version (major INTEGER NOT NULL, minor INTEGER NOT NULL)";
+			connection.executeStatement(sql);
+
+			// @formatter:off
+			sql = "CREATE TABLE acm_request (request_id BIGINT GENERATED ALWAYS AS IDENTITY, "
+				+ "start_wait_time_utc TIMESTAMP, "
+				+ "start_work_time_utc TIMESTAMP, "
+				+ "end_work_time_utc TIMESTAMP, "
+				+ "user_name VARCHAR(50), "
+				+ "user_source VARCHAR(100), "
+				+ "job_name VARCHAR(400), "
+				+ "received_resource VARCHAR(400), "
+				+ "resource_type VARCHAR(40), "
+				+ "end_work_status VARCHAR(20), "
+				+ "cnt_active_res_after_work INTEGER)";
+			// @formatter:on
+
+			connection.executeStatement(sql);
+
+			// create useful indices
+			sql = "CREATE INDEX idx_start_wait_time ON acm_request (start_wait_time_utc)";
+			connection.executeStatement(sql);
+			sql = "CREATE INDEX idx_start_work_time ON acm_request (start_work_time_utc)";
+			connection.executeStatement(sql);
+			sql = "CREATE INDEX idx_user_name ON acm_request (user_name)";
+			connection.executeStatement(sql);
+
+			// initial schema version; upgraded to current version by LogDbMigrator
+			LogDbMigrator.writeVersion(connection, LogDbMigrator.INITIAL_MAJOR, LogDbMigrator.INITIAL_MINOR);
+			connection.commit();
+		}
 	}
 
-	private String getUTCTimestampExpr(Date dt) {
-		return "TIMESTAMP('" + DF_TIMESTAMP.format(dt) + "')";
-	}
+	/**
+	 * Data of a running request required to compute its rollup contribution when it ends.
+	 */
+	private static final class PendingRollup {
+
+		private final long startWaitMillis;
 
-	private static class DatabaseCommand {
+		private final String userName;
 
-		private String sql;
+		private volatile long startWorkMillis = -1;
 
-		private boolean create;
+		private volatile String resourceType;
 
-		private Long mappingRequestId;
+		private PendingRollup(long startWaitMillis, String userName) {
+			this.startWaitMillis = startWaitMillis;
+			this.userName = userName;
+		}
+
+		private void workStarted(long startWorkMillis, String resourceType) {
+			this.resourceType = resourceType;
+			this.startWorkMillis = startWorkMillis;
+		}
 
-		public DatabaseCommand(String sql, long mappingRequestId, boolean create) {
-			this.sql = sql;
-			this.mappingRequestId = mappingRequestId;
-			this.create = create;
+		private HourlyRollup toRollup(long endWorkMillis, int activeAfterWork) {
+			return HourlyRollup.forRequest(startWaitMillis, startWorkMillis, endWorkMillis, userName, resourceType,
+					activeAfterWork);
 		}
 	}
 
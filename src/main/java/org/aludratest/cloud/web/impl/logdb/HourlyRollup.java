@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregated usage of one hour, resource type and user, as stored in the <code>acm_request_hourly</code> rollup table.
+ * Requests are assigned to the hour in which they started waiting. For requests which never received a resource, the
+ * whole time until they ended counts as wait time, and the resource type is empty.
+ */
+final class HourlyRollup {
+
+	static final String TABLE = "acm_request_hourly";
+
+	private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	// @formatter:off
+	static final String CREATE_TABLE_SQL = "CREATE TABLE " + TABLE + " ("
+			+ "hour_utc TIMESTAMP NOT NULL, "
+			+ "resource_type VARCHAR(40) NOT NULL, "
+			+ "user_name VARCHAR(50) NOT NULL, "
+			+ "request_count INTEGER NOT NULL, "
+			+ "total_wait_ms BIGINT NOT NULL, "
+			+ "max_wait_ms BIGINT NOT NULL, "
+			+ "total_work_ms BIGINT NOT NULL, "
+			+ "peak_active INTEGER NOT NULL, "
+			+ "PRIMARY KEY (hour_utc, resource_type, user_name))";
+
+	private static final String ENSURE_ROW_SQL = "INSERT INTO " + TABLE + " (hour_utc, resource_type, user_name, "
+			+ "request_count, total_wait_ms, max_wait_ms, total_work_ms, peak_active) "
+			+ "SELECT CAST(? AS TIMESTAMP), CAST(? AS VARCHAR(40)), CAST(? AS VARCHAR(50)), 0, 0, 0, 0, 0 "
+			+ "FROM SYSIBM.SYSDUMMY1 WHERE NOT EXISTS "
+			+ "(SELECT 1 FROM " + TABLE + " WHERE hour_utc = ? AND resource_type = ? AND user_name = ?)";
+
+	private static final String ADD_SQL = "UPDATE " + TABLE + " SET "
+			+ "request_count = request_count + ?, "
+			+ "total_wait_ms = total_wait_ms + ?, "
+			+ "max_wait_ms = CASE WHEN max_wait_ms < ? THEN ? ELSE max_wait_ms END, "
+			+ "total_work_ms = total_work_ms + ?, "
+			+ "peak_active = CASE WHEN peak_active < ? THEN ? ELSE peak_active END "
+			+ "WHERE hour_utc = ? AND resource_type = ? AND user_name = ?";
+	// @formatter:on
+
+	final long hourMillis;
+
+	final String resourceType;
+
+	final String userName;
+
+	int requestCount;
+
+	long totalWaitMillis;
+
+	long maxWaitMillis;
+
+	long totalWorkMillis;
+
+	int peakActive;
+
+	private HourlyRollup(long hourMillis, String resourceType, String userName) {
+		this.hourMillis = hourMillis;
+		this.resourceType = resourceType == null ? "" : resourceType;
+		this.userName = userName == null ? "" : userName;
+	}
+
+	/**
+	 * Creates the rollup contribution of a single finished request.
+	 *
+	 * @param startWaitMillis
+	 *            Time when the request started waiting.
+	 * @param startWorkMillis
+	 *            Time when the request received a resource, or -1 if it never received one.
+	 * @param endWorkMillis
+	 *            Time when the request ended.
+	 * @param userName
+	 *            Name of the requesting user.
+	 * @param resourceType
+	 *            Type of the received resource, or <code>null</code> if the request never received one.
+	 * @param activeAfterWork
+	 *            Number of active resources of the resource type after the request ended.
+	 *
+	 * @return The rollup contribution of the request.
+	 */
+	static HourlyRollup forRequest(long startWaitMillis, long startWorkMillis, long endWorkMillis, String userName,
+			String resourceType, int activeAfterWork) {
+		HourlyRollup rollup = new HourlyRollup(startWaitMillis - Math.floorMod(startWaitMillis, HOUR_MILLIS),
+				resourceType, userName);
+		long waitEnd = startWorkMillis < 0 ? endWorkMillis : startWorkMillis;
+		rollup.requestCount = 1;
+		rollup.totalWaitMillis = Math.max(0, waitEnd - startWaitMillis);
+		rollup.maxWaitMillis = rollup.totalWaitMillis;
+		rollup.totalWorkMillis = startWorkMillis < 0 ? 0 : Math.max(0, endWorkMillis - startWorkMillis);
+		rollup.peakActive = activeAfterWork;
+		return rollup;
+	}
+
+	/**
+	 * Returns a key identifying the hour, resource type and user of this rollup, for aggregating in memory.
+	 *
+	 * @return A key identifying the hour, resource type and user of this rollup.
+	 */
+	String getKey() {
+		return hourMillis + "\u0000" + resourceType + "\u0000" + userName;
+	}
+
+	/**
+	 * Adds the values of the given rollup, which must have the same key, to this rollup.
+	 *
+	 * @param other
+	 *            Rollup to add to this rollup.
+	 */
+	void add(HourlyRollup other) {
+		requestCount += other.requestCount;
+		totalWaitMillis += other.totalWaitMillis;
+		maxWaitMillis = Math.max(maxWaitMillis, other.maxWaitMillis);
+		totalWorkMillis += other.totalWorkMillis;
+		peakActive = Math.max(peakActive, other.peakActive);
+	}
+
+	/**
+	 * Returns the command creating the rollup row for the key of this rollup, if it does not exist yet. It must be
+	 * executed before {@link #createAddCommand(long)}.
+	 *
+	 * @param journalSequence
+	 *            Sequence number of the journal record the command is created from, or 0.
+	 * @return The command creating the rollup row for the key of this rollup.
+	 */
+	DatabaseCommand createEnsureRowCommand(long journalSequence) {
+		Timestamp hour = new Timestamp(hourMillis);
+		return new DatabaseCommand(ENSURE_ROW_SQL,
+				new Object[] { hour, resourceType, userName, hour, resourceType, userName }, true, journalSequence);
+	}
+
+	/**
+	 * Returns the command adding the values of this rollup to the rollup row for its key.
+	 *
+	 * @param journalSequence
+	 *            Sequence number of the journal record the command is created from, or 0.
+	 * @return The command adding the values of this rollup to the rollup row for its key.
+	 */
+	DatabaseCommand createAddCommand(long journalSequence) {
+		Long maxWait = Long.valueOf(maxWaitMillis);
+		Integer peak = Integer.valueOf(peakActive);
+		return new DatabaseCommand(ADD_SQL,
+				new Object[] { Integer.valueOf(requestCount), Long.valueOf(totalWaitMillis), maxWait, maxWait,
+						Long.valueOf(totalWorkMillis), peak, peak, new Timestamp(hourMillis), resourceType, userName },
+				false, journalSequence);
+	}
+
+}
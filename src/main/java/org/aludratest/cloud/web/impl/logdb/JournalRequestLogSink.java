@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.aludratest.cloud.user.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Request log sink which appends each event to a {@link RequestJournal} and returns immediately. A replay thread (this
+ * Runnable) reads the journal in sequence order and passes the events to the {@link DatabaseRequestLogger}, which
+ * records the highest written sequence number in the log database. After a restart, all journal records after this
+ * checkpoint are replayed, so no log events are lost when the application terminates before they have been written to
+ * the database. <br>
+ * <br>
+ * If the journal is full, i.e. the database falls behind by more than the journal capacity, appending blocks until
+ * the database catches up. Interrupt the thread executing this Runnable to stop replaying and close the journal.
+ */
+public class JournalRequestLogSink implements RequestLogSink, Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(JournalRequestLogSink.class);
+
+	private static final long FORCE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final long FULL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final DatabaseRequestLogger requestLogger;
+
+	private final RequestJournal journal;
+
+	private final ReentrantLock appendLock = new ReentrantLock();
+
+	private final List<RequestJournal.Record> recoveredRecords;
+
+	/** Last sequence number recovered from the journal; records appended afterwards are replayed by the loop. */
+	private final long recoveredSequence;
+
+	private volatile long publishedSequence;
+
+	private volatile Thread replayThread;
+
+	/**
+	 * Creates a new journal based request log sink, opening or creating the journal file.
+	 *
+	 * @param requestLogger
+	 *            Request logger to pass journal records to.
+	 * @param journalFile
+	 *            Journal file to open or create.
+	 * @param capacity
+	 *            Maximum number of records not yet written to the database.
+	 *
+	 * @throws IOException
+	 *             If the journal file could not be opened.
+	 * @throws SQLException
+	 *             If the journal checkpoint could not be read from the database.
+	 */
+	public JournalRequestLogSink(DatabaseRequestLogger requestLogger, File journalFile, int capacity)
+			throws IOException, SQLException {
+		this.requestLogger = requestLogger;
+		long checkpoint = requestLogger.readJournalCheckpoint();
+		journal = new RequestJournal(journalFile, capacity, checkpoint);
+		recoveredRecords = journal.recover();
+		if (!recoveredRecords.isEmpty()) {
+			LOG.info("Replaying " + recoveredRecords.size() + " request log records from journal " + journalFile);
+		}
+		recoveredSequence = journal.getNextSequence() - 1;
+		publishedSequence = recoveredSequence;
+	}
+
+	@Override
+	public long createRequestLog(User user, String jobName) {
+		long id = requestLogger.allocateRequestId();
+		if (id >= 0) {
+			append(RequestJournal.TYPE_REQUEST_CREATED, id, 0, user.getName(), 50, user.getSource(), 100, jobName, 400);
+		}
+		return id;
+	}
+
+	@Override
+	public void updateRequestLogWorkStarted(long id, String resourceType, String resource) {
+		append(RequestJournal.TYPE_WORK_STARTED, id, 0, resourceType, 40, resource, 400, null, 0);
+	}
+
+	@Override
+	public void updateRequestLogWorkDone(long id, String status, int cntActiveResourcesLeft) {
+		append(RequestJournal.TYPE_WORK_DONE, id, cntActiveResourcesLeft, status, 20, null, 0, null, 0);
+	}
+
+	/**
+	 * Returns the number of journal records not yet written to the log database.
+	 *
+	 * @return The number of journal records not yet written to the log database.
+	 */
+	public long getPendingRecords() {
+		return Math.max(0, publishedSequence - requestLogger.getCommittedJournalSequence());
+	}
+
+	/**
+	 * Returns the maximum number of journal records not yet written to the log database.
+	 *
+	 * @return The maximum number of journal records not yet written to the log database.
+	 */
+	public int getCapacity() {
+		return journal.getCapacity();
+	}
+
+	private void append(byte type, long id, int value, String s1, int maxChars1, String s2, int maxChars2, String s3,
+			int maxChars3) {
+		long timeMillis = System.currentTimeMillis();
+		appendLock.lock();
+		try {
+			long sequence = journal.getNextSequence();
+			boolean warned = false;
+			while (sequence - requestLogger.getCommittedJournalSequence() > journal.getCapacity()) {
+				if (!warned) {
+					LOG.warn("Request journal is full; waiting for log database to catch up");
+					warned = true;
+				}
+				LockSupport.parkNanos(FULL_WAIT_NANOS);
+			}
+			publishedSequence = journal.append(type, id, timeMillis, value, s1, maxChars1, s2, maxChars2, s3,
+					maxChars3);
+		}
+		finally {
+			appendLock.unlock();
+		}
+		LockSupport.unpark(replayThread);
+	}
+
+	@Override
+	public void run() {
+		replayThread = Thread.currentThread();
+		try {
+			for (RequestJournal.Record record : recoveredRecords) {
+				replay(record);
+			}
+			recoveredRecords.clear();
+
+			// records may already have been appended while recovered records were replayed
+			long replayedSequence = recoveredSequence;
+			long lastForce = System.nanoTime();
+			while (!Thread.currentThread().isInterrupted()) {
+				long published = publishedSequence;
+				while (replayedSequence < published) {
+					RequestJournal.Record record = journal.read(++replayedSequence);
+					if (record == null) {
+						LOG.error("Invalid request journal record " + replayedSequence + "; skipping");
+						continue;
+					}
+					replay(record);
+				}
+				if (System.nanoTime() - lastForce >= FORCE_INTERVAL_NANOS) {
+					journal.force();
+					lastForce = System.nanoTime();
+				}
+				if (publishedSequence == replayedSequence) {
+					LockSupport.parkNanos(this, FORCE_INTERVAL_NANOS);
+				}
+			}
+		}
+		finally {
+			replayThread = null;
+			try {
+				journal.close();
+			}
+			catch (IOException e) {
+				LOG.warn("Could not close request journal", e);
+			}
+		}
+	}
+
+	private void replay(RequestJournal.Record record) {
+		switch (record.type) {
+			case RequestJournal.TYPE_REQUEST_CREATED:
+				requestLogger.logRequestCreated(record.sequence, record.id, record.timeMillis, record.s1, record.s2,
+						record.s3);
+				break;
+			case RequestJournal.TYPE_WORK_STARTED:
+				requestLogger.logWorkStarted(record.sequence, record.id, record.timeMillis, record.s1, record.s2);
+				break;
+			case RequestJournal.TYPE_WORK_DONE:
+				requestLogger.logWorkDone(record.sequence, record.id, record.timeMillis, record.s1, record.value);
+				break;
+			default:
+				LOG.error("Unknown request journal record type " + record.type + "; skipping");
+		}
+	}
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+
+/**
+ * Directory of archived request log entries, with one GZIP compressed file per month (UTC) of the request's
+ * <code>start_wait_time_utc</code>, named <code>acm_request-YYYY-MM.jsonl.gz</code>. Each line of an archive file is a
+ * JSON object describing one request, with the same attributes as returned by the request log REST API:
+ * <code>requestId</code>, <code>startWaitTime</code> etc., with times as ISO-8601 instants.
+ */
+public class LogArchive {
+
+	private static final Pattern FILE_NAME = Pattern.compile("acm_request-(\\d{4}-\\d{2})\\.jsonl\\.gz");
+
+	private final File directory;
+
+	/**
+	 * Creates a new log archive object for the given directory. The directory is created when the first month is
+	 * archived.
+	 *
+	 * @param directory
+	 *            Directory containing the archive files.
+	 */
+	public LogArchive(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the archived months, in ascending order.
+	 *
+	 * @return The archived months, in ascending order.
+	 */
+	public List<YearMonth> getMonths() {
+		List<YearMonth> result = new ArrayList<YearMonth>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				Matcher m = FILE_NAME.matcher(name);
+				if (m.matches()) {
+					result.add(YearMonth.parse(m.group(1)));
+				}
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Reads all archived requests of the given month, in no particular order.
+	 *
+	 * @param month
+	 *            Month to read.
+	 * @param visitor
+	 *            Visitor receiving each archived request.
+	 *
+	 * @throws IOException
+	 *             If the archive file could not be read.
+	 */
+	public void readMonth(YearMonth month, ArchivedRequestVisitor visitor) throws IOException {
+		File file = getFile(month);
+		if (!file.isFile()) {
+			return;
+		}
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					JSONObject request = new JSONObject(line);
+					visitor.visit(request.getLong("requestId"), Instant.parse(request.getString("startWaitTime")),
+							request);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens a writer for the archive file of the given month. If the month has already been archived (e.g. by an
+	 * interrupted previous run), the existing entries are kept, and entries with the same request ID as an existing
+	 * entry are skipped. Entries written to the writer must have unique request IDs. The archive file is only replaced
+	 * when the writer is committed.
+	 */
+	MonthWriter openWriter(YearMonth month) throws IOException {
+		directory.mkdirs();
+		File file = getFile(month);
+		File tempFile = new File(directory, file.getName() + ".tmp");
+		MonthWriter writer = new MonthWriter(file, tempFile);
+		try {
+			if (file.isFile()) {
+				readMonth(month, (id, time, request) -> writer.writeExisting(id, request));
+			}
+			return writer;
+		}
+		catch (UncheckedIOException e) {
+			writer.abort();
+			throw e.getCause();
+		}
+		catch (IOException | RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+	}
+
+	private File getFile(YearMonth month) {
+		return new File(directory, "acm_request-" + month + ".jsonl.gz");
+	}
+
+	/**
+	 * Receives archived requests read by {@link LogArchive#readMonth(YearMonth, ArchivedRequestVisitor)}.
+	 */
+	@FunctionalInterface
+	public interface ArchivedRequestVisitor {
+
+		/**
+		 * Called for each archived request.
+		 *
+		 * @param requestId
+		 *            ID of the request.
+		 * @param startWaitTime
+		 *            Time when the request started waiting.
+		 * @param request
+		 *            All attributes of the request.
+		 */
+		void visit(long requestId, Instant startWaitTime, JSONObject request);
+
+	}
+
+	/**
+	 * Writes the archive file of one month to a temporary file, which replaces the archive file on commit.
+	 */
+	static final class MonthWriter {
+
+		private final File file;
+
+		private final File tempFile;
+
+		private final Writer out;
+
+		/**
+		 * IDs of the entries copied from the existing archive file. Only these can be written again, as the live
+		 * table contains each request ID once.
+		 */
+		private final Set<Long> existingIds = new HashSet<Long>();
+
+		private MonthWriter(File file, File tempFile) throws IOException {
+			this.file = file;
+			this.tempFile = tempFile;
+			this.out = new BufferedWriter(
+					new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tempFile)), StandardCharsets.UTF_8));
+		}
+
+		void write(long requestId, JSONObject request) {
+			if (!existingIds.contains(Long.valueOf(requestId))) {
+				writeLine(request);
+			}
+		}
+
+		private void writeExisting(long requestId, JSONObject request) {
+			if (existingIds.add(Long.valueOf(requestId))) {
+				writeLine(request);
+			}
+		}
+
+		private void writeLine(JSONObject request) {
+			try {
+				out.write(request.toString());
+				out.write('\n');
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		void commit() throws IOException {
+			out.close();
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		void abort() {
+			try {
+				out.close();
+			}
+			catch (IOException e) {
+				// ignore
+			}
+			tempFile.delete();
+		}
+	}
+
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded command queue of the request logger, with many producers and a single consumer. Commands are kept in a
+ * preallocated {@link RingBuffer}. A waiting consumer is parked and unparked by producers, so neither side ever
+ * contends on a monitor. What happens when the ring buffer is full is defined by a {@link LogOverflowPolicy}. <br>
+ * <br>
+ * In {@link LogOverflowPolicy#SPILL} mode, once the buffer is full, all further commands are appended to a spill file
+ * until the consumer has drained the buffer. The consumer then takes over the spill file and reads it before
+ * continuing with the buffer, so the original command order is preserved. A spill file left over by a previous process
+ * is read first.
+ */
+final class LogCommandQueue {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LogCommandQueue.class);
+
+	/** Time for which a blocked producer parks before retrying. */
+	private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final RingBuffer<DatabaseCommand> ring;
+
+	private final LogOverflowPolicy overflowPolicy;
+
+	private final File spillFile;
+
+	private final File drainFile;
+
+	private final ReentrantLock spillLock = new ReentrantLock();
+
+	private volatile boolean spilling;
+
+	private DataOutputStream spillOutput;
+
+	/** Only accessed by the consumer thread. */
+	private DataInputStream drainInput;
+
+	private volatile Thread consumer;
+
+	private volatile boolean consumerWaiting;
+
+	private final AtomicLong highWaterMark = new AtomicLong();
+
+	private final AtomicLong droppedCommands = new AtomicLong();
+
+	private final AtomicLong spilledCommands = new AtomicLong();
+
+	private final AtomicLong pendingSpilledCommands = new AtomicLong();
+
+	/**
+	 * Creates a new command queue.
+	 *
+	 * @param capacity
+	 *            Capacity of the in-memory ring buffer. Rounded up to the next power of two.
+	 * @param overflowPolicy
+	 *            Policy to apply when the ring buffer is full.
+	 * @param spillDirectory
+	 *            Directory for the spill file. Required for {@link LogOverflowPolicy#SPILL}, ignored otherwise.
+	 */
+	LogCommandQueue(int capacity, LogOverflowPolicy overflowPolicy, File spillDirectory) {
+		this.ring = new RingBuffer<DatabaseCommand>(capacity);
+		this.overflowPolicy = overflowPolicy;
+		if (overflowPolicy == LogOverflowPolicy.SPILL) {
+			if (spillDirectory == null) {
+				throw new IllegalArgumentException("A spill directory is required for overflow policy SPILL");
+			}
+			spillDirectory.mkdirs();
+			spillFile = new File(spillDirectory, "log-spill.bin");
+			drainFile = new File(spillDirectory, "log-spill.drain");
+			// recover commands of a previous process
+			spilling = spillFile.length() > 0 || drainFile.length() > 0;
+		}
+		else {
+			spillFile = null;
+			drainFile = null;
+		}
+	}
+
+	/**
+	 * Adds the given command to the queue, applying the overflow policy if the queue is full.
+	 *
+	 * @param command
+	 *            Command to add.
+	 */
+	void offer(DatabaseCommand command) {
+		if (!spilling && ring.offer(command)) {
+			afterOffer();
+			return;
+		}
+
+		switch (overflowPolicy) {
+			case BLOCK:
+				while (!ring.offer(command)) {
+					signalConsumer();
+					LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+					if (Thread.currentThread().isInterrupted()) {
+						droppedCommands.incrementAndGet();
+						return;
+					}
+				}
+				afterOffer();
+				break;
+			case DROP_OLDEST:
+				while (!ring.offer(command)) {
+					if (ring.poll() != null) {
+						droppedCommands.incrementAndGet();
+					}
+				}
+				afterOffer();
+				break;
+			case SPILL:
+				spill(command);
+				break;
+		}
+	}
+
+	/**
+	 * Removes and returns the next command, without waiting. Must only be called by the single consumer thread.
+	 *
+	 * @return The next command, or <code>null</code> if there is none.
+	 */
+	DatabaseCommand poll() {
+		while (true) {
+			if (drainInput != null) {
+				DatabaseCommand command = readDrainedCommand();
+				if (command != null) {
+					return command;
+				}
+			}
+
+			DatabaseCommand command = ring.poll();
+			if (command != null || !spilling || !takeOverSpillFile()) {
+				return command;
+			}
+		}
+	}
+
+	/**
+	 * Removes and returns the next command, waiting up to the given time for a command to arrive. Must only be called
+	 * by the single consumer thread.
+	 *
+	 * @param timeout
+	 *            Maximum time to wait.
+	 * @param unit
+	 *            Unit of the timeout.
+	 * @return The next command, or <code>null</code> if none arrived in time.
+	 *
+	 * @throws InterruptedException
+	 *             If the consumer thread has been interrupted.
+	 */
+	DatabaseCommand poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			DatabaseCommand command = poll();
+			if (command != null) {
+				return command;
+			}
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return null;
+			}
+			await(remaining);
+		}
+	}
+
+	/**
+	 * Removes and returns the next command, waiting for one to arrive if required. Must only be called by the single
+	 * consumer thread.
+	 *
+	 * @return The next command.
+	 *
+	 * @throws InterruptedException
+	 *             If the consumer thread has been interrupted.
+	 */
+	DatabaseCommand take() throws InterruptedException {
+		while (true) {
+			DatabaseCommand command = poll();
+			if (command != null) {
+				return command;
+			}
+			await(Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Closes any open spill files. Commands not yet taken from a spill file remain there and are read again by the
+	 * next queue created for the same directory.
+	 */
+	void close() {
+		spillLock.lock();
+		try {
+			closeQuietly(spillOutput);
+			spillOutput = null;
+		}
+		finally {
+			spillLock.unlock();
+		}
+		closeQuietly(drainInput);
+		drainInput = null;
+	}
+
+	int getDepth() {
+		return ring.size();
+	}
+
+	int getCapacity() {
+		return ring.capacity();
+	}
+
+	long getHighWaterMark() {
+		return highWaterMark.get();
+	}
+
+	long getDroppedCommands() {
+		return droppedCommands.get();
+	}
+
+	long getSpilledCommands() {
+		return spilledCommands.get();
+	}
+
+	long getPendingSpilledCommands() {
+		return pendingSpilledCommands.get();
+	}
+
+	private void afterOffer() {
+		long depth = ring.size();
+		long max;
+		while (depth > (max = highWaterMark.get())) {
+			if (highWaterMark.compareAndSet(max, depth)) {
+				break;
+			}
+		}
+		signalConsumer();
+	}
+
+	private void signalConsumer() {
+		if (consumerWaiting) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	private void await(long nanos) throws InterruptedException {
+		consumer = Thread.currentThread();
+		consumerWaiting = true;
+		try {
+			// re-check after announcing that we wait, so no wake-up can be lost
+			if (ring.isEmpty() && !spilling && drainInput == null) {
+				LockSupport.parkNanos(this, nanos);
+			}
+		}
+		finally {
+			consumerWaiting = false;
+		}
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	private void spill(DatabaseCommand command) {
+		spillLock.lock();
+		try {
+			// buffer could have been drained in the meantime
+			if (!spilling && ring.offer(command)) {
+				afterOffer();
+				return;
+			}
+			spilling = true;
+			if (spillOutput == null) {
+				spillOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile, true)));
+			}
+			command.writeTo(spillOutput);
+			spilledCommands.incrementAndGet();
+			pendingSpilledCommands.incrementAndGet();
+		}
+		catch (IOException e) {
+			LOG.error("Could not write log command to spill file, dropping it", e);
+			droppedCommands.incrementAndGet();
+		}
+		finally {
+			spillLock.unlock();
+		}
+		signalConsumer();
+	}
+
+	/**
+	 * Called by the consumer when the ring buffer is empty while spilling. Renames the spill file to the drain file,
+	 * so producers can use the ring buffer again, and opens the drain file for reading.
+	 */
+	private boolean takeOverSpillFile() {
+		if (drainFile.exists()) {
+			// left over by a previous process
+			return openDrainFile();
+		}
+
+		spillLock.lock();
+		try {
+			if (!ring.isEmpty()) {
+				return true;
+			}
+			closeQuietly(spillOutput);
+			spillOutput = null;
+			if (spillFile.exists() && !spillFile.renameTo(drainFile)) {
+				LOG.error("Could not rename log spill file " + spillFile + ", spilled log commands are lost");
+				spillFile.delete();
+			}
+			spilling = false;
+		}
+		finally {
+			spillLock.unlock();
+		}
+
+		return openDrainFile();
+	}
+
+	private boolean openDrainFile() {
+		if (!drainFile.exists()) {
+			return false;
+		}
+		try {
+			drainInput = new DataInputStream(new BufferedInputStream(new FileInputStream(drainFile)));
+			return true;
+		}
+		catch (IOException e) {
+			LOG.error("Could not open log spill file " + drainFile + ", spilled log commands are lost", e);
+			drainFile.delete();
+			return false;
+		}
+	}
+
+	private DatabaseCommand readDrainedCommand() {
+		try {
+			DatabaseCommand command = DatabaseCommand.readFrom(drainInput);
+			if (pendingSpilledCommands.get() > 0) {
+				pendingSpilledCommands.decrementAndGet();
+			}
+			return command;
+		}
+		catch (EOFException e) {
+			// regular end of file
+		}
+		catch (IOException e) {
+			LOG.error("Could not read log spill file " + drainFile + ", remaining spilled log commands are lost", e);
+		}
+		closeQuietly(drainInput);
+		drainInput = null;
+		drainFile.delete();
+		return null;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			}
+			catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+}
@@ -3,26 +3,24 @@ package org.aludratest.cloud.web.impl.logdb;
 import java.io.File;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import javax.annotation.PostConstruct;
-import javax.sql.rowset.CachedRowSet;
 
 import org.aludratest.cloud.event.ManagedResourceRequestCanceledEvent;
 import org.aludratest.cloud.event.ManagedResourceRequestEvent;
 import org.aludratest.cloud.event.ManagedResourceRequestStateChangedEvent;
 import org.aludratest.cloud.event.ResourceRequestReceivedEvent;
 import org.aludratest.cloud.manager.ManagedResourceRequest;
-import org.aludratest.cloud.manager.ResourceManager;
-import org.aludratest.cloud.request.ResourceRequest;
 import org.aludratest.cloud.resource.Resource;
-import org.aludratest.cloud.resource.ResourceType;
+import org.aludratest.cloud.web.impl.metrics.Histogram;
+import org.aludratest.cloud.web.impl.metrics.MetricsRegistry;
+import org.aludratest.cloud.web.impl.monitoring.WorkingResourceCounters;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.event.ContextClosedEvent;
@@ -32,8 +30,13 @@ import org.springframework.util.StringUtils;
 
 /**
  * Component hosting the DatabaseRequestLogger thread and reacting to resource
- * request events (logging them into the internal Derby DB). Also forwards the
- * <code>populateQuery()</code> method.
+ * request events (logging them into the internal Derby DB). Also gives access
+ * to the logged data via {@link #openQuery(String)}, which returns a
+ * {@link LogQueryCursor} streaming the query results. <br>
+ * <br>
+ * If <code>acm.db.log.sink</code> is set to <code>journal</code>, events are
+ * first appended to a memory-mapped {@link JournalRequestLogSink journal} and
+ * written to the database by a replay thread.
  *
  * @author falbrech
  *
@@ -43,8 +46,14 @@ public class LogDb {
 
 	private DatabaseRequestLogger requestLogger;
 
+	private RequestLogSink requestLogSink;
+
 	private Thread requestLoggerThread;
 
+	private Thread journalReplayThread;
+
+	private Thread rollupBackfillThread;
+
 	private LogDbAccess db;
 
 	@Value("${acm.db.home:}")
@@ -53,13 +62,87 @@ public class LogDb {
 	@Value("${acm.db.port:}")
 	private Integer port;
 
-	private Map<ResourceRequest, Long> requestDbIds = new HashMap<>();
+	@Value("${acm.db.pool.maxTotal:" + LogDbAccess.DEFAULT_POOL_MAX_TOTAL + "}")
+	private int poolMaxTotal;
+
+	@Value("${acm.db.pool.maxIdle:" + LogDbAccess.DEFAULT_POOL_MAX_IDLE + "}")
+	private int poolMaxIdle;
+
+	@Value("${acm.db.pool.maxWaitMillis:" + LogDbAccess.DEFAULT_POOL_MAX_WAIT_MILLIS + "}")
+	private long poolMaxWaitMillis;
+
+	@Value("${acm.db.pool.maxConnLifetimeMillis:" + LogDbAccess.DEFAULT_POOL_MAX_CONN_LIFETIME_MILLIS + "}")
+	private long poolMaxConnLifetimeMillis;
+
+	@Value("${acm.db.log.batchSize:100}")
+	private int logBatchSize;
+
+	@Value("${acm.db.log.lingerMillis:20}")
+	private long logLingerMillis;
+
+	@Value("${acm.db.log.queueCapacity:" + DatabaseRequestLogger.DEFAULT_QUEUE_CAPACITY + "}")
+	private int logQueueCapacity;
+
+	@Value("${acm.db.log.overflowPolicy:BLOCK}")
+	private LogOverflowPolicy logOverflowPolicy;
+
+	@Value("${acm.db.log.sink:derby}")
+	private String logSink;
+
+	@Value("${acm.db.log.journal.records:32768}")
+	private int journalRecords;
+
+	@Value("${acm.db.log.requestIdTtlHours:24}")
+	private long requestIdTtlHours;
+
+	@Value("${acm.db.log.queryCache.maxBytes:16777216}")
+	private long queryCacheMaxBytes;
+
+	@Value("${acm.db.log.queryCache.stableTtlMinutes:60}")
+	private long queryCacheStableTtlMinutes;
+
+	@Value("${acm.db.log.query.timeoutSeconds:60}")
+	private int queryTimeoutSeconds;
+
+	@Value("${acm.db.log.query.maxRows:100000}")
+	private int queryMaxRows;
+
+	@Value("${acm.db.log.query.maxEstimatedCost:1000000}")
+	private double queryMaxEstimatedCost;
+
+	@Value("${acm.db.log.query.maxConcurrent:2}")
+	private int queryMaxConcurrent;
 
-	private ResourceManager resourceManager;
+	@Value("${acm.db.log.retention.days:0}")
+	private int retentionDays;
+
+	@Value("${acm.db.log.retention.batchSize:500}")
+	private int retentionBatchSize;
+
+	@Value("${acm.db.log.retention.intervalHours:24}")
+	private long retentionIntervalHours;
+
+	@Value("${acm.db.log.retention.defragment:false}")
+	private boolean retentionDefragment;
+
+	private RequestLogIdRegistry requestDbIds;
+
+	private LogArchive logArchive;
+
+	private ScheduledExecutorService retentionExecutor;
+
+	private LogQueryGovernor queryGovernor;
+
+	private LogQueryCache queryCache;
+
+	private WorkingResourceCounters workingResourceCounters;
+
+	private MetricsRegistry metricsRegistry;
 
 	@Autowired
-	public LogDb(ResourceManager resourceManager) {
-		this.resourceManager = resourceManager;
+	public LogDb(WorkingResourceCounters workingResourceCounters, MetricsRegistry metricsRegistry) {
+		this.workingResourceCounters = workingResourceCounters;
+		this.metricsRegistry = metricsRegistry;
 	}
 
 	@PostConstruct
@@ -69,24 +152,117 @@ public class LogDb {
 			acmDbHome = new File(new File(System.getProperty("user.home")), ".atcloudmanager/db").getAbsolutePath();
 		}
 
+		requestDbIds = new RequestLogIdRegistry(requestIdTtlHours, TimeUnit.HOURS);
+
 		File f = new File(acmDbHome);
 		if (!f.isDirectory()) {
 			f.mkdirs();
 		}
 
 		try {
-			db = new LogDbAccess(f, port);
-			requestLogger = new DatabaseRequestLogger(db);
+			db = new LogDbAccess(f, port, poolMaxTotal, poolMaxIdle, poolMaxWaitMillis, poolMaxConnLifetimeMillis);
+			requestLogger = new DatabaseRequestLogger(db, logBatchSize, logLingerMillis, logQueueCapacity,
+					logOverflowPolicy, new File(f, "spill"));
+			requestLogSink = requestLogger;
+			// log entries are no longer updated once their request ID is no longer tracked
+			queryCache = new LogQueryCache(queryCacheMaxBytes, TimeUnit.HOURS.toMillis(requestIdTtlHours),
+					TimeUnit.MINUTES.toMillis(queryCacheStableTtlMinutes), requestLogger::getWriteEpoch);
+			queryGovernor = new LogQueryGovernor(db, queryTimeoutSeconds, queryMaxRows, queryMaxEstimatedCost,
+					queryMaxConcurrent);
 			requestLoggerThread = new Thread(requestLogger);
 			requestLoggerThread.start();
+
+			if ("journal".equalsIgnoreCase(logSink)) {
+				JournalRequestLogSink journalSink = new JournalRequestLogSink(requestLogger,
+						new File(f, "request.journal"), journalRecords);
+				journalReplayThread = new Thread(journalSink, "acm-journal-replay");
+				journalReplayThread.start();
+				requestLogSink = journalSink;
+				metricsRegistry.registerGauge("acm_logdb_journal_pending_records",
+						"Request journal records not yet written to the log database", journalSink::getPendingRecords);
+			}
+			else if (!"derby".equalsIgnoreCase(logSink)) {
+				throw new IllegalArgumentException("Invalid value for acm.db.log.sink: " + logSink);
+			}
+
+			rollupBackfillThread = new Thread(new RollupBackfill(db, this::oldLogEntriesChanged),
+					"acm-rollup-backfill");
+			rollupBackfillThread.setDaemon(true);
+			rollupBackfillThread.start();
+
+			logArchive = new LogArchive(new File(f, "archive"));
+			if (retentionDays > 0) {
+				retentionExecutor = Executors.newSingleThreadScheduledExecutor((r) -> {
+					Thread t = new Thread(r, "acm-log-retention");
+					t.setDaemon(true);
+					return t;
+				});
+				LogRetention retention = new LogRetention(db, logArchive, retentionDays, retentionBatchSize,
+						retentionDefragment, this::oldLogEntriesChanged);
+				retentionExecutor.scheduleWithFixedDelay(retention, 1, TimeUnit.HOURS.toMinutes(retentionIntervalHours),
+						TimeUnit.MINUTES);
+			}
+
+			registerMetrics();
 		}
 		catch (Exception e) {
 			throw new UndeclaredThrowableException(e);
 		}
 	}
 
+	/**
+	 * Called by maintenance jobs after they have changed log entries which the request logger no longer changes.
+	 */
+	private void oldLogEntriesChanged() {
+		requestLogger.advanceWriteEpoch();
+		queryCache.invalidateAll();
+	}
+
+	private void registerMetrics() {
+		MetricsRegistry m = metricsRegistry;
+		DatabaseRequestLogger logger = requestLogger;
+		LogDbAccess database = db;
+		m.registerGauge("acm_logdb_queue_depth", "Log commands waiting in the in-memory queue", logger::getQueueDepth);
+		m.registerGauge("acm_logdb_queue_capacity", "Capacity of the in-memory log command queue",
+				logger::getQueueCapacity);
+		m.registerGauge("acm_logdb_queue_high_water_mark", "Maximum depth of the in-memory log command queue",
+				logger::getQueueHighWaterMark);
+		m.registerCounter("acm_logdb_dropped_commands_total", "Log commands dropped because the queue was full",
+				logger::getDroppedCommands);
+		m.registerCounter("acm_logdb_spilled_commands_total", "Log commands spilled to disk because the queue was full",
+				logger::getSpilledCommands);
+		m.registerHistogram("acm_logdb_batch_size", "Log commands written per database transaction",
+				MetricsRegistry.SIZE_BOUNDS, 1, logger.getBatchSizes());
+		m.registerHistogram("acm_logdb_commit_duration_seconds", "Time to write and commit a batch of log commands",
+				MetricsRegistry.LATENCY_SECONDS_BOUNDS, MetricsRegistry.MICROS_TO_SECONDS,
+				logger.getCommitLatenciesMicros());
+		m.registerHistogram("acm_logdb_statement_duration_seconds",
+				"Time to execute a single statement on a pooled log database connection",
+				MetricsRegistry.LATENCY_SECONDS_BOUNDS, MetricsRegistry.MICROS_TO_SECONDS,
+				database.getStatementLatencyMicros());
+		m.registerHistogram("acm_logdb_connection_borrow_seconds",
+				"Time to borrow a pooled log database connection", MetricsRegistry.LATENCY_SECONDS_BOUNDS,
+				MetricsRegistry.MICROS_TO_SECONDS, database.getBorrowWaitMicros());
+		m.registerGauge("acm_logdb_connections_active", "Pooled log database connections currently borrowed",
+				() -> database.getPoolStatistics().getActiveConnections());
+		m.registerGauge("acm_logdb_connections_idle", "Idle pooled log database connections",
+				() -> database.getPoolStatistics().getIdleConnections());
+	}
+
 	@EventListener
 	public void handleContextClosed(ContextClosedEvent event) {
+		if (retentionExecutor != null) {
+			retentionExecutor.shutdownNow();
+			retentionExecutor = null;
+		}
+		if (rollupBackfillThread != null) {
+			rollupBackfillThread.interrupt();
+			rollupBackfillThread = null;
+		}
+		if (journalReplayThread != null) {
+			journalReplayThread.interrupt();
+			journalReplayThread = null;
+		}
 		if (requestLoggerThread != null) {
 			requestLoggerThread.interrupt();
 			requestLoggerThread = null;
@@ -100,9 +276,11 @@ public class LogDb {
 
 	@EventListener
 	public void handleResourceRequestReceivedEvent(ResourceRequestReceivedEvent event) {
-		long dbRequestId = requestLogger.createRequestLog(event.getRequest().getRequestingUser(),
+		long dbRequestId = requestLogSink.createRequestLog(event.getRequest().getRequestingUser(),
 				event.getRequest().getJobName());
-		requestDbIds.put(event.getRequest(), dbRequestId);
+		if (dbRequestId >= 0) {
+			requestDbIds.register(event.getRequest(), dbRequestId);
+		}
 	}
 
 	@EventListener
@@ -117,15 +295,17 @@ public class LogDb {
 				case WORKING:
 					Resource resource = getSafeResource(event);
 					if (resource != null) {
-						requestLogger.updateRequestLogWorkStarted(dbRequestId.longValue(), resource.getResourceType().getName(),
+						requestLogSink.updateRequestLogWorkStarted(dbRequestId.longValue(), resource.getResourceType().getName(),
 								resource.toString());
 					}
 					break;
 				case ORPHANED:
 				case FINISHED:
+					requestDbIds.remove(event.getRequest());
 					resource = getSafeResource(event);
-					int cnt = resource != null ? countRemainingResources(resource.getResourceType()) : 0;
-					requestLogger.updateRequestLogWorkDone(dbRequestId.longValue(), event.getNewState().toString(), cnt);
+					int cnt = resource != null ? workingResourceCounters.getWorkingCount(resource.getResourceType())
+							: 0;
+					requestLogSink.updateRequestLogWorkDone(dbRequestId.longValue(), event.getNewState().toString(), cnt);
 					break;
 			}
 		}
@@ -133,16 +313,142 @@ public class LogDb {
 
 	@EventListener
 	public void handleResourceRequestCanceledEvent(ManagedResourceRequestCanceledEvent event) {
-		Long dbRequestId = requestDbIds.get(event.getRequest());
+		Long dbRequestId = requestDbIds.remove(event.getRequest());
 		if (dbRequestId != null) {
 			Resource resource = getSafeResource(event);
-			int cnt = resource != null ? countRemainingResources(resource.getResourceType()) : 0;
-			requestLogger.updateRequestLogWorkDone(dbRequestId.longValue(), "CANCELED", cnt);
+			int cnt = resource != null ? workingResourceCounters.getWorkingCount(resource.getResourceType()) : 0;
+			requestLogSink.updateRequestLogWorkDone(dbRequestId.longValue(), "CANCELED", cnt);
 		}
 	}
 
-	public CachedRowSet populateQuery(String query) throws SQLException {
-		return db.populateQuery(query);
+	/**
+	 * Runs the given query and returns an open cursor on its results, see {@link LogDbAccess#openQuery(String)}.
+	 *
+	 * @param query
+	 *            SQL query to execute.
+	 * @return An open cursor on the query results, which must be closed by the caller.
+	 * @throws SQLException
+	 *             If a database exception occurs, e.g. invalid query.
+	 */
+	public LogQueryCursor openQuery(String query) throws SQLException {
+		return db.openQuery(query);
+	}
+
+	/**
+	 * Runs the given parameterized query and returns an open cursor on its results, see
+	 * {@link LogDbAccess#openQuery(String, Object...)}.
+	 *
+	 * @param query
+	 *            SQL query to execute, using <code>?</code> for parameters.
+	 * @param parameters
+	 *            Parameter values.
+	 * @return An open cursor on the query results, which must be closed by the caller.
+	 * @throws SQLException
+	 *             If a database exception occurs, e.g. invalid query.
+	 */
+	public LogQueryCursor openQuery(String query, Object... parameters) throws SQLException {
+		return db.openQuery(query, parameters);
+	}
+
+	/**
+	 * Returns the request logger writing log entries to the database, e.g. to query its queue statistics.
+	 *
+	 * @return The request logger writing log entries to the database.
+	 */
+	public DatabaseRequestLogger getRequestLogger() {
+		return requestLogger;
+	}
+
+	/**
+	 * Returns the sink receiving request log events, i.e. the request logger itself, or a journal in front of it.
+	 *
+	 * @return The sink receiving request log events.
+	 */
+	public RequestLogSink getRequestLogSink() {
+		return requestLogSink;
+	}
+
+	/**
+	 * Returns the archive containing request log entries which have been removed from the log database after the
+	 * configured retention period.
+	 *
+	 * @return The archive of old request log entries.
+	 */
+	public LogArchive getLogArchive() {
+		return logArchive;
+	}
+
+	/**
+	 * Returns the governor which executes ad-hoc log queries.
+	 *
+	 * @return The governor which executes ad-hoc log queries.
+	 */
+	public LogQueryGovernor getQueryGovernor() {
+		return queryGovernor;
+	}
+
+	/**
+	 * Returns the cache for serialized log query results.
+	 *
+	 * @return The cache for serialized log query results.
+	 */
+	public LogQueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Returns the number of active requests for which the log entry ID is currently tracked.
+	 *
+	 * @return The number of active requests for which the log entry ID is currently tracked.
+	 */
+	public int getTrackedRequestCount() {
+		return requestDbIds.size();
+	}
+
+	/**
+	 * Returns the number of tracked requests which have been evicted because they did not reach a terminal state
+	 * within the configured time to live.
+	 *
+	 * @return The number of tracked requests evicted after their time to live.
+	 */
+	public long getEvictedRequestCount() {
+		return requestDbIds.getEvictedEntries();
+	}
+
+	/**
+	 * Returns the distribution of the number of log commands written per database transaction.
+	 *
+	 * @return The distribution of the number of log commands written per database transaction.
+	 */
+	public Histogram getLogBatchSizes() {
+		return requestLogger.getBatchSizes();
+	}
+
+	/**
+	 * Returns the distribution of the time, in microseconds, taken to write and commit a batch of log commands.
+	 *
+	 * @return The distribution of the time taken to write and commit a batch of log commands.
+	 */
+	public Histogram getLogCommitLatenciesMicros() {
+		return requestLogger.getCommitLatenciesMicros();
+	}
+
+	/**
+	 * Returns a snapshot of the statistics of the log database connections.
+	 *
+	 * @return A snapshot of the statistics of the log database connections.
+	 */
+	public ConnectionPoolStatistics getConnectionPoolStatistics() {
+		return db.getPoolStatistics();
+	}
+
+	/**
+	 * Returns the distribution of the time, in microseconds, taken to borrow a pooled log database connection.
+	 *
+	 * @return The distribution of the time taken to borrow a pooled log database connection.
+	 */
+	public Histogram getConnectionBorrowWaitMicros() {
+		return db.getBorrowWaitMicros();
 	}
 
 	private Resource getSafeResource(ManagedResourceRequestEvent event) {
@@ -159,18 +465,4 @@ public class LogDb {
 		return null;
 	}
 
-	private int countRemainingResources(ResourceType resourceType) {
-		Iterator<? extends ManagedResourceRequest> iter = resourceManager.getManagedRequests();
-		int cnt = 0;
-		while (iter.hasNext()) {
-			ManagedResourceRequest request = iter.next();
-			if (resourceType.equals(request.getRequest().getResourceType())
-					&& request.getState() == ManagedResourceRequest.State.WORKING) {
-				cnt++;
-			}
-		}
-
-		return cnt;
-	}
-
 }
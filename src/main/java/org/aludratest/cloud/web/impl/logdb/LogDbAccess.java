@@ -19,13 +19,18 @@ import java.io.File;
 import java.net.InetAddress;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sql.DataSource;
-import javax.sql.rowset.CachedRowSet;
 
+import org.aludratest.cloud.web.impl.metrics.Histogram;
 import org.apache.commons.dbcp2.ConnectionFactory;
 import org.apache.commons.dbcp2.DataSourceConnectionFactory;
 import org.apache.commons.dbcp2.PoolableConnection;
@@ -49,11 +54,69 @@ public class LogDbAccess {
 
 	private static final String DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
 
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	private static final int QUERY_FETCH_SIZE = 200;
+
+	/**
+	 * Default maximum number of pooled reader connections.
+	 */
+	public static final int DEFAULT_POOL_MAX_TOTAL = 8;
+
+	/**
+	 * Default maximum number of idle pooled reader connections.
+	 */
+	public static final int DEFAULT_POOL_MAX_IDLE = 4;
+
+	/**
+	 * Default maximum time, in milliseconds, to wait for a pooled reader connection.
+	 */
+	public static final long DEFAULT_POOL_MAX_WAIT_MILLIS = 10000;
+
+	/**
+	 * Default maximum lifetime, in milliseconds, of a pooled reader connection.
+	 */
+	public static final long DEFAULT_POOL_MAX_CONN_LIFETIME_MILLIS = 1000l * 60 * 10;
+
 	private NetworkServerControl server;
 
+	private GenericObjectPool<PoolableConnection> pool;
+
 	private DataSource dataSource;
 
+	private Histogram borrowWaitMicros = new Histogram();
+
+	private Histogram statementLatencyMicros = new Histogram();
+
+	private AtomicLong writerConnectionsOpened = new AtomicLong();
+
 	LogDbAccess(File configDir, Integer port) throws Exception {
+		this(configDir, port, DEFAULT_POOL_MAX_TOTAL, DEFAULT_POOL_MAX_IDLE, DEFAULT_POOL_MAX_WAIT_MILLIS,
+				DEFAULT_POOL_MAX_CONN_LIFETIME_MILLIS);
+	}
+
+	/**
+	 * Creates a new accessor to the internal Derby database, with a pool of reader connections configured by the given
+	 * parameters.
+	 *
+	 * @param configDir
+	 *            Directory to store the database files in.
+	 * @param port
+	 *            Port to start a Derby network server on, or <code>null</code> to not start a network server.
+	 * @param poolMaxTotal
+	 *            Maximum number of pooled reader connections.
+	 * @param poolMaxIdle
+	 *            Maximum number of idle pooled reader connections.
+	 * @param poolMaxWaitMillis
+	 *            Maximum time, in milliseconds, to wait for a pooled reader connection if all are in use.
+	 * @param poolMaxConnLifetimeMillis
+	 *            Maximum lifetime, in milliseconds, of a pooled reader connection.
+	 *
+	 * @throws Exception
+	 *             If the Derby driver could not be loaded or the network server could not be started.
+	 */
+	LogDbAccess(File configDir, Integer port, int poolMaxTotal, int poolMaxIdle, long poolMaxWaitMillis,
+			long poolMaxConnLifetimeMillis) throws Exception {
 		File derbyDir = new File(configDir, "derby");
 		derbyDir.mkdirs();
 		System.setProperty("derby.system.home", derbyDir.getAbsolutePath());
@@ -65,6 +128,8 @@ public class LogDbAccess {
 			server = new NetworkServerControl(InetAddress.getByName("0.0.0.0"), port);
 			server.start(null);
 		}
+
+		createPool(poolMaxTotal, poolMaxIdle, poolMaxWaitMillis, poolMaxConnLifetimeMillis);
 	}
 
 	public boolean isDatabaseExisting() {
@@ -85,6 +150,11 @@ public class LogDbAccess {
 	 * Shuts the internal Derby database down. Any exceptions during shutdown are ignored.
 	 */
 	public void shutdown() {
+		try {
+			pool.close();
+		}
+		catch (Exception e) {
+		}
 		try {
 			DriverManager.getConnection("jdbc:derby:;shutdown=true");
 		}
@@ -99,61 +169,198 @@ public class LogDbAccess {
 		}
 	}
 
-	private Connection getConnection() throws SQLException {
-		if (dataSource == null) {
-			EmbeddedDataSource ds = new EmbeddedDataSource();
-			ds.setDatabaseName("acm");
-			ConnectionFactory connectionFactory = new DataSourceConnectionFactory(ds);
-			PoolableConnectionFactory objFactory = new PoolableConnectionFactory(connectionFactory, null);
-			objFactory.setValidationQuery("VALUES 1");
-			objFactory.setDefaultAutoCommit(true);
-			// max 10 minutes lifetime
-			objFactory.setMaxConnLifetimeMillis(1000l * 60 * 10);
-			// must be fast, because is local
-			objFactory.setValidationQueryTimeout(5);
+	/**
+	 * Opens a new, unpooled connection to the internal Derby database, with auto
+	 * commit disabled and a cache of prepared statements. This is intended for
+	 * long-lived use by a single writer thread; the caller is responsible for
+	 * committing and closing the connection.
+	 *
+	 * @return A new writer connection to the internal Derby database.
+	 *
+	 * @throws SQLException
+	 *             If the connection could not be opened.
+	 */
+	public WriterConnection openWriterConnection() throws SQLException {
+		WriterConnection connection = new WriterConnection(createEmbeddedDataSource().getConnection());
+		writerConnectionsOpened.incrementAndGet();
+		return connection;
+	}
 
-			GenericObjectPool<PoolableConnection> pool = new GenericObjectPool<PoolableConnection>(objFactory);
-			pool.setMaxIdle(2);
-			dataSource = new PoolingDataSource<PoolableConnection>(pool);
+	/**
+	 * Opens a new, unpooled connection to the internal Derby database for ad-hoc queries. The connection reads
+	 * uncommitted data, so the queries do not hold locks which could block the request logger.
+	 *
+	 * @return A new connection for ad-hoc queries, which must be closed by the caller.
+	 *
+	 * @throws SQLException
+	 *             If the connection could not be opened.
+	 */
+	Connection openAdHocConnection() throws SQLException {
+		Connection connection = createEmbeddedDataSource().getConnection();
+		try {
+			connection.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+			return connection;
+		}
+		catch (SQLException e) {
+			closeQuietly(connection);
+			throw e;
 		}
+	}
+
+	private EmbeddedDataSource createEmbeddedDataSource() {
+		EmbeddedDataSource ds = new EmbeddedDataSource();
+		ds.setDatabaseName("acm");
+		return ds;
+	}
+
+	private void createPool(int maxTotal, int maxIdle, long maxWaitMillis, long maxConnLifetimeMillis) {
+		ConnectionFactory connectionFactory = new DataSourceConnectionFactory(createEmbeddedDataSource());
+		PoolableConnectionFactory objFactory = new PoolableConnectionFactory(connectionFactory, null);
+		objFactory.setValidationQuery("VALUES 1");
+		objFactory.setDefaultAutoCommit(true);
+		objFactory.setMaxConnLifetimeMillis(maxConnLifetimeMillis);
+		// must be fast, because is local
+		objFactory.setValidationQueryTimeout(5);
+		// keep prepared statements per connection, so Derby does not recompile them
+		objFactory.setPoolStatements(true);
+		objFactory.setMaxOpenPrepatedStatements(50);
 
-		return dataSource.getConnection();
+		pool = new GenericObjectPool<PoolableConnection>(objFactory);
+		objFactory.setPool(pool);
+		pool.setMaxTotal(maxTotal);
+		pool.setMaxIdle(maxIdle);
+		pool.setMaxWaitMillis(maxWaitMillis);
+		// embedded connections do not break silently, so only validate idle connections in the background instead of
+		// on every borrow
+		pool.setTestOnBorrow(false);
+		pool.setTestWhileIdle(true);
+		pool.setTimeBetweenEvictionRunsMillis(60000);
+		dataSource = new PoolingDataSource<PoolableConnection>(pool);
+	}
+
+	private Connection getConnection() throws SQLException {
+		long startTime = System.nanoTime();
+		Connection connection = dataSource.getConnection();
+		borrowWaitMicros.record((System.nanoTime() - startTime) / 1000);
+		return connection;
 	}
 
 	/**
-	 * Runs and populates the given query against the internal Derby database.
+	 * Returns a snapshot of the statistics of the reader connection pool.
+	 *
+	 * @return A snapshot of the statistics of the reader connection pool.
+	 */
+	public ConnectionPoolStatistics getPoolStatistics() {
+		return new ConnectionPoolStatistics(pool.getNumActive(), pool.getNumIdle(), pool.getMaxTotal(),
+				pool.getNumWaiters(), pool.getCreatedCount(), pool.getDestroyedCount(), pool.getBorrowedCount(),
+				writerConnectionsOpened.get());
+	}
+
+	/**
+	 * Returns the distribution of the time, in microseconds, taken to borrow a connection from the reader connection
+	 * pool, including the time to create a new connection if none is idle.
+	 *
+	 * @return The distribution of the time taken to borrow a reader connection.
+	 */
+	public Histogram getBorrowWaitMicros() {
+		return borrowWaitMicros;
+	}
+
+	/**
+	 * Returns the distribution of the time, in microseconds, taken to execute a single statement on a pooled
+	 * connection, excluding the time to borrow the connection. Cursors and writer connections are not included.
+	 *
+	 * @return The distribution of the time taken to execute a single statement on a pooled connection.
+	 */
+	public Histogram getStatementLatencyMicros() {
+		return statementLatencyMicros;
+	}
+
+	/**
+	 * Runs the given query against the internal Derby database and returns an open cursor on its results. Results are
+	 * not materialized in memory, but fetched while the cursor advances.
 	 *
 	 * @param query
 	 *            SQL query to execute, usually starts with <code>SELECT</code>.
 	 *
-	 * @return A cached row set containing the full results of the query.
+	 * @return An open cursor on the query results, which must be closed by the caller.
 	 *
 	 * @throws SQLException
 	 *             If a database exception occurs, e.g. invalid query.
 	 */
-	public CachedRowSet populateQuery(String query) throws SQLException {
+	public LogQueryCursor openQuery(String query) throws SQLException {
 		Connection connection = getConnection();
 		Statement stmt = null;
 		try {
-			stmt = connection.createStatement();
-			LOG.debug("Executing QUERY: " + query);
-			ResultSet rs = stmt.executeQuery(query);
-			LOG.debug("Query execution complete.");
+			stmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(QUERY_FETCH_SIZE);
+			LOG.debug("Opening cursor for QUERY: " + query);
+			return new LogQueryCursor(connection, stmt, stmt.executeQuery(query));
+		}
+		catch (SQLException e) {
+			closeQuietly(stmt);
+			closeQuietly(connection);
+			throw e;
+		}
+	}
 
-			try {
-				CachedRowSet rowSet = (CachedRowSet) Class.forName("com.sun.rowset.CachedRowSetImpl").newInstance();
-				rowSet.populate(rs);
-				rowSet.beforeFirst();
-				return rowSet;
-			}
-			catch (SQLException se) {
-				throw se;
-			}
-			catch (Exception e) {
-				throw new SQLException(e);
+	/**
+	 * Runs the given parameterized query against the internal Derby database and returns an open cursor on its
+	 * results, which are fetched while the cursor advances.
+	 *
+	 * @param query
+	 *            SQL query to execute, using <code>?</code> for parameters.
+	 * @param parameters
+	 *            Parameter values, see {@link #bindParameters(PreparedStatement, Object[])} for supported types.
+	 *
+	 * @return An open cursor on the query results, which must be closed by the caller.
+	 *
+	 * @throws SQLException
+	 *             If a database exception occurs, e.g. invalid query.
+	 */
+	public LogQueryCursor openQuery(String query, Object... parameters) throws SQLException {
+		Connection connection = getConnection();
+		PreparedStatement stmt = null;
+		try {
+			stmt = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(QUERY_FETCH_SIZE);
+			bindParameters(stmt, parameters);
+			LOG.debug("Opening cursor for prepared QUERY: " + query);
+			return new LogQueryCursor(connection, stmt, stmt.executeQuery());
+		}
+		catch (SQLException e) {
+			closeQuietly(stmt);
+			closeQuietly(connection);
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs the given query and returns the first column of its first row as a long value.
+	 *
+	 * @param query
+	 *            SQL query to execute, e.g. <code>VALUES NEXT VALUE FOR my_sequence</code>.
+	 *
+	 * @return The first column of the first row of the query result.
+	 *
+	 * @throws SQLException
+	 *             If a database exception occurs, or the query returned no rows.
+	 */
+	public long queryLong(String query) throws SQLException {
+		Connection connection = getConnection();
+		long startTime = System.nanoTime();
+		Statement stmt = null;
+		try {
+			stmt = connection.createStatement();
+			try (ResultSet rs = stmt.executeQuery(query)) {
+				if (!rs.next()) {
+					throw new SQLException("Query returned no rows: " + query);
+				}
+				return rs.getLong(1);
 			}
 		}
 		finally {
+			statementLatencyMicros.record((System.nanoTime() - startTime) / 1000);
 			closeQuietly(stmt);
 			closeQuietly(connection);
 		}
@@ -165,6 +372,7 @@ public class LogDbAccess {
 
 	public Long executeStatement(String sql, int[] autoGenerationIndices) throws SQLException {
 		Connection connection = getConnection();
+		long startTime = System.nanoTime();
 		Statement stmt = null;
 		try {
 			stmt = connection.createStatement();
@@ -188,12 +396,44 @@ public class LogDbAccess {
 			}
 		}
 		finally {
+			statementLatencyMicros.record((System.nanoTime() - startTime) / 1000);
 			closeQuietly(stmt);
 			closeQuietly(connection);
 		}
 	}
 
-	private void closeQuietly(Statement stmt) {
+	/**
+	 * Binds the given parameter values to the given prepared statement. <code>null</code> values are bound as SQL
+	 * <code>NULL</code> of the parameter's type, {@link Timestamp} values are bound in UTC, and all other values are passed to
+	 * {@link PreparedStatement#setObject(int, Object)}.
+	 *
+	 * @param stmt
+	 *            Statement to bind the parameters to.
+	 * @param parameters
+	 *            Parameter values, may be <code>null</code> for no parameters.
+	 *
+	 * @throws SQLException
+	 *             If a parameter could not be bound.
+	 */
+	static void bindParameters(PreparedStatement stmt, Object[] parameters) throws SQLException {
+		if (parameters == null) {
+			return;
+		}
+		for (int i = 0; i < parameters.length; i++) {
+			Object value = parameters[i];
+			if (value == null) {
+				stmt.setNull(i + 1, stmt.getParameterMetaData().getParameterType(i + 1));
+			}
+			else if (value instanceof Timestamp) {
+				stmt.setTimestamp(i + 1, (Timestamp) value, Calendar.getInstance(UTC));
+			}
+			else {
+				stmt.setObject(i + 1, value);
+			}
+		}
+	}
+
+	static void closeQuietly(Statement stmt) {
 		if (stmt != null) {
 			try {
 				stmt.close();
@@ -204,7 +444,7 @@ public class LogDbAccess {
 		}
 	}
 
-	private void closeQuietly(Connection conn) {
+	static void closeQuietly(Connection conn) {
 		if (conn != null) {
 			try {
 				conn.close();
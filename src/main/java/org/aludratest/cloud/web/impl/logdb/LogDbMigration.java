@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.sql.SQLException;
+
+/**
+ * A single, numbered upgrade step of the log database schema. Applying the migration upgrades the schema from the
+ * target version of the previous migration to the target version of this migration. The action is executed within the
+ * same transaction as the update of the schema version, so it must not commit.
+ */
+final class LogDbMigration {
+
+	/**
+	 * The action performing a migration.
+	 */
+	@FunctionalInterface
+	interface Action {
+
+		void apply(WriterConnection connection) throws SQLException;
+
+	}
+
+	final int major;
+
+	final int minor;
+
+	final String description;
+
+	final Action action;
+
+	LogDbMigration(int major, int minor, String description, Action action) {
+		this.major = major;
+		this.minor = minor;
+		this.description = description;
+		this.action = action;
+	}
+
+	String getVersion() {
+		return major + "." + minor;
+	}
+
+}
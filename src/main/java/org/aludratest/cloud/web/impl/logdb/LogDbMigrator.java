@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Brings the log database schema to the current version by applying all pending {@link LogDbMigration}s in order.
+ * Each migration and the update of <code>acm_version</code> are executed within one transaction (Derby DDL is
+ * transactional), so a failed or interrupted migration leaves the schema at the previous version, and an upgrade
+ * continues with the first migration not yet applied. Migrations run before the request logger starts writing.
+ */
+final class LogDbMigrator {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LogDbMigrator.class);
+
+	/**
+	 * Schema version written when the tables are created.
+	 */
+	static final int INITIAL_MAJOR = 1;
+
+	static final int INITIAL_MINOR = 0;
+
+	private final LogDbAccess database;
+
+	private final List<LogDbMigration> migrations;
+
+	LogDbMigrator(LogDbAccess database) {
+		this(database, createMigrations());
+	}
+
+	LogDbMigrator(LogDbAccess database, List<LogDbMigration> migrations) {
+		this.database = database;
+		this.migrations = migrations;
+	}
+
+	private static List<LogDbMigration> createMigrations() {
+		List<LogDbMigration> result = new ArrayList<LogDbMigration>();
+
+		result.add(new LogDbMigration(1, 1, "request_id allocated by application from blocks of a sequence", db -> {
+			db.executeStatement("ALTER TABLE acm_request ALTER COLUMN request_id SET GENERATED BY DEFAULT");
+			// the sequence starts above all existing IDs
+			long maxId = db.queryLong("SELECT COALESCE(MAX(request_id), 0) FROM acm_request");
+			long firstBlock = maxId / LogIdAllocator.BLOCK_SIZE + 1;
+			db.executeStatement("CREATE SEQUENCE " + LogIdAllocator.SEQUENCE_NAME + " AS BIGINT START WITH "
+					+ firstBlock);
+		}));
+
+		result.add(new LogDbMigration(1, 2, "hourly usage rollups", db -> {
+			db.executeStatement(HourlyRollup.CREATE_TABLE_SQL);
+			db.executeStatement(RollupBackfill.CREATE_STATE_TABLE_SQL);
+			// requests ending from now on are added incrementally, older ones by RollupBackfill
+			db.executeUpdate("INSERT INTO " + RollupBackfill.STATE_TABLE + " VALUES (?, 0)",
+					new Timestamp(System.currentTimeMillis()));
+		}));
+
+		result.add(new LogDbMigration(1, 3, "indexes for reporting queries", db -> {
+			db.executeStatement(
+					"CREATE INDEX idx_type_start_wait ON acm_request (resource_type, start_wait_time_utc)");
+			db.executeStatement("CREATE INDEX idx_end_work_time ON acm_request (end_work_time_utc)");
+			db.executeStatement("CREATE INDEX idx_user_start_wait ON acm_request (user_name, start_wait_time_utc)");
+			// superseded by idx_user_start_wait
+			db.executeStatement("DROP INDEX idx_user_name");
+			// let the optimizer see the new indexes' cardinality
+			db.executeStatement("CALL SYSCS_UTIL.SYSCS_UPDATE_STATISTICS('APP', 'ACM_REQUEST', NULL)");
+		}));
+
+		result.add(new LogDbMigration(1, 4, "checkpoint of the request journal", db -> {
+			db.executeStatement("CREATE TABLE " + DatabaseRequestLogger.JOURNAL_CHECKPOINT_TABLE
+					+ " (journal_sequence BIGINT NOT NULL)");
+			db.executeStatement("INSERT INTO " + DatabaseRequestLogger.JOURNAL_CHECKPOINT_TABLE + " VALUES (0)");
+		}));
+
+		result.add(new LogDbMigration(1, 5, "primary key on request_id", db -> {
+			// log events may have been written more than once, e.g. after replaying a journal; merge such duplicates
+			db.executeStatement("CREATE TABLE acm_request_dedup AS SELECT * FROM acm_request WITH NO DATA");
+			db.executeStatement("INSERT INTO acm_request_dedup SELECT request_id, MIN(start_wait_time_utc), "
+					+ "MAX(start_work_time_utc), MAX(end_work_time_utc), MAX(user_name), MAX(user_source), "
+					+ "MAX(job_name), MAX(received_resource), MAX(resource_type), MAX(end_work_status), "
+					+ "MAX(cnt_active_res_after_work) FROM acm_request GROUP BY request_id HAVING COUNT(*) > 1");
+			db.executeStatement(
+					"DELETE FROM acm_request WHERE request_id IN (SELECT request_id FROM acm_request_dedup)");
+			db.executeStatement("INSERT INTO acm_request SELECT * FROM acm_request_dedup");
+			db.executeStatement("DROP TABLE acm_request_dedup");
+			db.executeStatement("ALTER TABLE acm_request ADD CONSTRAINT pk_acm_request PRIMARY KEY (request_id)");
+		}));
+
+		result.add(new LogDbMigration(1, 6, "chunked rollup backfill", db -> {
+			db.executeStatement(RollupBackfill.ADD_NEXT_START_COLUMN_SQL);
+		}));
+
+		result.add(new LogDbMigration(1, 7, "indexes for keyset paging of the request log", db -> {
+			// Derby cannot scan an index backwards, so descending pages need their own index
+			db.executeStatement("CREATE INDEX idx_start_wait_id ON acm_request (start_wait_time_utc, request_id)");
+			db.executeStatement("CREATE INDEX idx_start_wait_id_desc ON acm_request "
+					+ "(start_wait_time_utc DESC, request_id DESC)");
+			// superseded by idx_start_wait_id
+			db.executeStatement("DROP INDEX idx_start_wait_time");
+			db.executeStatement("CALL SYSCS_UTIL.SYSCS_UPDATE_STATISTICS('APP', 'ACM_REQUEST', NULL)");
+		}));
+
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Applies all migrations newer than the schema version stored in the database.
+	 *
+	 * @param expectedMajor
+	 *            Major schema version expected by the software.
+	 * @param expectedMinor
+	 *            Minor schema version expected by the software.
+	 *
+	 * @throws SQLException
+	 *             If a migration fails, or the database has a version unknown to this software, e.g. because it has
+	 *             been written by a newer version.
+	 */
+	void migrate(int expectedMajor, int expectedMinor) throws SQLException {
+		int[] version = readVersion();
+		int major = version[0];
+		int minor = version[1];
+
+		// find position of stored version in the migration chain
+		int next = -1;
+		if (major == INITIAL_MAJOR && minor == INITIAL_MINOR) {
+			next = 0;
+		}
+		for (int i = 0; i < migrations.size() && next < 0; i++) {
+			LogDbMigration m = migrations.get(i);
+			if (m.major == major && m.minor == minor) {
+				next = i + 1;
+			}
+		}
+		if (next < 0) {
+			throw new SQLException("Unsupported version of database schema: " + major + "." + minor);
+		}
+
+		for (int i = next; i < migrations.size(); i++) {
+			LogDbMigration m = migrations.get(i);
+			LOG.info("Upgrading log database schema from version " + major + "." + minor + " to " + m.getVersion()
+					+ ": " + m.description);
+			long startTime = System.currentTimeMillis();
+			try (WriterConnection connection = database.openWriterConnection()) {
+				m.action.apply(connection);
+				writeVersion(connection, m.major, m.minor);
+				connection.commit();
+			}
+			catch (SQLException e) {
+				// closing the connection has rolled back the migration
+				throw new SQLException("Could not upgrade log database schema to version " + m.getVersion()
+						+ "; schema remains at version " + major + "." + minor, e);
+			}
+			major = m.major;
+			minor = m.minor;
+			LOG.info("Upgraded log database schema to version " + m.getVersion() + " in "
+					+ (System.currentTimeMillis() - startTime) + " ms");
+		}
+
+		if (major != expectedMajor || minor != expectedMinor) {
+			throw new SQLException("Log database migrations end at version " + major + "." + minor
+					+ ", but version " + expectedMajor + "." + expectedMinor + " is expected");
+		}
+	}
+
+	private int[] readVersion() throws SQLException {
+		try (LogQueryCursor cursor = database.openQuery("SELECT major, minor FROM acm_version")) {
+			ResultSet rs = cursor.getResultSet();
+			if (!rs.next()) {
+				throw new SQLException("acm_version is empty");
+			}
+			return new int[] { rs.getInt(1), rs.getInt(2) };
+		}
+	}
+
+	/**
+	 * Writes the given schema version within the current transaction of the given connection, without committing.
+	 */
+	static void writeVersion(WriterConnection connection, int major, int minor) throws SQLException {
+		connection.executeUpdate("DELETE FROM acm_version");
+		connection.executeUpdate("INSERT INTO acm_version VALUES (?, ?)", Integer.valueOf(major),
+				Integer.valueOf(minor));
+	}
+
+}
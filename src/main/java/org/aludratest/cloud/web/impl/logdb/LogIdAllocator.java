@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Allocates IDs for new log entries on application side, using the hi/lo algorithm: A database sequence hands out
+ * block numbers ("hi"), and each block provides {@link #BLOCK_SIZE} consecutive IDs ("lo") which are handed out from
+ * memory. Only one database round trip is required per block, and IDs are known before the corresponding rows are
+ * inserted.
+ */
+final class LogIdAllocator {
+
+	/**
+	 * Number of IDs per block. Must never change for an existing database, as IDs are calculated from the block
+	 * numbers of the database sequence.
+	 */
+	static final int BLOCK_SIZE = 1000;
+
+	/**
+	 * Name of the database sequence providing the block numbers.
+	 */
+	static final String SEQUENCE_NAME = "acm_request_id_block";
+
+	private final LogDbAccess database;
+
+	private final ReentrantLock refillLock = new ReentrantLock();
+
+	private volatile Block currentBlock;
+
+	LogIdAllocator(LogDbAccess database) {
+		this.database = database;
+	}
+
+	/**
+	 * Returns the next free ID. This only queries the database when the current block of IDs is exhausted.
+	 *
+	 * @return The next free ID.
+	 *
+	 * @throws SQLException
+	 *             If a new block of IDs could not be reserved.
+	 */
+	long nextId() throws SQLException {
+		while (true) {
+			Block block = currentBlock;
+			if (block != null) {
+				long id = block.next.getAndIncrement();
+				if (id < block.limit) {
+					return id;
+				}
+			}
+
+			refillLock.lock();
+			try {
+				if (currentBlock == block) {
+					long hi = database.queryLong("VALUES NEXT VALUE FOR " + SEQUENCE_NAME);
+					currentBlock = new Block(hi * BLOCK_SIZE, (hi + 1) * BLOCK_SIZE);
+				}
+			}
+			finally {
+				refillLock.unlock();
+			}
+		}
+	}
+
+	private static final class Block {
+
+		private final AtomicLong next;
+
+		private final long limit;
+
+		private Block(long first, long limit) {
+			this.next = new AtomicLong(first);
+			this.limit = limit;
+		}
+
+	}
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+/**
+ * Policies for handling new log commands when the request logger's command queue is full.
+ */
+public enum LogOverflowPolicy {
+
+	/**
+	 * The thread enqueuing the command waits until there is space in the queue. No log entries are lost, but a slow
+	 * database slows down request processing.
+	 */
+	BLOCK,
+
+	/**
+	 * The oldest command in the queue is discarded to make room for the new one.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Commands are written to a spill file on disk until the queue has been drained, and are executed afterwards, in
+	 * their original order.
+	 */
+	SPILL
+
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Memory-capped LRU cache for the serialized results of log queries. Entries are keyed on the normalized query text
+ * (see {@link #normalize(String)}) and tagged with the write epoch of the log database at which the query was started.
+ * An entry is only returned while the write epoch is unchanged, i.e. no log entries have been committed since. <br>
+ * Queries whose time range lies entirely before the <i>stable horizon</i> are an exception: the log entries in that
+ * range are no longer changed by the request logger, so their results are kept for a longer, fixed time. Only simple
+ * queries are recognized as having such a time range: a single table, no subqueries, a <code>WHERE</code> clause
+ * which is a plain conjunction (no <code>OR</code>, <code>NOT</code> or <code>CASE</code>) containing an upper bound
+ * on a time column (<code>&lt;</code>, <code>&lt;=</code> or <code>BETWEEN</code> with timestamp literals), all
+ * timestamp literals older than the horizon, and no <code>CURRENT_TIMESTAMP</code> or similar. <br>
+ * Jobs changing old log entries, e.g. retention or the rollup backfill, must call {@link #invalidateAll()}.
+ */
+public class LogQueryCache {
+
+	private static final Pattern TIMESTAMP_LITERAL = Pattern
+			.compile("'(\\d{4}-\\d{2}-\\d{2})(?:[ tT](\\d{2}:\\d{2}(?::\\d{2}(?:\\.\\d{1,9})?)?))?'");
+
+	private static final String TIME_COLUMN = "(?:[a-z_][a-z0-9_]*\\.)?"
+			+ "(?:start_wait_time_utc|start_work_time_utc|end_work_time_utc|hour_utc)";
+
+	private static final String TIME_VALUE = "(?:''|timestamp\\s*\\(\\s*''\\s*\\))";
+
+	/**
+	 * A conjunct bounding a time column from above, in a query whose literals have been blanked.
+	 */
+	private static final Pattern UPPER_BOUND = Pattern.compile(TIME_COLUMN + "\\s*(?:<=?\\s*" + TIME_VALUE
+			+ "|between\\s+" + TIME_VALUE + "\\s+and\\s+" + TIME_VALUE + ")");
+
+	/**
+	 * Query structure which is not a single table filtered by a plain conjunction, in a query whose literals have been
+	 * blanked.
+	 */
+	private static final Pattern NOT_CONJUNCTIVE = Pattern.compile("\\b(?:or|not|case|exists|in|any|some|all|union|"
+			+ "intersect|except|join|having|current[ _](?:timestamp|date|time))\\b|\\(\\s*select\\b");
+
+	private static final Pattern SIMPLE_SELECT = Pattern.compile("select .+? from [a-z_][a-z0-9_.]*"
+			+ "(?: [a-z_][a-z0-9_]*)? where (.+?)(?: group by .*| order by .*| fetch .*| offset .*)?");
+
+	/**
+	 * Estimated fixed memory overhead per entry, in bytes.
+	 */
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private final long maxBytes;
+
+	private final long maxEntryBytes;
+
+	private final long stableAfterMillis;
+
+	private final long stableTtlMillis;
+
+	/**
+	 * Entries of queries started at an older write epoch are no longer valid, see {@link #invalidateAll()}.
+	 */
+	private volatile long minValidEpoch;
+
+	private final LongSupplier epochSource;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private long usedBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Creates a new log query cache.
+	 *
+	 * @param maxBytes
+	 *            Maximum estimated memory, in bytes, used by cached entries. A single entry may use at most one eighth of
+	 *            this. A value of 0 disables the cache.
+	 * @param stableAfterMillis
+	 *            Age, in milliseconds, after which log entries are no longer changed by the request logger.
+	 * @param stableTtlMillis
+	 *            Time, in milliseconds, to keep results of queries on log entries older than
+	 *            <code>stableAfterMillis</code>.
+	 * @param epochSource
+	 *            Source of the current write epoch of the log database, see
+	 *            {@link DatabaseRequestLogger#getWriteEpoch()}.
+	 */
+	public LogQueryCache(long maxBytes, long stableAfterMillis, long stableTtlMillis, LongSupplier epochSource) {
+		this.maxBytes = Math.max(0, maxBytes);
+		this.maxEntryBytes = this.maxBytes / 8;
+		this.stableAfterMillis = stableAfterMillis;
+		this.stableTtlMillis = stableTtlMillis;
+		this.epochSource = epochSource;
+	}
+
+	/**
+	 * Normalizes the given query text for use as cache key. Whitespace is collapsed and all text outside of quoted
+	 * literals and identifiers is converted to lower case, so queries differing only in formatting share an entry.
+	 *
+	 * @param query
+	 *            Query text to normalize.
+	 * @return The normalized query text.
+	 */
+	public static String normalize(String query) {
+		StringBuilder sb = new StringBuilder(query.length());
+		char quote = 0;
+		boolean pendingSpace = false;
+		for (int i = 0; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (quote != 0) {
+				sb.append(c);
+				if (c == quote) {
+					quote = 0;
+				}
+			}
+			else if (Character.isWhitespace(c)) {
+				pendingSpace = sb.length() > 0;
+			}
+			else {
+				if (pendingSpace) {
+					sb.append(' ');
+					pendingSpace = false;
+				}
+				if (c == '\'' || c == '"') {
+					quote = c;
+				}
+				sb.append(Character.toLowerCase(c));
+			}
+		}
+		// ignore trailing statement terminator
+		int len = sb.length();
+		if (len > 0 && sb.charAt(len - 1) == ';') {
+			sb.setLength(len - 1);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the current write epoch of the log database. Callers must read the epoch <b>before</b> executing a query
+	 * and pass it to {@link #put(String, long, String)}.
+	 *
+	 * @return The current write epoch of the log database.
+	 */
+	public long getCurrentEpoch() {
+		return epochSource.getAsLong();
+	}
+
+	/**
+	 * Returns the cached result for the given normalized query, if present and still valid.
+	 *
+	 * @param normalizedQuery
+	 *            Normalized query text, as returned by {@link #normalize(String)}.
+	 * @return The cached result, or <code>null</code> if no valid result is cached.
+	 */
+	public String get(String normalizedQuery) {
+		if (maxBytes == 0) {
+			return null;
+		}
+
+		long epoch = getCurrentEpoch();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Entry entry = entries.get(normalizedQuery);
+			if (entry != null && (entry.stable ? entry.expiryMillis <= now || entry.epoch < minValidEpoch
+					: entry.epoch != epoch)) {
+				removeEntry(normalizedQuery, entry);
+				invalidations.incrementAndGet();
+				entry = null;
+			}
+			if (entry == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return entry.result;
+		}
+	}
+
+	/**
+	 * Caches the result of the given normalized query. Results which are too large, or which have already become
+	 * outdated while the query was executed, are not cached.
+	 *
+	 * @param normalizedQuery
+	 *            Normalized query text, as returned by {@link #normalize(String)}.
+	 * @param epoch
+	 *            Write epoch read before the query was executed.
+	 * @param result
+	 *            Serialized query result.
+	 */
+	public void put(String normalizedQuery, long epoch, String result) {
+		long size = estimateSize(normalizedQuery, result);
+		if (maxBytes == 0 || size > maxEntryBytes) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		boolean stable = isStable(normalizedQuery, now - stableAfterMillis);
+		if (stable ? epoch < minValidEpoch : epoch != getCurrentEpoch()) {
+			return;
+		}
+
+		synchronized (this) {
+			Entry old = entries.get(normalizedQuery);
+			if (old != null) {
+				removeEntry(normalizedQuery, old);
+			}
+			entries.put(normalizedQuery, new Entry(result, epoch, stable, now + stableTtlMillis, size));
+			usedBytes += size;
+
+			// evict least recently used entries
+			Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+			while (usedBytes > maxBytes && iter.hasNext()) {
+				Map.Entry<String, Entry> eldest = iter.next();
+				iter.remove();
+				usedBytes -= eldest.getValue().size;
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries from this cache.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		usedBytes = 0;
+	}
+
+	/**
+	 * Invalidates all entries, including results of queries on old log entries, and the results of queries still
+	 * running. Must be called after old log entries have been changed and the write epoch has been advanced.
+	 */
+	public void invalidateAll() {
+		minValidEpoch = getCurrentEpoch();
+		synchronized (this) {
+			invalidations.addAndGet(entries.size());
+			clear();
+		}
+	}
+
+	private void removeEntry(String key, Entry entry) {
+		entries.remove(key);
+		usedBytes -= entry.size;
+	}
+
+	private static long estimateSize(String key, String result) {
+		return ENTRY_OVERHEAD + 2L * (key.length() + result.length());
+	}
+
+	/**
+	 * Checks if the given normalized query only selects log entries older than the given horizon.
+	 */
+	static boolean isStable(String normalizedQuery, long horizonMillis) {
+		// check the structure without the content of literals; IS NOT NULL is no negation of a condition
+		String blanked = normalizedQuery.replaceAll("'[^']*'", "''").replaceAll("\"[^\"]*\"", "\"\"")
+				.replace(" is not null", " is_not_null");
+		Matcher select = SIMPLE_SELECT.matcher(blanked);
+		if (!select.matches() || NOT_CONJUNCTIVE.matcher(blanked).find()) {
+			return false;
+		}
+
+		boolean bounded = false;
+		for (String conjunct : splitConjunction(select.group(1))) {
+			if (UPPER_BOUND.matcher(conjunct).matches()) {
+				bounded = true;
+			}
+		}
+		if (!bounded) {
+			return false;
+		}
+
+		Matcher m = TIMESTAMP_LITERAL.matcher(normalizedQuery);
+		while (m.find()) {
+			LocalDateTime time;
+			try {
+				time = m.group(2) == null ? LocalDate.parse(m.group(1)).atStartOfDay()
+						: LocalDateTime.parse(m.group(1) + "T" + m.group(2));
+			}
+			catch (DateTimeParseException e) {
+				return false;
+			}
+			// log times are stored in UTC
+			if (time.toInstant(ZoneOffset.UTC).toEpochMilli() >= horizonMillis) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Splits the given condition at top-level <code>AND</code>s, keeping <code>BETWEEN ... AND ...</code> together.
+	 * Parenthesized conditions are kept as a single conjunct.
+	 */
+	private static List<String> splitConjunction(String condition) {
+		List<String> result = new ArrayList<String>();
+		String[] tokens = condition.split(" ");
+		StringBuilder current = new StringBuilder();
+		int depth = 0;
+		boolean inBetween = false;
+		for (String token : tokens) {
+			if (depth == 0 && "and".equals(token) && !inBetween) {
+				result.add(current.toString().trim());
+				current.setLength(0);
+				continue;
+			}
+			if (depth == 0 && "between".equals(token)) {
+				inBetween = true;
+			}
+			else if (depth == 0 && "and".equals(token)) {
+				inBetween = false;
+			}
+			for (int i = 0; i < token.length(); i++) {
+				char c = token.charAt(i);
+				if (c == '(') {
+					depth++;
+				}
+				else if (c == ')') {
+					depth--;
+				}
+			}
+			current.append(token).append(' ');
+		}
+		result.add(current.toString().trim());
+		return result;
+	}
+
+	/**
+	 * Returns the number of lookups which returned a cached result.
+	 *
+	 * @return The number of lookups which returned a cached result.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups which did not return a cached result.
+	 *
+	 * @return The number of lookups which did not return a cached result.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the fraction of lookups which returned a cached result, or 0 if there have been no lookups yet.
+	 *
+	 * @return The fraction of lookups which returned a cached result.
+	 */
+	public double getHitRatio() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * Returns the number of entries evicted to stay within the memory limit.
+	 *
+	 * @return The number of entries evicted to stay within the memory limit.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the number of entries discarded because log entries have been written since they were cached.
+	 *
+	 * @return The number of entries discarded because log entries have been written since they were cached.
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Returns the number of currently cached entries.
+	 *
+	 * @return The number of currently cached entries.
+	 */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the estimated memory, in bytes, used by the currently cached entries.
+	 *
+	 * @return The estimated memory used by the currently cached entries.
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Returns the maximum estimated memory, in bytes, to be used by cached entries.
+	 *
+	 * @return The maximum estimated memory to be used by cached entries.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	private static final class Entry {
+
+		private final String result;
+
+		private final long epoch;
+
+		private final boolean stable;
+
+		private final long expiryMillis;
+
+		private final long size;
+
+		private Entry(String result, long epoch, boolean stable, long expiryMillis, long size) {
+			this.result = result;
+			this.epoch = epoch;
+			this.stable = stable;
+			this.expiryMillis = expiryMillis;
+			this.size = size;
+		}
+	}
+
+}
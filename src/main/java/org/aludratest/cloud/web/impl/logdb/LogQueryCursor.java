@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An open query on the internal Derby database, whose results are read from the database while iterating over the
+ * result set. The cursor holds a database connection until it is closed, so it must always be closed, preferably using
+ * a <code>try</code>-with-resources block.
+ */
+public class LogQueryCursor implements AutoCloseable {
+
+	private Connection connection;
+
+	private Statement statement;
+
+	private ResultSet resultSet;
+
+	private final int maxRows;
+
+	private int rowCount;
+
+	private boolean truncated;
+
+	private volatile boolean canceled;
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	private Runnable closeHandler;
+
+	LogQueryCursor(Connection connection, Statement statement, ResultSet resultSet) {
+		this(connection, statement, resultSet, 0, null);
+	}
+
+	LogQueryCursor(Connection connection, Statement statement, ResultSet resultSet, int maxRows,
+			Runnable closeHandler) {
+		this.connection = connection;
+		this.statement = statement;
+		this.resultSet = resultSet;
+		this.maxRows = maxRows;
+		this.closeHandler = closeHandler;
+	}
+
+	/**
+	 * Returns the result set of the query. Rows are fetched from the database as the result set advances.
+	 *
+	 * @return The result set of the query.
+	 */
+	public ResultSet getResultSet() {
+		return resultSet;
+	}
+
+	/**
+	 * Advances to the next row of the result set. In contrast to calling <code>next()</code> on the result set
+	 * directly, this respects the row limit and cancellation of governed queries.
+	 *
+	 * @return <code>true</code> if the result set is positioned on the next row, <code>false</code> if there are no more
+	 *         rows or the row limit has been reached.
+	 *
+	 * @throws SQLException
+	 *             If the query has been canceled, or a database exception occurs.
+	 */
+	public boolean next() throws SQLException {
+		if (canceled) {
+			throw new SQLException("Log query has been canceled");
+		}
+		if (maxRows > 0 && rowCount >= maxRows) {
+			truncated = truncated || resultSet.next();
+			return false;
+		}
+		if (resultSet.next()) {
+			rowCount++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns <code>true</code> if rows have been omitted from the result because the row limit has been reached.
+	 *
+	 * @return <code>true</code> if rows have been omitted from the result, <code>false</code> otherwise.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	void cancel() {
+		canceled = true;
+	}
+
+	/**
+	 * Closes the result set and statement, and returns the connection. Exceptions are ignored.
+	 */
+	@Override
+	public void close() {
+		// no monitor here, so closing the connection does not pin a virtual thread to its carrier
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			resultSet.close();
+		}
+		catch (SQLException e) {
+			// ignore
+		}
+		try {
+			statement.close();
+		}
+		catch (SQLException e) {
+			// ignore
+		}
+		try {
+			connection.close();
+		}
+		catch (SQLException e) {
+			// ignore
+		}
+		if (closeHandler != null) {
+			closeHandler.run();
+		}
+	}
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Guards the internal Derby database against expensive ad-hoc log queries. Every query governed by this object
+ * <ul>
+ * <li>runs on its own, unpooled connection reading uncommitted data, so it neither takes connections from the pool
+ * nor holds locks needed by the request logger,</li>
+ * <li>is rejected if too many governed queries are already running,</li>
+ * <li>is rejected if the optimizer's estimated cost exceeds the configured limit,</li>
+ * <li>is aborted by Derby after the configured query timeout,</li>
+ * <li>returns at most the configured number of rows, and</li>
+ * <li>can be listed and canceled while running.</li>
+ * </ul>
+ * The estimated cost is determined by compiling the query in Derby's <i>explain-only</i> XPLAIN mode, which optimizes
+ * but does not execute it. Cost units are Derby's optimizer units, roughly milliseconds.
+ */
+public class LogQueryGovernor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LogQueryGovernor.class);
+
+	private static final String XPLAIN_SCHEMA = "ACM_XPLAIN";
+
+	private static final String[] XPLAIN_TABLES = { "SYSXPLAIN_STATEMENTS", "SYSXPLAIN_RESULTSETS",
+			"SYSXPLAIN_SCAN_PROPS", "SYSXPLAIN_SORT_PROPS", "SYSXPLAIN_STATEMENT_TIMINGS",
+			"SYSXPLAIN_RESULTSET_TIMINGS" };
+
+	private final LogDbAccess database;
+
+	private final int timeoutSeconds;
+
+	private final int maxRows;
+
+	private final double maxEstimatedCost;
+
+	private final Semaphore permits;
+
+	private final int maxConcurrentQueries;
+
+	private final AtomicLong nextId = new AtomicLong();
+
+	private final Map<Long, RunningLogQuery> runningQueries = new ConcurrentHashMap<Long, RunningLogQuery>();
+
+	// XPLAIN tables are shared, so estimate one query at a time
+	private final Lock explainLock = new ReentrantLock();
+
+	private final AtomicLong rejectedQueries = new AtomicLong();
+
+	private final AtomicLong canceledQueries = new AtomicLong();
+
+	/**
+	 * Creates a new query governor.
+	 *
+	 * @param database
+	 *            Database to execute queries on.
+	 * @param timeoutSeconds
+	 *            Maximum execution time of a query, in seconds. 0 disables the timeout.
+	 * @param maxRows
+	 *            Maximum number of rows returned by a query. 0 disables the limit.
+	 * @param maxEstimatedCost
+	 *            Maximum optimizer cost estimate of a query. 0 disables the check.
+	 * @param maxConcurrentQueries
+	 *            Maximum number of governed queries running at the same time.
+	 */
+	public LogQueryGovernor(LogDbAccess database, int timeoutSeconds, int maxRows, double maxEstimatedCost,
+			int maxConcurrentQueries) {
+		this.database = database;
+		this.timeoutSeconds = Math.max(0, timeoutSeconds);
+		this.maxRows = Math.max(0, maxRows);
+		this.maxEstimatedCost = Math.max(0, maxEstimatedCost);
+		this.maxConcurrentQueries = Math.max(1, maxConcurrentQueries);
+		this.permits = new Semaphore(this.maxConcurrentQueries);
+	}
+
+	/**
+	 * Executes the given query under control of this governor and returns an open cursor on its results. The query is
+	 * listed as running until the cursor is closed. Callers must use {@link LogQueryCursor#next()} to iterate over the
+	 * results, so the row limit and cancellation take effect.
+	 *
+	 * @param query
+	 *            SQL query to execute.
+	 * @param owner
+	 *            Name of the user executing the query, for informational purposes. May be <code>null</code>.
+	 *
+	 * @return An open cursor on the query results, which must be closed by the caller.
+	 *
+	 * @throws SQLException
+	 *             If the query is rejected by this governor, times out, or a database exception occurs.
+	 */
+	public LogQueryCursor openQuery(String query, String owner) throws SQLException {
+		if (!permits.tryAcquire()) {
+			rejectedQueries.incrementAndGet();
+			throw new SQLException("Too many running log queries (maximum is " + maxConcurrentQueries + ")");
+		}
+
+		Connection connection = null;
+		Statement stmt = null;
+		RunningLogQuery running = null;
+		try {
+			connection = database.openAdHocConnection();
+
+			if (maxEstimatedCost > 0) {
+				double cost = estimateCost(connection, query);
+				if (cost > maxEstimatedCost) {
+					rejectedQueries.incrementAndGet();
+					throw new SQLException("Estimated cost of log query (" + Math.round(cost)
+							+ ") exceeds maximum of " + Math.round(maxEstimatedCost));
+				}
+			}
+
+			stmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setQueryTimeout(timeoutSeconds);
+			if (maxRows > 0) {
+				// one more row, so truncation can be detected
+				stmt.setMaxRows(maxRows + 1);
+			}
+
+			final long id = nextId.incrementAndGet();
+			running = new RunningLogQuery(id, query, owner, stmt);
+			runningQueries.put(Long.valueOf(id), running);
+
+			LOG.debug("Executing governed QUERY #" + id + ": " + query);
+			ResultSet rs = stmt.executeQuery(query);
+			LogQueryCursor cursor = new LogQueryCursor(connection, stmt, rs, maxRows, () -> {
+				runningQueries.remove(Long.valueOf(id));
+				permits.release();
+			});
+			running.setCursor(cursor);
+			return cursor;
+		}
+		catch (SQLException | RuntimeException e) {
+			if (running != null) {
+				runningQueries.remove(Long.valueOf(running.getId()));
+			}
+			LogDbAccess.closeQuietly(stmt);
+			LogDbAccess.closeQuietly(connection);
+			permits.release();
+			throw e;
+		}
+	}
+
+	private double estimateCost(Connection connection, String query) throws SQLException {
+		explainLock.lock();
+		try (Statement stmt = connection.createStatement()) {
+			try {
+				stmt.execute("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(1)");
+				stmt.execute("CALL SYSCS_UTIL.SYSCS_SET_XPLAIN_SCHEMA('" + XPLAIN_SCHEMA + "')");
+				stmt.execute("CALL SYSCS_UTIL.SYSCS_SET_XPLAIN_MODE(1)");
+				// explain-only mode: the query is compiled and optimized, but not executed
+				stmt.executeQuery(query).close();
+			}
+			finally {
+				stmt.execute("CALL SYSCS_UTIL.SYSCS_SET_XPLAIN_MODE(0)");
+				stmt.execute("CALL SYSCS_UTIL.SYSCS_SET_XPLAIN_SCHEMA('')");
+				stmt.execute("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(0)");
+			}
+
+			String sql = "SELECT MAX(est_cost) FROM " + XPLAIN_SCHEMA + ".SYSXPLAIN_RESULTSETS";
+			try (ResultSet rs = stmt.executeQuery(sql)) {
+				return rs.next() ? rs.getDouble(1) : 0;
+			}
+			finally {
+				for (String table : XPLAIN_TABLES) {
+					try {
+						stmt.executeUpdate("DELETE FROM " + XPLAIN_SCHEMA + "." + table);
+					}
+					catch (SQLException e) {
+						LOG.debug("Could not clear XPLAIN table " + table, e);
+					}
+				}
+			}
+		}
+		finally {
+			explainLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the governed queries currently running, ordered by their start time.
+	 *
+	 * @return The governed queries currently running.
+	 */
+	public List<RunningLogQuery> getRunningQueries() {
+		List<RunningLogQuery> result = new ArrayList<RunningLogQuery>(runningQueries.values());
+		result.sort(Comparator.comparingLong(RunningLogQuery::getId));
+		return result;
+	}
+
+	/**
+	 * Cancels the running query with the given ID. As embedded Derby cannot interrupt a running statement, a query
+	 * which is still computing its first row stops at the latest when its timeout elapses.
+	 *
+	 * @param id
+	 *            ID of the query to cancel.
+	 * @return <code>true</code> if a running query with this ID was found, <code>false</code> otherwise.
+	 */
+	public boolean cancel(long id) {
+		RunningLogQuery running = runningQueries.get(Long.valueOf(id));
+		if (running == null) {
+			return false;
+		}
+		LOG.info("Canceling log query #" + id + ": " + running.getQuery());
+		running.cancel();
+		canceledQueries.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns the number of queries rejected because of too many running queries or a too high estimated cost.
+	 *
+	 * @return The number of rejected queries.
+	 */
+	public long getRejectedQueries() {
+		return rejectedQueries.get();
+	}
+
+	/**
+	 * Returns the number of queries canceled through {@link #cancel(long)}.
+	 *
+	 * @return The number of canceled queries.
+	 */
+	public long getCanceledQueries() {
+		return canceledQueries.get();
+	}
+
+	/**
+	 * Returns the maximum number of rows returned by a query, or 0 if unlimited.
+	 *
+	 * @return The maximum number of rows returned by a query.
+	 */
+	public int getMaxRows() {
+		return maxRows;
+	}
+
+}
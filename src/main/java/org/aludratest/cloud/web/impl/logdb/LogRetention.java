@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Job moving old request log entries from <code>acm_request</code> to the {@link LogArchive}. Entries are archived per
+ * month of their <code>start_wait_time_utc</code>, once the whole month is older than the retention period. After the
+ * archive file of a month has been written, the month's entries are deleted from the live table in small index range
+ * batches, each in its own transaction, so neither the request logger nor queries are blocked for long. Finally, the
+ * free space of the table is compressed in place: deleted rows are purged and free pages at the end of the table are
+ * returned to the file system. Defragmenting the table, which moves rows and holds an exclusive table lock for a long
+ * time, so the request logger runs into lock timeouts, is only done if explicitly enabled.
+ */
+final class LogRetention implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LogRetention.class);
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	private final LogDbAccess database;
+
+	private final LogArchive archive;
+
+	private final int retentionDays;
+
+	private final int batchSize;
+
+	private final boolean defragment;
+
+	private final Runnable changeListener;
+
+	/**
+	 * Creates a new retention job.
+	 *
+	 * @param database
+	 *            Database to archive and delete old log entries from.
+	 * @param archive
+	 *            Archive to move old log entries to.
+	 * @param retentionDays
+	 *            Minimum age, in days, of the log entries to archive.
+	 * @param batchSize
+	 *            Approximate number of log entries to delete per transaction.
+	 * @param defragment
+	 *            If <code>true</code>, the table is also defragmented after deleting entries.
+	 * @param changeListener
+	 *            Called after log entries have been deleted, e.g. to invalidate cached query results.
+	 */
+	LogRetention(LogDbAccess database, LogArchive archive, int retentionDays, int batchSize, boolean defragment,
+			Runnable changeListener) {
+		this.database = database;
+		this.archive = archive;
+		this.retentionDays = retentionDays;
+		this.batchSize = Math.max(1, batchSize);
+		this.defragment = defragment;
+		this.changeListener = changeListener;
+	}
+
+	@Override
+	public void run() {
+		try {
+			YearMonth firstRetainedMonth = YearMonth
+					.from(Instant.now().minus(retentionDays, ChronoUnit.DAYS).atOffset(ZoneOffset.UTC));
+
+			int deleted = 0;
+			YearMonth month = getOldestMonth();
+			while (month != null && month.isBefore(firstRetainedMonth) && !Thread.currentThread().isInterrupted()) {
+				deleted += archiveMonth(month);
+				month = month.plusMonths(1);
+			}
+
+			if (deleted > 0) {
+				// purge, [defragment,] truncate end
+				database.executeStatement("CALL SYSCS_UTIL.SYSCS_INPLACE_COMPRESS_TABLE('APP', 'ACM_REQUEST', 1, "
+						+ (defragment ? 1 : 0) + ", 1)");
+			}
+		}
+		catch (SQLException | IOException e) {
+			LOG.error("Could not archive old request log entries", e);
+		}
+	}
+
+	private YearMonth getOldestMonth() throws SQLException {
+		try (LogQueryCursor cursor = database.openQuery("SELECT MIN(start_wait_time_utc) FROM acm_request")) {
+			ResultSet rs = cursor.getResultSet();
+			Timestamp ts = rs.next() ? rs.getTimestamp(1, Calendar.getInstance(UTC)) : null;
+			return ts == null ? null : YearMonth.from(ts.toInstant().atOffset(ZoneOffset.UTC));
+		}
+	}
+
+	private int archiveMonth(YearMonth month) throws SQLException, IOException {
+		Timestamp start = Timestamp.from(month.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC));
+		Timestamp end = Timestamp.from(month.plusMonths(1).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC));
+
+		// boundaries of the delete batches, each covering about batchSize rows
+		List<Timestamp> boundaries = new ArrayList<Timestamp>();
+		boundaries.add(start);
+		int count = 0;
+
+		String sql = "SELECT " + RequestLogRows.COLUMNS + " FROM acm_request "
+				+ "WHERE start_wait_time_utc >= ? AND start_wait_time_utc < ? ORDER BY start_wait_time_utc";
+		LogArchive.MonthWriter writer = archive.openWriter(month);
+		try (LogQueryCursor cursor = database.openQuery(sql, start, end)) {
+			ResultSet rs = cursor.getResultSet();
+			Calendar utc = Calendar.getInstance(UTC);
+			while (rs.next()) {
+				writer.write(rs.getLong("request_id"), RequestLogRows.toJson(rs));
+				if (++count % batchSize == 0) {
+					Timestamp ts = rs.getTimestamp("start_wait_time_utc", utc);
+					if (ts.after(boundaries.get(boundaries.size() - 1))) {
+						boundaries.add(ts);
+					}
+				}
+			}
+			writer.commit();
+		}
+		catch (UncheckedIOException e) {
+			writer.abort();
+			throw e.getCause();
+		}
+		catch (SQLException | IOException | RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+		boundaries.add(end);
+
+		if (count == 0) {
+			return 0;
+		}
+		LOG.info("Archived " + count + " request log entries of " + month + "; deleting them from the log database");
+
+		int deleted = 0;
+		try (WriterConnection connection = database.openWriterConnection()) {
+			for (int i = 0; i < boundaries.size() - 1; i++) {
+				if (Thread.currentThread().isInterrupted()) {
+					// remaining rows are archived again (without duplicates) on the next run
+					break;
+				}
+				deleted += connection.executeUpdate(
+						"DELETE FROM acm_request WHERE start_wait_time_utc >= ? AND start_wait_time_utc < ?",
+						boundaries.get(i), boundaries.get(i + 1));
+				connection.commit();
+				changeListener.run();
+			}
+		}
+		return deleted;
+	}
+
+}
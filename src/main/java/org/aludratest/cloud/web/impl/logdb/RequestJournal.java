@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of request log events, stored as a ring of fixed-size records in a memory-mapped file. Record
+ * <code>n</code> is stored in slot <code>n % capacity</code>; a slot may only be overwritten once its previous record
+ * has been written to the log database, which the caller has to ensure. <br>
+ * <br>
+ * Each record is protected by a CRC32 checksum and carries its sequence number, so after a restart, the records
+ * following the database checkpoint can be found by scanning the slots until a record is invalid or has an unexpected
+ * sequence number. As the file is memory-mapped, written records survive a crash of the process even before they are
+ * forced to disk; only an operating system crash may lose records not yet forced.
+ */
+final class RequestJournal implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RequestJournal.class);
+
+	static final int RECORD_SIZE = 1024;
+
+	static final byte TYPE_REQUEST_CREATED = 1;
+
+	static final byte TYPE_WORK_STARTED = 2;
+
+	static final byte TYPE_WORK_DONE = 3;
+
+	/**
+	 * Size of the record header: CRC32 of the remaining record bytes, and length of the payload following the header.
+	 */
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * Size of the fixed part of the payload: sequence number, log entry ID, time, int value, and record type.
+	 */
+	private static final int FIXED_PAYLOAD_SIZE = 29;
+
+	private static final int MAX_STRING_BYTES = RECORD_SIZE - HEADER_SIZE - FIXED_PAYLOAD_SIZE - 3 * 2;
+
+	private final RandomAccessFile file;
+
+	private final MappedByteBuffer buffer;
+
+	private final ByteBuffer writeBuffer;
+
+	private final ByteBuffer readBuffer;
+
+	private final int capacity;
+
+	private final byte[] recordBytes = new byte[RECORD_SIZE];
+
+	private final CRC32 crc = new CRC32();
+
+	private long nextSequence;
+
+	/**
+	 * Opens or creates the journal file. If the file exists, records following the given checkpoint are located, see
+	 * {@link #recover()}.
+	 *
+	 * @param journalFile
+	 *            Journal file to open or create.
+	 * @param capacity
+	 *            Number of records the journal can hold. Ignored if the file already exists.
+	 * @param checkpoint
+	 *            Sequence number of the last record written to the log database.
+	 *
+	 * @throws IOException
+	 *             If the journal file could not be opened or mapped.
+	 */
+	RequestJournal(File journalFile, int capacity, long checkpoint) throws IOException {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		long length = journalFile.length();
+		if (length > 0 && length % RECORD_SIZE == 0 && length / RECORD_SIZE != capacity) {
+			LOG.warn("Journal file " + journalFile + " holds " + (length / RECORD_SIZE) + " records instead of configured "
+					+ capacity + ". Keeping existing size; delete the file while no records are pending to resize it.");
+			capacity = (int) (length / RECORD_SIZE);
+		}
+		this.capacity = capacity;
+
+		file = new RandomAccessFile(journalFile, "rw");
+		try {
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD_SIZE);
+		}
+		catch (IOException e) {
+			file.close();
+			throw e;
+		}
+		writeBuffer = buffer.duplicate();
+		readBuffer = buffer.duplicate();
+		nextSequence = checkpoint + 1;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the sequence number the next appended record will receive.
+	 *
+	 * @return The sequence number the next appended record will receive.
+	 */
+	long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * Scans the journal for valid records following the checkpoint passed to the constructor, and positions the journal
+	 * after the last of them. Must be called before the first record is appended.
+	 *
+	 * @return The valid records following the checkpoint, in sequence order.
+	 */
+	List<Record> recover() {
+		List<Record> records = new ArrayList<Record>();
+		long firstSequence = nextSequence;
+		Record record;
+		while (nextSequence - firstSequence < capacity && (record = read(nextSequence)) != null) {
+			records.add(record);
+			nextSequence++;
+		}
+		return records;
+	}
+
+	/**
+	 * Appends a record to the journal. The caller must ensure that the slot of the record is no longer required, i.e.
+	 * that the record <code>capacity</code> sequence numbers before has been written to the log database, and that this
+	 * method is not invoked concurrently.
+	 *
+	 * @return The sequence number of the appended record.
+	 */
+	long append(byte type, long id, long timeMillis, int value, String s1, int maxChars1, String s2, int maxChars2,
+			String s3, int maxChars3) {
+		long sequence = nextSequence;
+		ByteBuffer record = ByteBuffer.wrap(recordBytes);
+		record.position(HEADER_SIZE);
+		record.putLong(sequence).putLong(id).putLong(timeMillis).putInt(value).put(type);
+		int budget = MAX_STRING_BYTES;
+		budget -= putString(record, s1, maxChars1, budget);
+		budget -= putString(record, s2, maxChars2, budget);
+		putString(record, s3, maxChars3, budget);
+
+		int payloadLength = record.position() - HEADER_SIZE;
+		record.putInt(4, payloadLength);
+		crc.reset();
+		crc.update(recordBytes, 4, record.position() - 4);
+		record.putInt(0, (int) crc.getValue());
+
+		writeBuffer.position(slotOffset(sequence));
+		writeBuffer.put(recordBytes, 0, record.position());
+		nextSequence = sequence + 1;
+		return sequence;
+	}
+
+	/**
+	 * Reads the record with the given sequence number. The caller must ensure that the record has been appended and its
+	 * slot is not overwritten concurrently, and that this method is not invoked concurrently.
+	 *
+	 * @param sequence
+	 *            Sequence number of the record to read.
+	 *
+	 * @return The record, or <code>null</code> if the slot of the record does not contain a valid record with this
+	 *         sequence number.
+	 */
+	Record read(long sequence) {
+		byte[] bytes = new byte[RECORD_SIZE];
+		readBuffer.position(slotOffset(sequence));
+		readBuffer.get(bytes);
+		ByteBuffer record = ByteBuffer.wrap(bytes);
+
+		int payloadLength = record.getInt(4);
+		if (payloadLength < FIXED_PAYLOAD_SIZE || payloadLength > RECORD_SIZE - HEADER_SIZE) {
+			return null;
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(bytes, 4, payloadLength + 4);
+		if ((int) checksum.getValue() != record.getInt(0)) {
+			return null;
+		}
+
+		record.position(HEADER_SIZE);
+		if (record.getLong() != sequence) {
+			return null;
+		}
+		long id = record.getLong();
+		long timeMillis = record.getLong();
+		int value = record.getInt();
+		byte type = record.get();
+		return new Record(sequence, type, id, timeMillis, value, getString(record), getString(record),
+				getString(record));
+	}
+
+	/**
+	 * Forces written records to the storage device.
+	 */
+	void force() {
+		buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		force();
+		file.close();
+	}
+
+	private int slotOffset(long sequence) {
+		return (int) (sequence % capacity) * RECORD_SIZE;
+	}
+
+	/**
+	 * Writes a string of at most <code>maxChars</code> characters and <code>budget</code> UTF-8 bytes, preceded by its
+	 * byte length. Returns the number of string bytes written, excluding the length.
+	 */
+	private static int putString(ByteBuffer record, String value, int maxChars, int budget) {
+		if (value == null) {
+			record.putShort((short) -1);
+			return 0;
+		}
+		if (value.length() > maxChars) {
+			value = value.substring(0, maxChars);
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(bytes.length, budget);
+		// do not cut within a multi-byte character
+		while (length < bytes.length && length > 0 && (bytes[length] & 0xC0) == 0x80) {
+			length--;
+		}
+		record.putShort((short) length);
+		record.put(bytes, 0, length);
+		return length;
+	}
+
+	private static String getString(ByteBuffer record) {
+		int length = record.getShort();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		record.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A record read from the journal. The meaning of the string fields depends on the record type.
+	 */
+	static final class Record {
+
+		final long sequence;
+
+		final byte type;
+
+		final long id;
+
+		final long timeMillis;
+
+		final int value;
+
+		final String s1;
+
+		final String s2;
+
+		final String s3;
+
+		private Record(long sequence, byte type, long id, long timeMillis, int value, String s1, String s2, String s3) {
+			this.sequence = sequence;
+			this.type = type;
+			this.id = id;
+			this.timeMillis = timeMillis;
+			this.value = value;
+			this.s1 = s1;
+			this.s2 = s2;
+			this.s3 = s3;
+		}
+	}
+
+}
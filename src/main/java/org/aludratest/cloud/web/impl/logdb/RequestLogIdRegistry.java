@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aludratest.cloud.request.ResourceRequest;
+
+/**
+ * Thread-safe registry of the log entry IDs of active resource requests. Requests are compared by identity, so large
+ * request objects are never hashed or compared by value. Entries are removed by {@link #remove(ResourceRequest)} when
+ * a request reaches a terminal state; entries of requests which never report a terminal state are evicted after a
+ * configurable time to live.
+ */
+final class RequestLogIdRegistry {
+
+	private final long ttlNanos;
+
+	private final Map<RequestKey, Entry> entries = new ConcurrentHashMap<RequestKey, Entry>();
+
+	private final AtomicLong lastEvictionNanos = new AtomicLong(System.nanoTime());
+
+	private final AtomicLong evictedEntries = new AtomicLong();
+
+	/**
+	 * Creates a new registry.
+	 *
+	 * @param ttl
+	 *            Time after which entries are evicted even if their request never reached a terminal state.
+	 * @param unit
+	 *            Unit of the time to live.
+	 */
+	RequestLogIdRegistry(long ttl, TimeUnit unit) {
+		this.ttlNanos = unit.toNanos(ttl);
+	}
+
+	void register(ResourceRequest request, long logId) {
+		evictExpired();
+		entries.put(new RequestKey(request), new Entry(logId, System.nanoTime()));
+	}
+
+	/**
+	 * Returns the log ID registered for the given request.
+	 *
+	 * @param request
+	 *            Request to get the log ID of.
+	 * @return The log ID registered for the request, or <code>null</code> if none is registered.
+	 */
+	Long get(ResourceRequest request) {
+		Entry entry = entries.get(new RequestKey(request));
+		return entry == null ? null : Long.valueOf(entry.logId);
+	}
+
+	/**
+	 * Removes the log ID registered for the given request.
+	 *
+	 * @param request
+	 *            Request to remove the log ID of.
+	 * @return The log ID which was registered for the request, or <code>null</code> if none was registered.
+	 */
+	Long remove(ResourceRequest request) {
+		Entry entry = entries.remove(new RequestKey(request));
+		return entry == null ? null : Long.valueOf(entry.logId);
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	long getEvictedEntries() {
+		return evictedEntries.get();
+	}
+
+	private void evictExpired() {
+		// sweep at most 10 times per time to live
+		long now = System.nanoTime();
+		long last = lastEvictionNanos.get();
+		if (now - last < ttlNanos / 10 || !lastEvictionNanos.compareAndSet(last, now)) {
+			return;
+		}
+
+		entries.values().removeIf((e) -> {
+			if (now - e.registeredNanos > ttlNanos) {
+				evictedEntries.incrementAndGet();
+				return true;
+			}
+			return false;
+		});
+	}
+
+	private static final class Entry {
+
+		private final long logId;
+
+		private final long registeredNanos;
+
+		private Entry(long logId, long registeredNanos) {
+			this.logId = logId;
+			this.registeredNanos = registeredNanos;
+		}
+
+	}
+
+	/**
+	 * Identity based key for resource requests.
+	 */
+	private static final class RequestKey {
+
+		private final ResourceRequest request;
+
+		private RequestKey(ResourceRequest request) {
+			this.request = request;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(request);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof RequestKey && ((RequestKey) obj).request == request;
+		}
+
+	}
+
+}
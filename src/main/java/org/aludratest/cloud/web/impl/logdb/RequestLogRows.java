@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.json.JSONObject;
+
+/**
+ * Conversion of <code>acm_request</code> rows to the JSON representation used by the request log REST API and the log
+ * archive.
+ */
+public final class RequestLogRows {
+
+	/**
+	 * The columns of <code>acm_request</code> which must be selected for {@link #toJson(ResultSet)}.
+	 */
+	public static final String COLUMNS = "request_id, start_wait_time_utc, start_work_time_utc, end_work_time_utc, "
+			+ "user_name, user_source, job_name, received_resource, resource_type, end_work_status, "
+			+ "cnt_active_res_after_work";
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	private RequestLogRows() {
+	}
+
+	/**
+	 * Converts the current row of the given result set, which must contain the columns listed in {@link #COLUMNS}, to
+	 * JSON. Times are converted to ISO-8601 instants; <code>NULL</code> values are omitted.
+	 *
+	 * @param rs
+	 *            Result set positioned on the row to convert.
+	 * @return The JSON representation of the row.
+	 * @throws SQLException
+	 *             If the row could not be read.
+	 */
+	public static JSONObject toJson(ResultSet rs) throws SQLException {
+		Calendar utc = Calendar.getInstance(UTC);
+		JSONObject obj = new JSONObject();
+		obj.put("requestId", rs.getLong("request_id"));
+		putTimestamp(obj, "startWaitTime", rs.getTimestamp("start_wait_time_utc", utc));
+		putTimestamp(obj, "startWorkTime", rs.getTimestamp("start_work_time_utc", utc));
+		putTimestamp(obj, "endWorkTime", rs.getTimestamp("end_work_time_utc", utc));
+		obj.putOpt("userName", rs.getString("user_name"));
+		obj.putOpt("userSource", rs.getString("user_source"));
+		obj.putOpt("jobName", rs.getString("job_name"));
+		obj.putOpt("receivedResource", rs.getString("received_resource"));
+		obj.putOpt("resourceType", rs.getString("resource_type"));
+		obj.putOpt("endWorkStatus", rs.getString("end_work_status"));
+		int cnt = rs.getInt("cnt_active_res_after_work");
+		if (!rs.wasNull()) {
+			obj.put("cntActiveResAfterWork", cnt);
+		}
+		return obj;
+	}
+
+	private static void putTimestamp(JSONObject obj, String key, Timestamp value) {
+		if (value != null) {
+			obj.put(key, value.toInstant().toString());
+		}
+	}
+
+}
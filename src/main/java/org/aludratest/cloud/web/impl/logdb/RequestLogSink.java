@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import org.aludratest.cloud.user.User;
+
+/**
+ * Receiver of request lifecycle events which end up in the <code>acm_request</code> table of the log database.
+ * Implementations must return quickly, as they are called on the request path.
+ */
+public interface RequestLogSink {
+
+	/**
+	 * Creates a new log entry for a resource request and returns its unique ID.
+	 *
+	 * @param user
+	 *            User who issued the resource request.
+	 * @param jobName
+	 *            Job name passed by the user, if any.
+	 *
+	 * @return The unique ID assigned to the log entry, which is required for calling the <code>update*</code> methods,
+	 *         or -1 if no log entry could be created.
+	 */
+	long createRequestLog(User user, String jobName);
+
+	/**
+	 * Updates the given log entry when a resource has been assigned to the request.
+	 *
+	 * @param id
+	 *            Log entry ID, as returned by {@link #createRequestLog(User, String)}.
+	 * @param resourceType
+	 *            Type of the resource assigned to the request.
+	 * @param resource
+	 *            String representation of the resource assigned to the request.
+	 */
+	void updateRequestLogWorkStarted(long id, String resourceType, String resource);
+
+	/**
+	 * Updates the given log entry when an assigned resource has been released.
+	 *
+	 * @param id
+	 *            Log entry ID, as returned by {@link #createRequestLog(User, String)}.
+	 * @param status
+	 *            Arbitrary status of the associated request.
+	 * @param cntActiveResourcesLeft
+	 *            Number of active resources left of the associated resource type.
+	 */
+	void updateRequestLogWorkDone(long id, String status, int cntActiveResourcesLeft);
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, preallocated, lock-free ring buffer (after D. Vyukov's bounded MPMC queue). Every slot carries a sequence
+ * number which tells producers and consumers whether the slot may be written or read in the current lap, so neither
+ * side ever takes a lock.
+ *
+ * @param <E>
+ *            Type of the elements in this buffer.
+ */
+final class RingBuffer<E> {
+
+	private final int mask;
+
+	private final AtomicReferenceArray<E> items;
+
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong enqueuePosition = new AtomicLong();
+
+	private final AtomicLong dequeuePosition = new AtomicLong();
+
+	/**
+	 * Creates a new ring buffer.
+	 *
+	 * @param capacity
+	 *            Minimum capacity of the buffer. This is rounded up to the next power of two.
+	 */
+	RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		mask = size - 1;
+		items = new AtomicReferenceArray<E>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds the given element to the buffer, if there is space.
+	 *
+	 * @param element
+	 *            Element to add, must not be <code>null</code>.
+	 * @return <code>true</code> if the element has been added, <code>false</code> if the buffer is full.
+	 */
+	boolean offer(E element) {
+		while (true) {
+			long pos = enqueuePosition.get();
+			int index = (int) (pos & mask);
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (enqueuePosition.compareAndSet(pos, pos + 1)) {
+					items.lazySet(index, element);
+					sequences.set(index, pos + 1);
+					return true;
+				}
+			}
+			else if (diff < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Removes and returns the oldest element of the buffer.
+	 *
+	 * @return The oldest element of the buffer, or <code>null</code> if the buffer is empty.
+	 */
+	E poll() {
+		while (true) {
+			long pos = dequeuePosition.get();
+			int index = (int) (pos & mask);
+			long diff = sequences.get(index) - (pos + 1);
+			if (diff == 0) {
+				if (dequeuePosition.compareAndSet(pos, pos + 1)) {
+					E element = items.get(index);
+					items.lazySet(index, null);
+					sequences.set(index, pos + mask + 1);
+					return element;
+				}
+			}
+			else if (diff < 0) {
+				return null;
+			}
+		}
+	}
+
+	int size() {
+		long size = enqueuePosition.get() - dequeuePosition.get();
+		return (int) Math.max(0, Math.min(size, mask + 1));
+	}
+
+	boolean isEmpty() {
+		return enqueuePosition.get() == dequeuePosition.get();
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+}
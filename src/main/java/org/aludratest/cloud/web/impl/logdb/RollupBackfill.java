@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Job filling the hourly rollup table from requests which ended before the rollup table was introduced. Requests ending
+ * later are added incrementally by the {@link DatabaseRequestLogger}, so the job only reads requests ending before the
+ * cutoff time recorded in <code>acm_rollup_backfill</code>. <br>
+ * Requests are processed in chunks of one day of start times. The rollups of a chunk are added and the start of the
+ * next chunk is recorded in a single transaction, so the job can safely be restarted if it is interrupted, and locks on
+ * rollup rows are held only briefly while the request logger is updating the same table.
+ */
+final class RollupBackfill implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RollupBackfill.class);
+
+	static final String STATE_TABLE = "acm_rollup_backfill";
+
+	static final String CREATE_STATE_TABLE_SQL = "CREATE TABLE " + STATE_TABLE
+			+ " (cutoff_utc TIMESTAMP NOT NULL, completed SMALLINT NOT NULL)";
+
+	/**
+	 * Column added by schema version 1.6, containing the start of the next chunk, or <code>NULL</code> if no chunk has
+	 * been processed yet.
+	 */
+	static final String ADD_NEXT_START_COLUMN_SQL = "ALTER TABLE " + STATE_TABLE
+			+ " ADD COLUMN next_start_utc TIMESTAMP";
+
+	private static final long CHUNK_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	private final LogDbAccess database;
+
+	private final Runnable changeListener;
+
+	/**
+	 * Creates a new backfill job.
+	 *
+	 * @param database
+	 *            Database containing the request log and the rollup table.
+	 * @param changeListener
+	 *            Called after rollups have been added, e.g. to invalidate cached query results.
+	 */
+	RollupBackfill(LogDbAccess database, Runnable changeListener) {
+		this.database = database;
+		this.changeListener = changeListener;
+	}
+
+	@Override
+	public void run() {
+		try {
+			Calendar utc = Calendar.getInstance(UTC);
+			Timestamp cutoff;
+			Timestamp nextStart;
+			String sql = "SELECT cutoff_utc, next_start_utc FROM " + STATE_TABLE + " WHERE completed = 0";
+			try (LogQueryCursor cursor = database.openQuery(sql)) {
+				ResultSet rs = cursor.getResultSet();
+				if (!rs.next()) {
+					return;
+				}
+				cutoff = rs.getTimestamp(1, utc);
+				nextStart = rs.getTimestamp(2, utc);
+			}
+			if (nextStart == null) {
+				nextStart = getFirstStartWaitTime(cutoff);
+			}
+
+			long startTime = System.currentTimeMillis();
+			int rollupCount = 0;
+			long chunkStart = nextStart.getTime() - Math.floorMod(nextStart.getTime(), HOUR_MILLIS);
+			do {
+				long chunkEnd = Math.min(chunkStart + CHUNK_MILLIS, cutoff.getTime());
+				Map<String, HourlyRollup> rollups = aggregate(new Timestamp(chunkStart), new Timestamp(chunkEnd),
+						cutoff);
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				write(rollups, new Timestamp(chunkEnd), chunkEnd >= cutoff.getTime());
+				changeListener.run();
+				rollupCount += rollups.size();
+				chunkStart = chunkEnd;
+			}
+			while (chunkStart < cutoff.getTime() && !Thread.currentThread().isInterrupted());
+
+			LOG.info("Backfilled " + rollupCount + " hourly usage rollups in "
+					+ (System.currentTimeMillis() - startTime) + " ms");
+		}
+		catch (SQLException e) {
+			LOG.error("Could not backfill hourly usage rollups", e);
+		}
+	}
+
+	private Timestamp getFirstStartWaitTime(Timestamp cutoff) throws SQLException {
+		try (LogQueryCursor cursor = database.openQuery("SELECT MIN(start_wait_time_utc) FROM acm_request")) {
+			ResultSet rs = cursor.getResultSet();
+			Timestamp first = rs.next() ? rs.getTimestamp(1, Calendar.getInstance(UTC)) : null;
+			// no requests at all; the single (empty) chunk marks the job as completed
+			return first == null || first.after(cutoff) ? cutoff : first;
+		}
+	}
+
+	private Map<String, HourlyRollup> aggregate(Timestamp from, Timestamp to, Timestamp cutoff) throws SQLException {
+		Map<String, HourlyRollup> rollups = new LinkedHashMap<String, HourlyRollup>();
+		String sql = "SELECT start_wait_time_utc, start_work_time_utc, end_work_time_utc, user_name, resource_type, "
+				+ "cnt_active_res_after_work FROM acm_request "
+				+ "WHERE start_wait_time_utc >= ? AND start_wait_time_utc < ? AND end_work_time_utc < ?";
+
+		try (LogQueryCursor cursor = database.openQuery(sql, from, to, cutoff)) {
+			ResultSet rs = cursor.getResultSet();
+			Calendar utc = Calendar.getInstance(UTC);
+			while (rs.next() && !Thread.currentThread().isInterrupted()) {
+				Timestamp startWork = rs.getTimestamp(2, utc);
+				HourlyRollup rollup = HourlyRollup.forRequest(rs.getTimestamp(1, utc).getTime(),
+						startWork == null ? -1 : startWork.getTime(), rs.getTimestamp(3, utc).getTime(),
+						rs.getString(4), rs.getString(5), rs.getInt(6));
+				HourlyRollup existing = rollups.putIfAbsent(rollup.getKey(), rollup);
+				if (existing != null) {
+					existing.add(rollup);
+				}
+			}
+		}
+		return rollups;
+	}
+
+	private void write(Map<String, HourlyRollup> rollups, Timestamp nextStart, boolean completed) throws SQLException {
+		try (WriterConnection connection = database.openWriterConnection()) {
+			// batches are executed in the order their statements were first added
+			for (HourlyRollup rollup : rollups.values()) {
+				DatabaseCommand command = rollup.createEnsureRowCommand(0);
+				connection.addBatch(command.sql, command.parameters);
+			}
+			for (HourlyRollup rollup : rollups.values()) {
+				DatabaseCommand command = rollup.createAddCommand(0);
+				connection.addBatch(command.sql, command.parameters);
+			}
+			connection.addBatch("UPDATE " + STATE_TABLE + " SET next_start_utc = ?, completed = ?", nextStart,
+					Integer.valueOf(completed ? 1 : 0));
+			connection.executeBatches();
+			connection.commit();
+		}
+	}
+
+}
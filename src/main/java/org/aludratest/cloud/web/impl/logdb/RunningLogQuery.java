@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Information about an ad-hoc log query currently executed under control of the {@link LogQueryGovernor}.
+ */
+public class RunningLogQuery {
+
+	private final long id;
+
+	private final String query;
+
+	private final String owner;
+
+	private final long startTime;
+
+	private final Statement statement;
+
+	private volatile LogQueryCursor cursor;
+
+	private volatile boolean canceled;
+
+	RunningLogQuery(long id, String query, String owner, Statement statement) {
+		this.id = id;
+		this.query = query;
+		this.owner = owner;
+		this.statement = statement;
+		this.startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the ID of this query, which can be used to cancel it.
+	 *
+	 * @return The ID of this query.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the SQL text of this query.
+	 *
+	 * @return The SQL text of this query.
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Returns the name of the user who started this query, if known.
+	 *
+	 * @return The name of the user who started this query, or <code>null</code>.
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Returns the time, in milliseconds since the epoch, when this query was started.
+	 *
+	 * @return The time when this query was started.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Returns <code>true</code> if this query has been canceled.
+	 *
+	 * @return <code>true</code> if this query has been canceled, <code>false</code> otherwise.
+	 */
+	public boolean isCanceled() {
+		return canceled;
+	}
+
+	void setCursor(LogQueryCursor cursor) {
+		this.cursor = cursor;
+		if (canceled) {
+			cursor.cancel();
+		}
+	}
+
+	void cancel() {
+		canceled = true;
+		LogQueryCursor c = cursor;
+		if (c != null) {
+			c.cancel();
+		}
+		try {
+			statement.cancel();
+		}
+		catch (SQLException e) {
+			// embedded Derby does not support canceling a running statement; the cursor stops at the next row, and
+			// the query timeout still applies
+		}
+	}
+
+}
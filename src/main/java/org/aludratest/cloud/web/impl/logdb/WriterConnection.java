@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Long-lived connection to the internal Derby database, intended for use by a single writer thread. Prepared statements
+ * are cached per SQL string for the lifetime of this object, so Derby compiles each statement only once. Auto commit is
+ * disabled; callers must call {@link #commit()} or {@link #rollback()}. <br>
+ * This class is not thread-safe.
+ */
+public class WriterConnection implements AutoCloseable {
+
+	private Connection connection;
+
+	private Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+	private Set<PreparedStatement> pendingBatches = new LinkedHashSet<PreparedStatement>();
+
+	WriterConnection(Connection connection) throws SQLException {
+		this.connection = connection;
+		connection.setAutoCommit(false);
+	}
+
+	/**
+	 * Executes the given parameterized statement.
+	 *
+	 * @param sql
+	 *            SQL statement, using <code>?</code> for parameters.
+	 * @param parameters
+	 *            Parameter values, see {@link LogDbAccess#bindParameters(PreparedStatement, Object[])} for supported types.
+	 * @return The update count of the statement.
+	 *
+	 * @throws SQLException
+	 *             If the statement could not be executed.
+	 */
+	public int executeUpdate(String sql, Object... parameters) throws SQLException {
+		PreparedStatement stmt = prepare(sql);
+		LogDbAccess.bindParameters(stmt, parameters);
+		return stmt.executeUpdate();
+	}
+
+	/**
+	 * Executes the given unparameterized statement, e.g. a DDL statement, without caching it.
+	 *
+	 * @param sql
+	 *            SQL statement to execute.
+	 *
+	 * @throws SQLException
+	 *             If the statement could not be executed.
+	 */
+	public void executeStatement(String sql) throws SQLException {
+		try (Statement stmt = connection.createStatement()) {
+			stmt.execute(sql);
+		}
+	}
+
+	/**
+	 * Executes the given parameterized query and returns the first column of the first row as a <code>long</code>.
+	 *
+	 * @param sql
+	 *            SQL query, using <code>?</code> for parameters.
+	 * @param parameters
+	 *            Parameter values, see {@link LogDbAccess#bindParameters(PreparedStatement, Object[])} for supported types.
+	 *
+	 * @return The first column of the first row of the query result.
+	 *
+	 * @throws SQLException
+	 *             If the query could not be executed, or returned no rows.
+	 */
+	public long queryLong(String sql, Object... parameters) throws SQLException {
+		PreparedStatement stmt = prepare(sql);
+		LogDbAccess.bindParameters(stmt, parameters);
+		try (ResultSet rs = stmt.executeQuery()) {
+			if (!rs.next()) {
+				throw new SQLException("Query returned no rows: " + sql);
+			}
+			return rs.getLong(1);
+		}
+	}
+
+	/**
+	 * Adds the given parameterized statement to the JDBC batch of its prepared statement. Batches are executed by
+	 * {@link #executeBatches()}, in the order of the first statement added to each batch.
+	 *
+	 * @param sql
+	 *            SQL statement, using <code>?</code> for parameters.
+	 * @param parameters
+	 *            Parameter values, see {@link LogDbAccess#bindParameters(PreparedStatement, Object[])} for supported types.
+	 *
+	 * @throws SQLException
+	 *             If the statement could not be prepared or parameters could not be bound.
+	 */
+	public void addBatch(String sql, Object... parameters) throws SQLException {
+		PreparedStatement stmt = prepare(sql);
+		LogDbAccess.bindParameters(stmt, parameters);
+		stmt.addBatch();
+		pendingBatches.add(stmt);
+	}
+
+	/**
+	 * Executes all batches added via {@link #addBatch(String, Object...)}.
+	 *
+	 * @throws SQLException
+	 *             If any of the batches could not be executed.
+	 */
+	public void executeBatches() throws SQLException {
+		try {
+			for (PreparedStatement stmt : pendingBatches) {
+				stmt.executeBatch();
+			}
+		}
+		finally {
+			clearBatches();
+		}
+	}
+
+	public void commit() throws SQLException {
+		connection.commit();
+	}
+
+	/**
+	 * Rolls back the current transaction and discards all pending batches.
+	 *
+	 * @throws SQLException
+	 *             If the rollback fails.
+	 */
+	public void rollback() throws SQLException {
+		clearBatches();
+		connection.rollback();
+	}
+
+	/**
+	 * Closes all cached statements and the underlying connection. Any uncommitted changes are rolled back. Exceptions
+	 * are ignored.
+	 */
+	@Override
+	public void close() {
+		try {
+			rollback();
+		}
+		catch (SQLException e) {
+			// ignore
+		}
+		for (PreparedStatement stmt : statements.values()) {
+			try {
+				stmt.close();
+			}
+			catch (SQLException e) {
+				// ignore
+			}
+		}
+		statements.clear();
+		try {
+			connection.close();
+		}
+		catch (SQLException e) {
+			// ignore
+		}
+	}
+
+	private void clearBatches() {
+		for (PreparedStatement stmt : pendingBatches) {
+			try {
+				stmt.clearBatch();
+			}
+			catch (SQLException e) {
+				// ignore
+			}
+		}
+		pendingBatches.clear();
+	}
+
+	private PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = statements.get(sql);
+		if (stmt == null) {
+			stmt = connection.prepareStatement(sql);
+			statements.put(sql, stmt);
+		}
+		return stmt;
+	}
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative long values. Values are sorted into
+ * log-linear buckets (8 linear sub-buckets per power of two), so percentiles
+ * are reported with a relative error of at most 12.5%, with constant memory and
+ * without any allocation on {@link #record(long)}.
+ */
+public final class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Values below this limit get their own bucket. */
+	private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+	private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records the given value. Negative values are recorded as 0.
+	 *
+	 * @param value
+	 *            Value to record.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(bucketIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long currentMax;
+		while (value > (currentMax = max.get())) {
+			if (max.compareAndSet(currentMax, value)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long cnt = count.get();
+		return cnt == 0 ? 0 : (double) sum.get() / cnt;
+	}
+
+	/**
+	 * Returns an upper bound of the value at the given percentile, i.e. the upper
+	 * limit of the bucket containing that value.
+	 *
+	 * @param percentile
+	 *            Percentile, between 0 and 100.
+	 * @return Upper bound of the value at the given percentile, or 0 if no values
+	 *         have been recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+
+		long threshold = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += buckets.get(i);
+			if (seen >= threshold) {
+				return Math.min(bucketUpperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns the number of values recorded which are less than or equal to the
+	 * upper bound of the bucket containing the given value. Used for cumulative
+	 * exports.
+	 *
+	 * @param value
+	 *            Value to count up to.
+	 * @return Number of recorded values up to the bucket of the given value.
+	 */
+	public long getCountAtOrBelow(long value) {
+		if (value < 0) {
+			return 0;
+		}
+		int maxIndex = bucketIndex(value);
+		long result = 0;
+		for (int i = 0; i <= maxIndex; i++) {
+			result += buckets.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the largest bucket edge which is less than or equal to the given value. For such an edge,
+	 * {@link #getCountAtOrBelow(long)} returns exactly the number of recorded values up to the edge, while for other
+	 * values it also counts the larger values in the same bucket.
+	 *
+	 * @param value
+	 *            Value to find the bucket edge for.
+	 * @return The largest bucket edge up to the given value, or -1 if the value is negative.
+	 */
+	public static long getBucketEdgeAtOrBelow(long value) {
+		if (value < 0) {
+			return -1;
+		}
+		int index = bucketIndex(value);
+		long upperBound = bucketUpperBound(index);
+		return upperBound == value || index == 0 ? upperBound : bucketUpperBound(index - 1);
+	}
+
+	private static int bucketIndex(long value) {
+		if (value < LINEAR_LIMIT) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int mantissa = (int) (value >>> shift) - SUB_BUCKETS;
+		return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + mantissa;
+	}
+
+	private static long bucketUpperBound(int index) {
+		if (index < LINEAR_LIMIT) {
+			return index;
+		}
+		int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+		int mantissa = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+		int shift = exponent - SUB_BUCKET_BITS;
+		if (exponent == 62 && mantissa == SUB_BUCKETS * 2 - 1) {
+			return Long.MAX_VALUE;
+		}
+		return ((long) (mantissa + 1) << shift) - 1;
+	}
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.metrics;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Registry of the application metrics, which can be written in the Prometheus text exposition format. Counters are
+ * {@link LongAdder}s and histograms are {@link Histogram}s, so recording a value is lock-free; callers should keep the
+ * returned objects instead of looking them up for every value. Gauges are read only when the metrics are written. <br>
+ * <br>
+ * Labels are passed as alternating label names and values, e.g. <code>"resource_type", "selenium"</code>. All metrics
+ * of one name must use the same label names.
+ */
+@Component
+public class MetricsRegistry {
+
+	/**
+	 * Bucket bounds, in seconds, suitable for latencies from sub-millisecond database statements to requests waiting
+	 * for hours.
+	 */
+	public static final double[] LATENCY_SECONDS_BOUNDS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+			0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300, 900, 3600, 14400 };
+
+	/**
+	 * Bucket bounds suitable for sizes like the number of statements per batch.
+	 */
+	public static final double[] SIZE_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+	/**
+	 * Factor to convert microseconds, as recorded by most histograms of this application, to seconds.
+	 */
+	public static final double MICROS_TO_SECONDS = 1e-6;
+
+	private enum Type {
+		COUNTER, GAUGE, HISTOGRAM
+	}
+
+	private Map<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+	/**
+	 * Returns the counter with the given name and labels, creating it if required. Must not be used for names
+	 * registered via {@link #registerCounter(String, String, DoubleSupplier, String...)}.
+	 *
+	 * @param name
+	 *            Metric name, should end with <code>_total</code>.
+	 * @param help
+	 *            Description of the metric.
+	 * @param labels
+	 *            Alternating label names and values.
+	 * @return The counter.
+	 */
+	public LongAdder counter(String name, String help, String... labels) {
+		return (LongAdder) family(name, help, Type.COUNTER, null, 1).metrics.computeIfAbsent(formatLabels(labels),
+				(l) -> new LongAdder());
+	}
+
+	/**
+	 * Registers a counter whose value is read from the given supplier whenever the metrics are written, e.g. to export
+	 * an existing counter of a component.
+	 *
+	 * @param name
+	 *            Metric name, should end with <code>_total</code>.
+	 * @param help
+	 *            Description of the metric.
+	 * @param supplier
+	 *            Supplier of the current, monotonically increasing value.
+	 * @param labels
+	 *            Alternating label names and values.
+	 */
+	public void registerCounter(String name, String help, DoubleSupplier supplier, String... labels) {
+		family(name, help, Type.COUNTER, null, 1).metrics.put(formatLabels(labels), supplier);
+	}
+
+	/**
+	 * Returns the histogram with the given name and labels, creating it if required. Values must be recorded in the
+	 * unit which, multiplied with <code>scale</code>, results in the unit of the bucket bounds.
+	 *
+	 * @param name
+	 *            Metric name, should end with the base unit, e.g. <code>_seconds</code>.
+	 * @param help
+	 *            Description of the metric.
+	 * @param bounds
+	 *            Upper bounds of the exported buckets, in the exported unit. Each bound is lowered to the nearest
+	 *            {@link Histogram} bucket edge, e.g. <code>le="0.983039"</code> instead of <code>le="1"</code>, so the
+	 *            exported counts are exact.
+	 * @param scale
+	 *            Factor to convert recorded values to the exported unit, e.g. {@link #MICROS_TO_SECONDS}.
+	 * @param labels
+	 *            Alternating label names and values.
+	 * @return The histogram.
+	 */
+	public Histogram histogram(String name, String help, double[] bounds, double scale, String... labels) {
+		return (Histogram) family(name, help, Type.HISTOGRAM, bounds, scale).metrics
+				.computeIfAbsent(formatLabels(labels), (l) -> new Histogram());
+	}
+
+	/**
+	 * Exports an existing histogram under the given name and labels, see
+	 * {@link #histogram(String, String, double[], double, String...)}.
+	 */
+	public void registerHistogram(String name, String help, double[] bounds, double scale, Histogram histogram,
+			String... labels) {
+		family(name, help, Type.HISTOGRAM, bounds, scale).metrics.put(formatLabels(labels), histogram);
+	}
+
+	/**
+	 * Registers a gauge whose value is read from the given supplier whenever the metrics are written.
+	 *
+	 * @param name
+	 *            Metric name.
+	 * @param help
+	 *            Description of the metric.
+	 * @param supplier
+	 *            Supplier of the current value.
+	 * @param labels
+	 *            Alternating label names and values.
+	 */
+	public void registerGauge(String name, String help, DoubleSupplier supplier, String... labels) {
+		family(name, help, Type.GAUGE, null, 1).metrics.put(formatLabels(labels), supplier);
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text exposition format (version 0.0.4).
+	 *
+	 * @param out
+	 *            Builder to append the metrics to.
+	 */
+	public void writePrometheus(StringBuilder out) {
+		for (Family family : families.values()) {
+			out.append("# HELP ").append(family.name).append(' ').append(escapeHelp(family.help)).append('\n');
+			out.append("# TYPE ").append(family.name).append(' ').append(family.type.name().toLowerCase(Locale.US))
+					.append('\n');
+			for (Map.Entry<String, Object> entry : new ConcurrentSkipListMap<String, Object>(family.metrics)
+					.entrySet()) {
+				String labels = entry.getKey();
+				Object metric = entry.getValue();
+				switch (family.type) {
+					case COUNTER:
+						writeSample(out, family.name, labels, null, metric instanceof LongAdder
+								? ((LongAdder) metric).sum() : ((DoubleSupplier) metric).getAsDouble());
+						break;
+					case GAUGE:
+						writeSample(out, family.name, labels, null, ((DoubleSupplier) metric).getAsDouble());
+						break;
+					case HISTOGRAM:
+						writeHistogram(out, family, labels, (Histogram) metric);
+						break;
+				}
+			}
+		}
+	}
+
+	private void writeHistogram(StringBuilder out, Family family, String labels, Histogram histogram) {
+		String bucketName = family.name + "_bucket";
+		long cumulative = 0;
+		for (int i = 0; i < family.bucketEdges.length; i++) {
+			cumulative = Math.max(cumulative, histogram.getCountAtOrBelow(family.bucketEdges[i]));
+			writeSample(out, bucketName, labels, "le=\"" + family.bucketLabels[i] + "\"", cumulative);
+		}
+		// values may have been recorded while reading the buckets
+		long count = Math.max(cumulative, histogram.getCount());
+		writeSample(out, bucketName, labels, "le=\"+Inf\"", count);
+		writeSample(out, family.name + "_sum", labels, null, histogram.getSum() * family.scale);
+		writeSample(out, family.name + "_count", labels, null, count);
+	}
+
+	private static void writeSample(StringBuilder out, String name, String labels, String extraLabel, double value) {
+		out.append(name);
+		if (!labels.isEmpty() || extraLabel != null) {
+			out.append('{').append(labels);
+			if (extraLabel != null) {
+				out.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+			}
+			out.append('}');
+		}
+		out.append(' ').append(formatValue(value)).append('\n');
+	}
+
+	private Family family(String name, String help, Type type, double[] bounds, double scale) {
+		Family family = families.computeIfAbsent(name, (n) -> new Family(n, help, type, bounds, scale));
+		if (family.type != type) {
+			throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+		}
+		return family;
+	}
+
+	private static String formatLabels(String[] labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must be passed as name / value pairs");
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(labels[i]).append("=\"").append(escapeLabelValue(labels[i + 1])).append('"');
+		}
+		return sb.toString();
+	}
+
+	private static String formatValue(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	private static String escapeLabelValue(String value) {
+		if (value == null) {
+			return "";
+		}
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String escapeHelp(String help) {
+		return help.replace("\\", "\\\\").replace("\n", "\\n");
+	}
+
+	private static final class Family {
+
+		private final String name;
+
+		private final String help;
+
+		private final Type type;
+
+		private final double scale;
+
+		/** Histogram bucket edges for the bounds, in the recorded unit, strictly increasing. */
+		private final long[] bucketEdges;
+
+		private final String[] bucketLabels;
+
+		private final Map<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+
+		private Family(String name, String help, Type type, double[] bounds, double scale) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.scale = scale;
+
+			// counts are only exact at Histogram bucket edges, so export the nearest edge below each bound
+			long[] edges = new long[bounds == null ? 0 : bounds.length];
+			int edgeCount = 0;
+			for (int i = 0; i < edges.length; i++) {
+				// tolerate rounding errors, e.g. 0.0321 / 1e-6 is slightly below 32100
+				double scaled = bounds[i] / scale;
+				long edge = Histogram.getBucketEdgeAtOrBelow((long) Math.floor(scaled + Math.ulp(scaled) * 4));
+				if (edge >= 0 && (edgeCount == 0 || edge > edges[edgeCount - 1])) {
+					edges[edgeCount++] = edge;
+				}
+			}
+			bucketEdges = Arrays.copyOf(edges, edgeCount);
+			bucketLabels = new String[edgeCount];
+			for (int i = 0; i < edgeCount; i++) {
+				// dividing by the inverse scale avoids rounding artifacts like 0.9830389999999999
+				bucketLabels[i] = formatValue(bucketEdges[i] / (1 / scale));
+			}
+		}
+	}
+
+}
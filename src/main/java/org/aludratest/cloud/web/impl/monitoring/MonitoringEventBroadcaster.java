@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.monitoring;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.aludratest.cloud.event.ManagedResourceRequestCanceledEvent;
+import org.aludratest.cloud.event.ManagedResourceRequestEvent;
+import org.aludratest.cloud.event.ManagedResourceRequestStateChangedEvent;
+import org.aludratest.cloud.request.ResourceRequest;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Component pushing request state changes and working resource count deltas to all subscribed Server-Sent Events
+ * clients. Events are collected from the request state change events and flushed every
+ * <code>acm.monitoring.sse.coalesceMillis</code> milliseconds (default 500) by a single broadcaster thread, so each
+ * update is serialized once, no matter how many clients are subscribed. <br>
+ * <br>
+ * The following SSE events are sent:
+ * <ul>
+ * <li><code>requests</code>: <code>{"changes": [...], "dropped": n}</code>, the request state changes since the last
+ * flush. If more than <code>acm.monitoring.sse.maxPendingChanges</code> changes occur between two flushes, the excess
+ * is dropped and only counted; clients should then reload their request list.</li>
+ * <li><code>stats</code>: <code>{"workingCounts": {...}}</code>, the number of working requests of each resource type
+ * which changed since the last flush. Sent with all resource types when a client subscribes.</li>
+ * </ul>
+ * A comment line is sent every <code>acm.monitoring.sse.heartbeatSeconds</code> seconds (default 15) to keep idle
+ * connections open through proxies, and to detect disconnected clients.
+ */
+@Component
+public class MonitoringEventBroadcaster {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MonitoringEventBroadcaster.class);
+
+	@Value("${acm.monitoring.sse.coalesceMillis:500}")
+	private long coalesceMillis;
+
+	@Value("${acm.monitoring.sse.heartbeatSeconds:15}")
+	private long heartbeatSeconds;
+
+	@Value("${acm.monitoring.sse.timeoutMillis:1800000}")
+	private long emitterTimeoutMillis;
+
+	@Value("${acm.monitoring.sse.maxSubscribers:200}")
+	private int maxSubscribers;
+
+	@Value("${acm.monitoring.sse.maxPendingChanges:1000}")
+	private int maxPendingChanges;
+
+	private WorkingResourceCounters workingResourceCounters;
+
+	private List<SseEmitter> subscribers = new CopyOnWriteArrayList<SseEmitter>();
+
+	private ConcurrentLinkedQueue<JSONObject> pendingChanges = new ConcurrentLinkedQueue<JSONObject>();
+
+	private AtomicInteger pendingChangeCount = new AtomicInteger();
+
+	private AtomicInteger droppedChangeCount = new AtomicInteger();
+
+	private AtomicLong sentEvents = new AtomicLong();
+
+	/** Working counts as of the last flush; only accessed by the broadcaster thread. */
+	private Map<String, Long> lastWorkingCounts = Collections.emptyMap();
+
+	private ScheduledExecutorService broadcastExecutor;
+
+	@Autowired
+	public MonitoringEventBroadcaster(WorkingResourceCounters workingResourceCounters) {
+		this.workingResourceCounters = workingResourceCounters;
+	}
+
+	@PostConstruct
+	private void startBroadcasting() {
+		broadcastExecutor = Executors.newSingleThreadScheduledExecutor((r) -> {
+			Thread t = new Thread(r, "acm-monitoring-broadcast");
+			t.setDaemon(true);
+			return t;
+		});
+		broadcastExecutor.scheduleWithFixedDelay(this::flush, coalesceMillis, coalesceMillis, TimeUnit.MILLISECONDS);
+		if (heartbeatSeconds > 0) {
+			broadcastExecutor.scheduleWithFixedDelay(this::sendHeartbeat, heartbeatSeconds, heartbeatSeconds,
+					TimeUnit.SECONDS);
+		}
+	}
+
+	@PreDestroy
+	private void stopBroadcasting() {
+		if (broadcastExecutor != null) {
+			broadcastExecutor.shutdownNow();
+		}
+		for (SseEmitter emitter : subscribers) {
+			emitter.complete();
+		}
+		subscribers.clear();
+	}
+
+	/**
+	 * Registers a new SSE client. The returned emitter immediately receives a <code>stats</code> event with the current
+	 * working counts of all resource types, and all further events until the client disconnects or the emitter times
+	 * out.
+	 *
+	 * @return The emitter for the new client, or <code>null</code> if the maximum number of subscribers has been
+	 *         reached.
+	 */
+	public SseEmitter subscribe() {
+		if (subscribers.size() >= maxSubscribers) {
+			return null;
+		}
+
+		SseEmitter emitter = new SseEmitter(Long.valueOf(emitterTimeoutMillis));
+		emitter.onCompletion(() -> subscribers.remove(emitter));
+		emitter.onTimeout(() -> subscribers.remove(emitter));
+
+		JSONObject stats = new JSONObject();
+		stats.put("workingCounts", new JSONObject(workingResourceCounters.getWorkingCounts()));
+		try {
+			emitter.send(SseEmitter.event().name("stats").data(stats.toString(), MediaType.APPLICATION_JSON));
+		}
+		catch (IOException e) {
+			emitter.completeWithError(e);
+			return emitter;
+		}
+		subscribers.add(emitter);
+		return emitter;
+	}
+
+	/**
+	 * Returns the number of currently subscribed SSE clients.
+	 *
+	 * @return The number of currently subscribed SSE clients.
+	 */
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	/**
+	 * Returns the number of SSE events sent to clients since startup, counting each client separately.
+	 *
+	 * @return The number of SSE events sent to clients since startup.
+	 */
+	public long getSentEvents() {
+		return sentEvents.get();
+	}
+
+	@EventListener
+	public void handleResourceRequestStateChangedEvent(ManagedResourceRequestStateChangedEvent event) {
+		addChange(event, event.getPreviousState() == null ? null : event.getPreviousState().toString(),
+				event.getNewState().toString());
+	}
+
+	@EventListener
+	public void handleResourceRequestCanceledEvent(ManagedResourceRequestCanceledEvent event) {
+		addChange(event, null, "CANCELED");
+	}
+
+	private void addChange(ManagedResourceRequestEvent event, String previousState, String newState) {
+		if (subscribers.isEmpty()) {
+			return;
+		}
+		if (pendingChangeCount.incrementAndGet() > maxPendingChanges) {
+			pendingChangeCount.decrementAndGet();
+			droppedChangeCount.incrementAndGet();
+			return;
+		}
+
+		ResourceRequest request = event.getRequest();
+		JSONObject change = new JSONObject();
+		change.put("timestamp", System.currentTimeMillis());
+		change.putOpt("previousState", previousState);
+		change.put("state", newState);
+		if (request != null) {
+			change.putOpt("resourceType", request.getResourceType() == null ? null : request.getResourceType().getName());
+			change.putOpt("userName",
+					request.getRequestingUser() == null ? null : request.getRequestingUser().getName());
+			change.putOpt("jobName", request.getJobName());
+		}
+		pendingChanges.add(change);
+	}
+
+	private void flush() {
+		try {
+			JSONArray changes = new JSONArray();
+			JSONObject change;
+			while ((change = pendingChanges.poll()) != null) {
+				pendingChangeCount.decrementAndGet();
+				changes.put(change);
+			}
+			int dropped = droppedChangeCount.getAndSet(0);
+			if (changes.length() > 0 || dropped > 0) {
+				JSONObject requests = new JSONObject();
+				requests.put("changes", changes);
+				requests.put("dropped", dropped);
+				broadcast("requests", requests);
+			}
+
+			Map<String, Long> workingCounts = workingResourceCounters.getWorkingCounts();
+			Map<String, Long> delta = new HashMap<String, Long>();
+			for (Map.Entry<String, Long> entry : workingCounts.entrySet()) {
+				if (!entry.getValue().equals(lastWorkingCounts.get(entry.getKey()))) {
+					delta.put(entry.getKey(), entry.getValue());
+				}
+			}
+			lastWorkingCounts = workingCounts;
+			if (!delta.isEmpty()) {
+				JSONObject stats = new JSONObject();
+				stats.put("workingCounts", new JSONObject(delta));
+				broadcast("stats", stats);
+			}
+		}
+		catch (RuntimeException e) {
+			LOG.error("Could not broadcast monitoring events", e);
+		}
+	}
+
+	private void sendHeartbeat() {
+		for (SseEmitter emitter : subscribers) {
+			send(emitter, SseEmitter.event().comment("keepalive"));
+		}
+	}
+
+	private void broadcast(String eventName, JSONObject data) {
+		if (subscribers.isEmpty()) {
+			return;
+		}
+		String json = data.toString();
+		for (SseEmitter emitter : subscribers) {
+			send(emitter, SseEmitter.event().name(eventName).data(json, MediaType.APPLICATION_JSON));
+		}
+	}
+
+	private void send(SseEmitter emitter, SseEmitter.SseEventBuilder event) {
+		try {
+			emitter.send(event);
+			sentEvents.incrementAndGet();
+		}
+		catch (IOException | IllegalStateException e) {
+			// client disconnected, or emitter already completed
+			subscribers.remove(emitter);
+			emitter.completeWithError(e);
+		}
+	}
+
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.monitoring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Servlet filter which shares the responses of the monitoring resources <code>/api/monitoring/stats</code> and
+ * <code>/api/monitoring/requests</code> between concurrent viewers. <br>
+ * <br>
+ * The first request for a resource computes the response and keeps the serialized bytes for
+ * <code>acm.monitoring.cache.ttlMillis</code> milliseconds (default 1000). Requests arriving while the response is
+ * being computed wait for this computation instead of starting their own (single flight), and requests arriving
+ * within the time to live get the kept bytes. Each response carries an <code>ETag</code>; a request whose
+ * <code>If-None-Match</code> header matches it gets status 304 without a body. <br>
+ * <br>
+ * As the monitoring resources may depend on the requesting user, responses are only shared between requests of the
+ * same user, unless <code>acm.monitoring.cache.perUser</code> is set to <code>false</code>. This filter runs after the
+ * security filters, so only authenticated requests reach it.
+ */
+@Component
+public class MonitoringResponseCache implements Filter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MonitoringResponseCache.class);
+
+	private static final Set<String> CACHED_PATHS = new HashSet<String>(
+			Arrays.asList("/api/monitoring/stats", "/api/monitoring/requests"));
+
+	/**
+	 * Maximum time to wait for a computation started by another request before computing the response again.
+	 */
+	private static final long MAX_WAIT_MILLIS = 10000;
+
+	@Value("${acm.monitoring.cache.ttlMillis:1000}")
+	private long ttlMillis;
+
+	@Value("${acm.monitoring.cache.perUser:true}")
+	private boolean perUser;
+
+	private Map<String, CompletableFuture<Snapshot>> snapshots =
+			new ConcurrentHashMap<String, CompletableFuture<Snapshot>>();
+
+	private AtomicLong computations = new AtomicLong();
+
+	private AtomicLong sharedResponses = new AtomicLong();
+
+	private AtomicLong notModifiedResponses = new AtomicLong();
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void destroy() {
+		snapshots.clear();
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)
+				|| ttlMillis <= 0) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		HttpServletResponse httpResponse = (HttpServletResponse) response;
+		String path = httpRequest.getRequestURI().substring(httpRequest.getContextPath().length());
+		// requests with parameters are rare, and would let the number of cached responses grow without limit
+		if (!"GET".equals(httpRequest.getMethod()) || !CACHED_PATHS.contains(path)
+				|| httpRequest.getQueryString() != null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		Snapshot snapshot = getSnapshot(createKey(httpRequest, path), httpRequest, httpResponse, chain);
+		if (snapshot == null) {
+			// not shareable; the response has already been written
+			return;
+		}
+		writeSnapshot(snapshot, httpRequest, httpResponse);
+	}
+
+	/**
+	 * Returns the number of responses computed by the monitoring resources since startup.
+	 *
+	 * @return The number of responses computed by the monitoring resources since startup.
+	 */
+	public long getComputations() {
+		return computations.get();
+	}
+
+	/**
+	 * Returns the number of responses served from a response computed for another request since startup.
+	 *
+	 * @return The number of responses served from a response computed for another request since startup.
+	 */
+	public long getSharedResponses() {
+		return sharedResponses.get();
+	}
+
+	/**
+	 * Returns the number of responses answered with status 304 since startup.
+	 *
+	 * @return The number of responses answered with status 304 since startup.
+	 */
+	public long getNotModifiedResponses() {
+		return notModifiedResponses.get();
+	}
+
+	private String createKey(HttpServletRequest request, String path) {
+		StringBuilder sb = new StringBuilder(path);
+		if (perUser) {
+			Principal principal = request.getUserPrincipal();
+			sb.append('#').append(principal == null ? "" : principal.getName());
+		}
+		return sb.toString();
+	}
+
+	private Snapshot getSnapshot(String key, HttpServletRequest request, HttpServletResponse response,
+			FilterChain chain) throws IOException, ServletException {
+		while (true) {
+			CompletableFuture<Snapshot> current = snapshots.get(key);
+			if (current != null && (!current.isDone() || isFresh(current))) {
+				Snapshot snapshot = await(current);
+				if (snapshot != null) {
+					sharedResponses.incrementAndGet();
+					return snapshot;
+				}
+				// computation failed or timed out; compute on our own
+				return compute(null, request, response, chain);
+			}
+
+			CompletableFuture<Snapshot> future = new CompletableFuture<Snapshot>();
+			boolean owner = current == null ? snapshots.putIfAbsent(key, future) == null
+					: snapshots.replace(key, current, future);
+			if (owner) {
+				try {
+					return compute(future, request, response, chain);
+				}
+				finally {
+					// release waiting requests if the response could not be shared
+					future.complete(null);
+					if (future.getNow(null) == null) {
+						snapshots.remove(key, future);
+					}
+				}
+			}
+		}
+	}
+
+	private Snapshot compute(CompletableFuture<Snapshot> future, HttpServletRequest request,
+			HttpServletResponse response, FilterChain chain) throws IOException, ServletException {
+		computations.incrementAndGet();
+		CapturingResponseWrapper wrapper = new CapturingResponseWrapper(response);
+		chain.doFilter(request, wrapper);
+
+		if (wrapper.status != HttpServletResponse.SC_OK) {
+			// do not share errors; pass them through as they are
+			wrapper.writeThrough();
+			return null;
+		}
+
+		Snapshot snapshot = new Snapshot(wrapper.getBody(), wrapper.getContentType());
+		if (future != null) {
+			future.complete(snapshot);
+		}
+		return snapshot;
+	}
+
+	private boolean isFresh(CompletableFuture<Snapshot> future) {
+		Snapshot snapshot = future.getNow(null);
+		return snapshot != null
+				&& System.nanoTime() - snapshot.createdNanos < TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+	}
+
+	private Snapshot await(CompletableFuture<Snapshot> future) {
+		try {
+			return future.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException | TimeoutException e) {
+			LOG.debug("Could not wait for shared monitoring response", e);
+			return null;
+		}
+	}
+
+	private void writeSnapshot(Snapshot snapshot, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		response.setHeader("ETag", snapshot.etag);
+		// clients must revalidate, which is cheap thanks to the ETag
+		response.setHeader("Cache-Control", "no-cache");
+
+		if (matchesEtag(request.getHeader("If-None-Match"), snapshot.etag)) {
+			notModifiedResponses.incrementAndGet();
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		response.setStatus(HttpServletResponse.SC_OK);
+		if (snapshot.contentType != null) {
+			response.setContentType(snapshot.contentType);
+		}
+		response.setContentLength(snapshot.body.length);
+		response.getOutputStream().write(snapshot.body);
+	}
+
+	private static boolean matchesEtag(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals(etag) || candidate.equals("*")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String computeEtag(byte[] body) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(body);
+			return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest) + "\"";
+		}
+		catch (NoSuchAlgorithmException e) {
+			// MD5 is required to be supported by every JVM
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Serialized response of a monitoring resource.
+	 */
+	private static final class Snapshot {
+
+		private final byte[] body;
+
+		private final String contentType;
+
+		private final String etag;
+
+		private final long createdNanos = System.nanoTime();
+
+		private Snapshot(byte[] body, String contentType) {
+			this.body = body;
+			this.contentType = contentType;
+			this.etag = computeEtag(body);
+		}
+	}
+
+	/**
+	 * Response wrapper which keeps the status and body in memory instead of writing them to the client.
+	 */
+	private static final class CapturingResponseWrapper extends HttpServletResponseWrapper {
+
+		private final HttpServletResponse response;
+
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		private int status = HttpServletResponse.SC_OK;
+
+		private String errorMessage;
+
+		private boolean error;
+
+		private ServletOutputStream outputStream;
+
+		private PrintWriter writer;
+
+		private CapturingResponseWrapper(HttpServletResponse response) {
+			super(response);
+			this.response = response;
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			status = sc;
+		}
+
+		@Override
+		public int getStatus() {
+			return status;
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			sendError(sc, null);
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			status = sc;
+			errorMessage = msg;
+			error = true;
+		}
+
+		@Override
+		public void setContentLength(int len) {
+		}
+
+		@Override
+		public void setContentLengthLong(long len) {
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			if (writer != null) {
+				writer.flush();
+			}
+		}
+
+		@Override
+		public boolean isCommitted() {
+			return false;
+		}
+
+		@Override
+		public void resetBuffer() {
+			buffer.reset();
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (writer != null) {
+				throw new IllegalStateException("getWriter() has already been called");
+			}
+			if (outputStream == null) {
+				outputStream = new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						buffer.write(b);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						buffer.write(b, off, len);
+					}
+
+					@Override
+					public boolean isReady() {
+						return true;
+					}
+
+					@Override
+					public void setWriteListener(WriteListener writeListener) {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+			return outputStream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (outputStream != null) {
+				throw new IllegalStateException("getOutputStream() has already been called");
+			}
+			if (writer == null) {
+				writer = new PrintWriter(new OutputStreamWriter(buffer, getEncoding()));
+			}
+			return writer;
+		}
+
+		private String getEncoding() {
+			String encoding = getCharacterEncoding();
+			return encoding == null ? "ISO-8859-1" : encoding;
+		}
+
+		private byte[] getBody() {
+			if (writer != null) {
+				writer.flush();
+			}
+			return buffer.toByteArray();
+		}
+
+		/**
+		 * Writes the captured status and body to the wrapped response.
+		 */
+		private void writeThrough() throws IOException {
+			if (error) {
+				if (errorMessage == null) {
+					response.sendError(status);
+				}
+				else {
+					response.sendError(status, errorMessage);
+				}
+				return;
+			}
+			response.setStatus(status);
+			byte[] body = getBody();
+			if (body.length > 0) {
+				response.setContentLength(body.length);
+				response.getOutputStream().write(body);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.monitoring;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.aludratest.cloud.event.ManagedResourceRequestCanceledEvent;
+import org.aludratest.cloud.event.ManagedResourceRequestStateChangedEvent;
+import org.aludratest.cloud.manager.ManagedResourceRequest;
+import org.aludratest.cloud.manager.ResourceManager;
+import org.aludratest.cloud.resource.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+/**
+ * Component maintaining the number of <code>WORKING</code> requests per resource type incrementally, based on request
+ * state change events, so consumers do not have to scan all managed requests of the resource manager. <br>
+ * To correct any drift (e.g. due to missed events), the counters are periodically reconciled against the resource
+ * manager, every <code>acm.monitoring.reconcileSeconds</code> seconds (default 60).
+ */
+@Component
+public class WorkingResourceCounters {
+
+	private static final Logger LOG = LoggerFactory.getLogger(WorkingResourceCounters.class);
+
+	@Value("${acm.monitoring.reconcileSeconds:60}")
+	private long reconcileSeconds;
+
+	private ResourceManager resourceManager;
+
+	/** Requests currently counted as working. */
+	private Set<ManagedResourceRequest> workingRequests = Collections
+			.newSetFromMap(new ConcurrentHashMap<ManagedResourceRequest, Boolean>());
+
+	private Map<ResourceType, AtomicLong> workingCounts = new ConcurrentHashMap<ResourceType, AtomicLong>();
+
+	private ScheduledExecutorService reconcileExecutor;
+
+	@Autowired
+	public WorkingResourceCounters(ResourceManager resourceManager) {
+		this.resourceManager = resourceManager;
+	}
+
+	@PostConstruct
+	private void startReconciliation() {
+		if (reconcileSeconds > 0) {
+			reconcileExecutor = Executors.newSingleThreadScheduledExecutor((r) -> {
+				Thread t = new Thread(r, "acm-working-counters-reconcile");
+				t.setDaemon(true);
+				return t;
+			});
+			reconcileExecutor.scheduleWithFixedDelay(this::reconcile, reconcileSeconds, reconcileSeconds,
+					TimeUnit.SECONDS);
+		}
+	}
+
+	@PreDestroy
+	private void stopReconciliation() {
+		if (reconcileExecutor != null) {
+			reconcileExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Updates the counters on request state changes. This listener runs before other listeners, so these can rely on
+	 * up-to-date counters.
+	 *
+	 * @param event
+	 *            Event describing the state change of a managed request.
+	 */
+	@EventListener
+	@Order(Ordered.HIGHEST_PRECEDENCE)
+	public void handleResourceRequestStateChangedEvent(ManagedResourceRequestStateChangedEvent event) {
+		if (event.getNewState() == ManagedResourceRequest.State.WORKING) {
+			startCounting(event.getManagedRequest());
+		}
+		else {
+			stopCounting(event.getManagedRequest());
+		}
+	}
+
+	/**
+	 * Updates the counters when a request is canceled. This listener runs before other listeners, so these can rely on
+	 * up-to-date counters.
+	 *
+	 * @param event
+	 *            Event describing the canceled managed request.
+	 */
+	@EventListener
+	@Order(Ordered.HIGHEST_PRECEDENCE)
+	public void handleResourceRequestCanceledEvent(ManagedResourceRequestCanceledEvent event) {
+		stopCounting(event.getManagedRequest());
+	}
+
+	/**
+	 * Returns the number of requests currently in state <code>WORKING</code> for the given resource type.
+	 *
+	 * @param resourceType
+	 *            Resource type to return the number of working requests for.
+	 * @return The number of requests currently in state <code>WORKING</code> for the given resource type.
+	 */
+	public int getWorkingCount(ResourceType resourceType) {
+		AtomicLong counter = workingCounts.get(resourceType);
+		return counter == null ? 0 : (int) Math.max(0, counter.get());
+	}
+
+	/**
+	 * Returns the number of requests currently in state <code>WORKING</code>, by resource type name.
+	 *
+	 * @return The number of requests currently in state <code>WORKING</code>, by resource type name.
+	 */
+	public Map<String, Long> getWorkingCounts() {
+		Map<String, Long> result = new HashMap<String, Long>();
+		for (Map.Entry<ResourceType, AtomicLong> entry : workingCounts.entrySet()) {
+			result.put(entry.getKey().getName(), Long.valueOf(Math.max(0, entry.getValue().get())));
+		}
+		return result;
+	}
+
+	/**
+	 * Corrects the counters by comparing the counted requests with the <code>WORKING</code> requests of the resource
+	 * manager.
+	 */
+	void reconcile() {
+		try {
+			Set<ManagedResourceRequest> actual = Collections
+					.newSetFromMap(new IdentityHashMap<ManagedResourceRequest, Boolean>());
+			Iterator<? extends ManagedResourceRequest> iter = resourceManager.getManagedRequests();
+			while (iter.hasNext()) {
+				ManagedResourceRequest request = iter.next();
+				if (request.getState() == ManagedResourceRequest.State.WORKING) {
+					actual.add(request);
+				}
+			}
+
+			int corrections = 0;
+			for (ManagedResourceRequest request : new HashSet<ManagedResourceRequest>(workingRequests)) {
+				if (!actual.contains(request) && request.getState() != ManagedResourceRequest.State.WORKING
+						&& stopCounting(request)) {
+					corrections++;
+				}
+			}
+			for (ManagedResourceRequest request : actual) {
+				if (request.getState() == ManagedResourceRequest.State.WORKING && startCounting(request)) {
+					corrections++;
+				}
+			}
+
+			if (corrections > 0) {
+				LOG.warn("Corrected " + corrections + " drifted working resource counter(s)");
+			}
+		}
+		catch (RuntimeException e) {
+			LOG.error("Could not reconcile working resource counters", e);
+		}
+	}
+
+	private boolean startCounting(ManagedResourceRequest request) {
+		ResourceType resourceType = request.getRequest().getResourceType();
+		if (resourceType != null && workingRequests.add(request)) {
+			workingCounts.computeIfAbsent(resourceType, (t) -> new AtomicLong()).incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	private boolean stopCounting(ManagedResourceRequest request) {
+		if (workingRequests.remove(request)) {
+			AtomicLong counter = workingCounts.get(request.getRequest().getResourceType());
+			if (counter != null) {
+				counter.decrementAndGet();
+			}
+			return true;
+		}
+		return false;
+	}
+
+}
@@ -20,14 +20,28 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.aludratest.cloud.event.ManagedResourceRequestCanceledEvent;
+import org.aludratest.cloud.event.ManagedResourceRequestStateChangedEvent;
 import org.aludratest.cloud.impl.request.ClientRequestImpl;
 import org.aludratest.cloud.manager.ManagedResourceRequest;
 import org.aludratest.cloud.manager.ResourceManager;
@@ -38,14 +52,20 @@ import org.aludratest.cloud.resource.Resource;
 import org.aludratest.cloud.resource.UsableResource;
 import org.aludratest.cloud.resource.writer.JSONResourceWriter;
 import org.aludratest.cloud.resource.writer.ResourceWriterFactory;
-import org.aludratest.cloud.selenium.util.GateKeeper;
 import org.aludratest.cloud.user.User;
+import org.aludratest.cloud.web.impl.admission.AdmissionControl;
+import org.aludratest.cloud.web.impl.metrics.Histogram;
+import org.aludratest.cloud.web.impl.metrics.MetricsRegistry;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 
 /**
@@ -64,17 +84,19 @@ import org.springframework.stereotype.Component;
  * <code>jobName</code> is optional and defaults to <code>null</code>. <br>
  * <code>customAttributes</code> do not need to be specified. <br>
  * <br>
- * The method {@link #handleResourceRequest(User, JSONObject)} will wait up to
- * 10 seconds for a resource to become available for the request. If the request
- * is still waiting for a resource after this time, the method will return a
- * JSON object containing the assigned request ID and a flag that the request is
+ * The future returned by {@link #handleResourceRequest(User, JSONObject)} is
+ * completed as soon as a resource has been assigned to the request, but after
+ * 10 seconds at the latest. The calling thread is never blocked, so a servlet
+ * container thread is not held while the client waits. If the request is still
+ * waiting for a resource after this time, the future is completed with a JSON
+ * object containing the assigned request ID and a flag that the request is
  * still waiting:
  *
  * <pre>
  * { requestId: 'abc123', waiting: true }
  * </pre>
  *
- * If you receive such a JSON object from this method, you have up to 60 seconds
+ * If you receive such a JSON object, you have up to 60 seconds
  * time to again query for this request, now specifying the request ID:
  *
  * <pre>
@@ -94,6 +116,23 @@ import org.springframework.stereotype.Component;
  * If you do not re-query a request within 60 seconds after receiving a
  * "waiting" response, the handler will signal the resource manager to abort the
  * request. <br>
+ * <br>
+ * New requests are subject to admission control (see {@link AdmissionControl}).
+ * If a limit is exceeded, an error object with a <code>retryAfterMs</code>
+ * attribute is returned immediately:
+ *
+ * <pre>
+ * { errorMessage: 'Too many requests, please retry later', retryAfterMs: 150 }
+ * </pre>
+ *
+ * HTTP endpoints should use {@link #toResponseEntity(JSONObject)} to send such
+ * a rejection as <code>429 Too Many Requests</code> with a
+ * <code>Retry-After</code> header.
+ *
+ * Polls are completed on an executor of this handler, not on the thread
+ * publishing the resource manager's events. Concurrent polls of the same
+ * request are completed with the same JSON object, which must therefore not be
+ * modified.
  *
  * @author falbrech
  * @deprecated Resource modules should have their own API dependent connectors
@@ -112,78 +151,232 @@ public class ClientRequestHandlerImpl {
 	@Autowired
 	private ResourceModuleRegistry resourceModuleRegistry;
 
-	private GateKeeper gateKeeper = new GateKeeper(50, TimeUnit.MILLISECONDS);
+	@Autowired
+	private AdmissionControl admissionControl;
+
+	@Autowired
+	private MetricsRegistry metricsRegistry;
+
+	/**
+	 * Index of all requests created by this handler which have not yet reached a
+	 * terminal state, by request ID. Avoids scanning all managed requests of the
+	 * resource manager for every poll, release or abort.
+	 */
+	private Map<String, ManagedResourceRequest> requestsById = new ConcurrentHashMap<String, ManagedResourceRequest>();
+
+	/**
+	 * Polls waiting for a resource to be assigned to a request, by
+	 * request ID.
+	 */
+	private Map<String, Queue<CompletableFuture<JSONObject>>> pendingPolls = new ConcurrentHashMap<String, Queue<CompletableFuture<JSONObject>>>();
+
+	/**
+	 * Submission time (<code>System.nanoTime()</code>) of requests which have not yet been assigned a resource, by
+	 * request ID.
+	 */
+	private Map<String, Long> submitNanos = new ConcurrentHashMap<String, Long>();
+
+	private LongAdder waitingResponseCounter;
+
+	private Histogram pollWaitMicros;
+
+	private Histogram retryAfterMillis;
+
+	/** Assignment wait histograms by resource type name, so they are not looked up in the registry per request. */
+	private Map<String, Histogram> assignmentWaitMicros = new ConcurrentHashMap<String, Histogram>();
+
+	/** Submission counters by resource type name. */
+	private Map<String, LongAdder> submissionCounters = new ConcurrentHashMap<String, LongAdder>();
+
+	private ScheduledExecutorService pollTimeoutExecutor = Executors.newSingleThreadScheduledExecutor((r) -> {
+		Thread t = new Thread(r, "acm-poll-timeout");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Completes polls when a resource has been assigned, so writing the response, and starting to use the resource,
+	 * does not run within the event dispatch of the resource manager.
+	 */
+	private ExecutorService pollResponseExecutor = Executors
+			.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), (r) -> {
+				Thread t = new Thread(r, "acm-poll-response");
+				t.setDaemon(true);
+				return t;
+			});
 
 	/**
 	 * Handles the given resource request, which can be a new request or a reference
-	 * to a previously submitted one. See class Javadoc for details on the JSON
-	 * object parameter.
+	 * to a previously submitted one, without blocking the calling thread. See class
+	 * Javadoc for details on the JSON object parameter.
 	 *
 	 * @param user
 	 *            User submitting the request.
 	 * @param object
 	 *            Request object.
-	 * @return JSON object describing the received resource, or indicating that the
-	 *         request is still waiting for a resource to receive.
+	 * @return Future being completed with a JSON object describing the received
+	 *         resource, or indicating that the request is still waiting for a
+	 *         resource to receive.
 	 *
 	 * @throws JSONException
 	 *             If the input JSON object is invalid.
 	 */
-	public JSONObject handleResourceRequest(User user, JSONObject object) throws JSONException {
-		try {
-			gateKeeper.enter();
-		}
-		catch (InterruptedException e) {
-			return createErrorObject("ACM service is shutting down");
+	public CompletableFuture<JSONObject> handleResourceRequest(User user, JSONObject object) throws JSONException {
+		JSONObject rejection = admit(user, object);
+		if (rejection != null) {
+			return CompletableFuture.completedFuture(rejection);
 		}
 
 		LOG.debug("Handling resource request for user " + user);
 		try {
+			ManagedResourceRequest managedRequest;
 			// if there is already a request ID, get query belonging to it
 			if (object.has("requestId")) {
-				String requestId = object.getString("requestId");
-				return waitForFuture(requestId);
+				Optional<? extends ManagedResourceRequest> opRequest = getRequest(object.getString("requestId"));
+				if (!opRequest.isPresent()) {
+					return CompletableFuture
+							.completedFuture(createErrorObject("Invalid request ID, or request has timed out"));
+				}
+				managedRequest = opRequest.get();
 			}
-
-			ResourceModule module = resourceModuleRegistry.getResourceModule(object.getString("resourceType"));
-			if (module == null) {
-				return createErrorObject("Unknown resource type");
+			else {
+				managedRequest = submitRequest(user, object);
+				if (managedRequest == null) {
+					return CompletableFuture.completedFuture(createErrorObject("Unknown resource type"));
+				}
 			}
 
-			// build resource request out of request
+			return awaitFuture(managedRequest);
+		}
+		catch (ResourceManagerException e) {
+			return CompletableFuture.completedFuture(createErrorObject(e));
+		}
+	}
 
-			// check if there are custom attributes
-			Map<String, String> attributes = new HashMap<String, String>();
-			if (object.has("customAttributes")) {
-				JSONObject attrs = object.getJSONObject("customAttributes");
-				Iterator<?> keys = attrs.keys();
-				while (keys.hasNext()) {
-					String key = keys.next().toString();
-					attributes.put(key, attrs.getString(key));
-				}
-			}
+	@PostConstruct
+	private void registerMetrics() {
+		waitingResponseCounter = metricsRegistry.counter("acm_client_waiting_responses_total",
+				"Responses telling the client that its request is still waiting for a resource");
+		pollWaitMicros = metricsRegistry.histogram("acm_client_response_wait_seconds",
+				"Time a client request waits in the server for a resource before being answered",
+				MetricsRegistry.LATENCY_SECONDS_BOUNDS, MetricsRegistry.MICROS_TO_SECONDS);
+		retryAfterMillis = metricsRegistry.histogram("acm_admission_retry_after_seconds",
+				"Time throttled clients are told to wait before submitting again", MetricsRegistry.LATENCY_SECONDS_BOUNDS,
+				0.001);
+	}
+
+	/**
+	 * Stops the timer and the executor used for completing waiting polls.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		pollTimeoutExecutor.shutdownNow();
+		pollResponseExecutor.shutdownNow();
+	}
+
+	/**
+	 * Passes the given request through admission control. Polls for existing
+	 * requests are always admitted.
+	 *
+	 * @return <code>null</code> if the request is admitted, otherwise the JSON
+	 *         object to return to the client.
+	 */
+	private JSONObject admit(User user, JSONObject object) throws JSONException {
+		if (object.has("requestId")) {
+			admissionControl.admitPoll();
+			return null;
+		}
+
+		long retryAfterMs = admissionControl.admitSubmission(user, object.optString("resourceType"));
+		if (retryAfterMs > 0) {
+			retryAfterMillis.record(retryAfterMs);
+			LOG.debug("Throttling resource request for user " + user);
+			JSONObject result = createErrorObject("Too many requests, please retry later");
+			result.put("retryAfterMs", retryAfterMs);
+			return result;
+		}
+
+		return null;
+	}
 
-			// check for a name
-			String name = "unnamed job";
-			if (object.has("jobName")) {
-				name = object.getString("jobName");
+	/**
+	 * Wraps a JSON object returned by
+	 * {@link #handleResourceRequest(User, JSONObject)} in an HTTP response, for
+	 * use by any endpoint passing requests to this handler. Requests rejected by
+	 * admission control are answered with <code>429 Too Many Requests</code>
+	 * and a <code>Retry-After</code> header (in seconds, rounded up); all other
+	 * results, including errors, are answered with <code>200 OK</code>, as
+	 * clients evaluate the JSON object.
+	 *
+	 * @param resultObject
+	 *            JSON object returned by this handler.
+	 *
+	 * @return The HTTP response to send to the client.
+	 */
+	public static ResponseEntity<String> toResponseEntity(JSONObject resultObject) {
+		long retryAfterMs = resultObject.optLong("retryAfterMs", 0);
+		if (retryAfterMs > 0) {
+			return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+					.header(HttpHeaders.RETRY_AFTER, Long.toString((retryAfterMs + 999) / 1000))
+					.body(resultObject.toString());
+		}
+		return ResponseEntity.ok(resultObject.toString());
+	}
+
+	// package-private for tests
+	ManagedResourceRequest submitRequest(User user, JSONObject object)
+			throws JSONException, ResourceManagerException {
+		ResourceModule module = resourceModuleRegistry.getResourceModule(object.getString("resourceType"));
+		if (module == null) {
+			return null;
+		}
+
+		// build resource request out of request
+
+		// check if there are custom attributes
+		Map<String, String> attributes = new HashMap<String, String>();
+		if (object.has("customAttributes")) {
+			JSONObject attrs = object.getJSONObject("customAttributes");
+			Iterator<?> keys = attrs.keys();
+			while (keys.hasNext()) {
+				String key = keys.next().toString();
+				attributes.put(key, attrs.getString(key));
 			}
+		}
+
+		// check for a name
+		String name = "unnamed job";
+		if (object.has("jobName")) {
+			name = object.getString("jobName");
+		}
+
+		String requestId = generateUniqueRequestKey();
+		ClientRequestImpl request = new ClientRequestImpl(requestId, user, module.getResourceType(),
+				object.optInt("niceLevel", 0), name, attributes);
 
-			String requestId = generateUniqueRequestKey();
-			ClientRequestImpl request = new ClientRequestImpl(requestId, user, module.getResourceType(),
-					object.optInt("niceLevel", 0), name, attributes);
+		submissionCounters.computeIfAbsent(module.getResourceType().getName(), (type) -> metricsRegistry
+				.counter("acm_client_submissions_total", "Submitted resource requests", "resource_type", type))
+				.increment();
 
-			// returns immediately; we do not store the managed request here
-			ManagedResourceRequest managedRequest = manager.handleResourceRequest(request);
-			LOG.debug("Request " + requestId + " started");
-			return waitForFuture(managedRequest, requestId);
+		// a resource could be assigned before handleResourceRequest() returns
+		submitNanos.put(requestId, Long.valueOf(System.nanoTime()));
+
+		// returns immediately
+		ManagedResourceRequest managedRequest;
+		try {
+			managedRequest = manager.handleResourceRequest(request);
 		}
-		catch (SQLException e) {
-			return createErrorObject(e);
+		catch (ResourceManagerException | RuntimeException e) {
+			submitNanos.remove(requestId);
+			throw e;
 		}
-		catch (ResourceManagerException e) {
-			return createErrorObject(e);
+		requestsById.put(requestId, managedRequest);
+		// request could have been terminated before being indexed
+		if (isTerminated(managedRequest)) {
+			requestsById.remove(requestId);
 		}
+		LOG.debug("Request " + requestId + " started");
+		return managedRequest;
 	}
 
 	/**
@@ -243,53 +436,172 @@ public class ClientRequestHandlerImpl {
 		opRequest.get().getResourceFuture().cancel(false);
 	}
 
-	private Optional<? extends ManagedResourceRequest> getRequest(final String requestId) {
-		return streamRequests()
-				.filter((request) -> request.getRequest() instanceof ClientRequestImpl
-						&& requestId.equals(((ClientRequestImpl) request.getRequest()).getRequestId()))
-				.findFirst();
+	/**
+	 * Completes waiting asynchronous polls when a resource has been assigned to
+	 * their request, and removes requests from the request index as soon as they
+	 * reach a terminal state.
+	 *
+	 * @param event
+	 *            Event describing the state change of a managed request.
+	 */
+	@EventListener
+	public void handleResourceRequestStateChangedEvent(ManagedResourceRequestStateChangedEvent event) {
+		recordAssignment(event.getManagedRequest());
+		completePendingPolls(event.getManagedRequest());
+		switch (event.getNewState()) {
+			case FINISHED:
+			case ORPHANED:
+				unregisterRequest(event.getManagedRequest());
+				break;
+			default:
+				break;
+		}
 	}
 
-	private JSONObject waitForFuture(final String requestId) throws JSONException, SQLException {
-		Optional<? extends ManagedResourceRequest> opRequest = getRequest(requestId);
+	/**
+	 * Completes waiting asynchronous polls of canceled requests, and removes
+	 * canceled requests from the request index.
+	 *
+	 * @param event
+	 *            Event describing the canceled managed request.
+	 */
+	@EventListener
+	public void handleResourceRequestCanceledEvent(ManagedResourceRequestCanceledEvent event) {
+		completePendingPolls(event.getManagedRequest());
+		unregisterRequest(event.getManagedRequest());
+	}
 
-		if (!opRequest.isPresent()) {
-			return createErrorObject("Invalid request ID, or request has timed out");
+	// package-private for the load test harness
+	void unregisterRequest(ManagedResourceRequest request) {
+		if (request != null && request.getRequest() instanceof ClientRequestImpl) {
+			String requestId = ((ClientRequestImpl) request.getRequest()).getRequestId();
+			requestsById.remove(requestId, request);
+			pendingPolls.remove(requestId);
+			submitNanos.remove(requestId);
 		}
+	}
 
-		return waitForFuture(opRequest.get(), requestId);
+	/**
+	 * Records the time from submission to resource assignment, once per request, when a resource has been assigned.
+	 */
+	private void recordAssignment(ManagedResourceRequest request) {
+		if (request == null || !(request.getRequest() instanceof ClientRequestImpl)
+				|| !request.getResourceFuture().isDone() || request.getResourceFuture().isCancelled()) {
+			return;
+		}
+		Long startTime = submitNanos.remove(((ClientRequestImpl) request.getRequest()).getRequestId());
+		if (startTime != null && request.getRequest().getResourceType() != null) {
+			assignmentWaitMicros.computeIfAbsent(request.getRequest().getResourceType().getName(),
+					(type) -> metricsRegistry.histogram("acm_request_assignment_wait_seconds",
+							"Time from submission of a resource request until a resource is assigned",
+							MetricsRegistry.LATENCY_SECONDS_BOUNDS, MetricsRegistry.MICROS_TO_SECONDS, "resource_type",
+							type))
+					.record((System.nanoTime() - startTime.longValue()) / 1000);
+		}
 	}
 
-	private JSONObject waitForFuture(ManagedResourceRequest request, String requestId)
-			throws JSONException, SQLException {
+	private boolean isTerminated(ManagedResourceRequest request) {
+		ManagedResourceRequest.State state = request.getState();
+		return state == ManagedResourceRequest.State.FINISHED || state == ManagedResourceRequest.State.ORPHANED
+				|| request.getResourceFuture().isCancelled();
+	}
+
+	// package-private for benchmarks
+	Optional<? extends ManagedResourceRequest> getRequest(final String requestId) {
+		return Optional.ofNullable(requestsById.get(requestId));
+	}
+
+	private CompletableFuture<JSONObject> awaitFuture(final ManagedResourceRequest request) throws JSONException {
 		if (request.getResourceFuture().isCancelled()) {
-			return createErrorObject("Request has timed out");
+			return CompletableFuture.completedFuture(createErrorObject("Request has timed out"));
 		}
 
-		try {
-			// wait for max 10 seconds - if it takes longer -> TimeoutException
-			Resource resource = request.getResourceFuture().get(10, TimeUnit.SECONDS);
+		String requestId = ((ClientRequestImpl) request.getRequest()).getRequestId();
+		final long startTime = System.nanoTime();
+		final CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject>();
+		final Queue<CompletableFuture<JSONObject>> polls = pendingPolls.computeIfAbsent(requestId,
+				(id) -> new ConcurrentLinkedQueue<CompletableFuture<JSONObject>>());
+		polls.add(result);
+
+		// answer with "waiting" after max 10 seconds
+		final ScheduledFuture<?> timeout = pollTimeoutExecutor.schedule(() -> {
+			try {
+				result.complete(createWaitingObject(request));
+			}
+			catch (JSONException e) {
+				result.completeExceptionally(e);
+			}
+		}, 10, TimeUnit.SECONDS);
 
-			if (request.getRequest() instanceof ClientRequestImpl) {
-				startWorking(resource, (ClientRequestImpl) request.getRequest());
+		result.whenComplete((r, t) -> {
+			polls.remove(result);
+			timeout.cancel(false);
+			pollWaitMicros.record((System.nanoTime() - startTime) / 1000);
+		});
 
-				ResourceWriterFactory factory = resourceModuleRegistry
-						.getResourceWriterFactory(resource.getResourceType());
-				factory.getResourceWriter(JSONResourceWriter.class);
-				JSONResourceWriter writer = factory.getResourceWriter(JSONResourceWriter.class);
+		// resource could have been assigned before poll was registered
+		completePolls(request, requestId, polls);
+		return result;
+	}
 
-				// wrap it with meta object
-				JSONObject resultObject = new JSONObject();
-				resultObject.put("resourceType", resource.getResourceType().getName());
-				resultObject.put("resource", writer.writeToJSON(resource));
-				resultObject.put("requestId", ((ClientRequestImpl) request.getRequest()).getRequestId());
-				LOG.debug("Telling request " + requestId + " to use resource " + resource);
+	private void completePendingPolls(ManagedResourceRequest request) {
+		if (request == null || !(request.getRequest() instanceof ClientRequestImpl)
+				|| !request.getResourceFuture().isDone()) {
+			return;
+		}
 
-				return resultObject;
+		String requestId = ((ClientRequestImpl) request.getRequest()).getRequestId();
+		// look the polls up now, as the request may be unregistered before the executor runs
+		Queue<CompletableFuture<JSONObject>> polls = pendingPolls.get(requestId);
+		if (polls != null && !polls.isEmpty()) {
+			try {
+				pollResponseExecutor.execute(() -> completePolls(request, requestId, polls));
+			}
+			catch (RejectedExecutionException e) {
+				LOG.debug("Not completing polls of request " + requestId + ", handler is shut down");
 			}
+		}
+	}
+
+	private void completePolls(ManagedResourceRequest request, String requestId,
+			Queue<CompletableFuture<JSONObject>> polls) {
+		if (!request.getResourceFuture().isDone()) {
+			return;
+		}
+
+		// all polls of the request get the same object, so it is built at most once
+		JSONObject completedObject = null;
+		JSONException exception = null;
+		CompletableFuture<JSONObject> poll;
+		while ((poll = polls.poll()) != null) {
+			if (poll.isDone()) {
+				continue;
+			}
+			if (completedObject == null && exception == null) {
+				try {
+					completedObject = createCompletedObject(request, requestId);
+				}
+				catch (JSONException e) {
+					exception = e;
+				}
+			}
+			if (exception != null) {
+				poll.completeExceptionally(exception);
+			}
+			else {
+				poll.complete(completedObject);
+			}
+		}
+	}
 
-			return createErrorObject("Internal error - received invalid request type");
+	// package-private for benchmarks
+	JSONObject createCompletedObject(ManagedResourceRequest request, String requestId) throws JSONException {
+		if (request.getResourceFuture().isCancelled()) {
+			return createErrorObject("Request has timed out");
+		}
 
+		try {
+			return createResourceObject(request.getResourceFuture().get(), request, requestId);
 		}
 		catch (ExecutionException e) {
 			LOG.error("Execution exception when waiting for resource", e);
@@ -298,14 +610,40 @@ public class ClientRequestHandlerImpl {
 		catch (InterruptedException e) {
 			return createErrorObject("AludraTest Cloud Manager server is shutting down");
 		}
-		catch (TimeoutException e) {
-			JSONObject result = new JSONObject();
-			if (request.getRequest() instanceof ClientRequestImpl) {
-				result.put("requestId", ((ClientRequestImpl) request.getRequest()).getRequestId());
-			}
-			result.put("waiting", true);
-			return result;
+		catch (SQLException e) {
+			return createErrorObject(e);
+		}
+	}
+
+	private JSONObject createResourceObject(Resource resource, ManagedResourceRequest request, String requestId)
+			throws JSONException, SQLException {
+		if (request.getRequest() instanceof ClientRequestImpl) {
+			startWorking(resource, (ClientRequestImpl) request.getRequest());
+
+			ResourceWriterFactory factory = resourceModuleRegistry.getResourceWriterFactory(resource.getResourceType());
+			JSONResourceWriter writer = factory.getResourceWriter(JSONResourceWriter.class);
+
+			// wrap it with meta object
+			JSONObject resultObject = new JSONObject();
+			resultObject.put("resourceType", resource.getResourceType().getName());
+			resultObject.put("resource", writer.writeToJSON(resource));
+			resultObject.put("requestId", ((ClientRequestImpl) request.getRequest()).getRequestId());
+			LOG.debug("Telling request " + requestId + " to use resource " + resource);
+
+			return resultObject;
 		}
+
+		return createErrorObject("Internal error - received invalid request type");
+	}
+
+	private JSONObject createWaitingObject(ManagedResourceRequest request) throws JSONException {
+		JSONObject result = new JSONObject();
+		if (request.getRequest() instanceof ClientRequestImpl) {
+			result.put("requestId", ((ClientRequestImpl) request.getRequest()).getRequestId());
+		}
+		result.put("waiting", true);
+		waitingResponseCounter.increment();
+		return result;
 	}
 
 	private void startWorking(Resource resource, ClientRequestImpl request)
@@ -329,7 +667,8 @@ public class ClientRequestHandlerImpl {
 				.map((r) -> (ClientRequestImpl) r.getRequest());
 	}
 
-	private String generateUniqueRequestKey() {
+	// package-private for benchmarks
+	String generateUniqueRequestKey() {
 		final StringBuilder key = new StringBuilder();
 		do {
 			if (key.length() > 0) {
@@ -339,11 +678,12 @@ public class ClientRequestHandlerImpl {
 				key.append(Integer.toHexString((int) (Math.random() * 16)));
 			}
 		}
-		while (streamClientRequests().anyMatch((r) -> key.toString().equals(r.getRequestId())));
+		while (requestsById.containsKey(key.toString()));
 		return key.toString();
 	}
 
-	private JSONObject createErrorObject(Throwable t) throws JSONException {
+	// package-private for the request controller
+	JSONObject createErrorObject(Throwable t) throws JSONException {
 		return createErrorObject(t.getMessage());
 	}
 
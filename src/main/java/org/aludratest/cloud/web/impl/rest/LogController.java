@@ -1,57 +1,301 @@
 package org.aludratest.cloud.web.impl.rest;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.Principal;
+import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.time.Instant;
 import java.util.Locale;
 
-import javax.sql.rowset.CachedRowSet;
-
+import org.aludratest.cloud.web.impl.logdb.ConnectionPoolStatistics;
+import org.aludratest.cloud.web.impl.logdb.DatabaseRequestLogger;
 import org.aludratest.cloud.web.impl.logdb.LogDb;
+import org.aludratest.cloud.web.impl.logdb.LogQueryCache;
+import org.aludratest.cloud.web.impl.logdb.LogQueryCursor;
+import org.aludratest.cloud.web.impl.logdb.LogQueryGovernor;
+import org.aludratest.cloud.web.impl.logdb.RunningLogQuery;
+import org.aludratest.cloud.web.impl.metrics.Histogram;
 import org.aludratest.cloud.web.rest.AbstractRestController;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 @Controller
 public class LogController extends AbstractRestController {
 
+	private static final Logger LOG = LoggerFactory.getLogger(LogController.class);
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
 	@Autowired
 	private LogDb logDb;
 
 	@PreAuthorize("hasAuthority('ROLE_ADMIN')")
 	@RequestMapping(value = "/api/logdb", method = RequestMethod.GET, produces = JSON_TYPE)
-	public ResponseEntity<String> executeLogQuery(@RequestParam("query") String query) {
-		// quick check: Query must start with SELECT (note: this is not enough to
-		// prevent modification)
-		if (!query.trim().toLowerCase(Locale.US).startsWith("select")) {
+	public ResponseEntity<String> executeLogQuery(@RequestParam("query") String query, Principal principal) {
+		if (!isSelectQuery(query)) {
 			return createErrorObject("Invalid log query", new IllegalArgumentException("Invalid log query"));
 		}
 
-		try {
-			CachedRowSet rowSet = logDb.populateQuery(query);
-			return wrapResultObject(toJson(rowSet));
+		LogQueryCache cache = logDb.getQueryCache();
+		String cacheKey = LogQueryCache.normalize(query);
+		String cached = cache.get(cacheKey);
+		if (cached != null) {
+			return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(cached);
+		}
+
+		long epoch = cache.getCurrentEpoch();
+		try (LogQueryCursor cursor = logDb.getQueryGovernor().openQuery(query, getName(principal))) {
+			ResponseEntity<String> response = wrapResultObject(toJson(cursor));
+			if (response.getStatusCode() == HttpStatus.OK) {
+				cache.put(cacheKey, epoch, response.getBody());
+			}
+			return response;
 		} catch (SQLException e) {
 			return createErrorObject("Error when executing log query", e);
 		}
 	}
 
-	private JSONObject toJson(CachedRowSet rowSet) throws SQLException {
+	/**
+	 * Executes a log query like {@link #executeLogQuery(String, Principal)}, with the same result structure, but writes
+	 * rows to the response while reading them from the database. Memory usage does not depend on the size of the
+	 * result.
+	 *
+	 * @param query
+	 *            SQL query to execute.
+	 * @param principal
+	 *            User executing the query.
+	 * @return Response streaming the query result, or an error object if the query could not be executed.
+	 */
+	@PreAuthorize("hasAuthority('ROLE_ADMIN')")
+	@RequestMapping(value = "/api/logdb/stream", method = RequestMethod.GET, produces = JSON_TYPE)
+	public ResponseEntity<?> streamLogQuery(@RequestParam("query") String query, Principal principal) {
+		if (!isSelectQuery(query)) {
+			return createErrorObject("Invalid log query", new IllegalArgumentException("Invalid log query"));
+		}
+
+		// open cursor here, so query errors can still be reported as error object
+		final LogQueryCursor cursor;
+		try {
+			cursor = logDb.getQueryGovernor().openQuery(query, getName(principal));
+		}
+		catch (SQLException e) {
+			return createErrorObject("Error when executing log query", e);
+		}
+
+		StreamingResponseBody body = (out) -> {
+			try {
+				writeJson(cursor, out);
+			}
+			catch (SQLException e) {
+				// response is already committed; client will receive incomplete JSON
+				LOG.error("Error when streaming log query result", e);
+				throw new IOException(e);
+			}
+			finally {
+				cursor.close();
+			}
+		};
+
+		return ResponseEntity.ok().body(body);
+	}
+
+	@PreAuthorize("hasAuthority('ROLE_ADMIN')")
+	@RequestMapping(value = "/api/logdb/stats", method = RequestMethod.GET, produces = JSON_TYPE)
+	public ResponseEntity<String> getLogStatistics() {
+		DatabaseRequestLogger logger = logDb.getRequestLogger();
+		JSONObject queue = new JSONObject();
+		queue.put("depth", logger.getQueueDepth());
+		queue.put("capacity", logger.getQueueCapacity());
+		queue.put("highWaterMark", logger.getQueueHighWaterMark());
+		queue.put("dropped", logger.getDroppedCommands());
+		queue.put("spilled", logger.getSpilledCommands());
+		queue.put("pendingSpilled", logger.getPendingSpilledCommands());
+
+		JSONObject result = new JSONObject();
+		result.put("queue", queue);
+		result.put("trackedRequests", logDb.getTrackedRequestCount());
+		result.put("evictedRequests", logDb.getEvictedRequestCount());
+		result.put("batchSizes", toJson(logDb.getLogBatchSizes()));
+		result.put("commitLatenciesMicros", toJson(logDb.getLogCommitLatenciesMicros()));
+
+		LogQueryCache cache = logDb.getQueryCache();
+		JSONObject queryCache = new JSONObject();
+		queryCache.put("entries", cache.getEntryCount());
+		queryCache.put("usedBytes", cache.getUsedBytes());
+		queryCache.put("maxBytes", cache.getMaxBytes());
+		queryCache.put("hits", cache.getHits());
+		queryCache.put("misses", cache.getMisses());
+		queryCache.put("hitRatio", cache.getHitRatio());
+		queryCache.put("evictions", cache.getEvictions());
+		queryCache.put("invalidations", cache.getInvalidations());
+		result.put("queryCache", queryCache);
+
+		LogQueryGovernor governor = logDb.getQueryGovernor();
+		JSONObject queries = new JSONObject();
+		queries.put("running", governor.getRunningQueries().size());
+		queries.put("rejected", governor.getRejectedQueries());
+		queries.put("canceled", governor.getCanceledQueries());
+		result.put("queries", queries);
+
+		ConnectionPoolStatistics poolStatistics = logDb.getConnectionPoolStatistics();
+		JSONObject pool = new JSONObject();
+		pool.put("active", poolStatistics.getActiveConnections());
+		pool.put("idle", poolStatistics.getIdleConnections());
+		pool.put("max", poolStatistics.getMaxConnections());
+		pool.put("waiting", poolStatistics.getWaitingThreads());
+		pool.put("created", poolStatistics.getCreatedConnections());
+		pool.put("destroyed", poolStatistics.getDestroyedConnections());
+		pool.put("borrowed", poolStatistics.getBorrowedConnections());
+		pool.put("writerConnectionsOpened", poolStatistics.getWriterConnectionsOpened());
+		pool.put("borrowWaitMicros", toJson(logDb.getConnectionBorrowWaitMicros()));
+		result.put("connectionPool", pool);
+		return wrapResultObject(result);
+	}
+
+	/**
+	 * Lists the ad-hoc log queries currently running.
+	 *
+	 * @return A result object containing the running <code>queries</code>.
+	 */
+	@PreAuthorize("hasAuthority('ROLE_ADMIN')")
+	@RequestMapping(value = "/api/logdb/queries", method = RequestMethod.GET, produces = JSON_TYPE)
+	public ResponseEntity<String> getRunningQueries() {
+		long now = System.currentTimeMillis();
+		JSONArray queries = new JSONArray();
+		for (RunningLogQuery query : logDb.getQueryGovernor().getRunningQueries()) {
+			JSONObject obj = new JSONObject();
+			obj.put("id", query.getId());
+			obj.put("query", query.getQuery());
+			obj.put("owner", query.getOwner());
+			obj.put("startTime", Instant.ofEpochMilli(query.getStartTime()).toString());
+			obj.put("runningMillis", now - query.getStartTime());
+			obj.put("canceled", query.isCanceled());
+			queries.put(obj);
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("queries", queries);
+		return wrapResultObject(result);
+	}
+
+	/**
+	 * Cancels a running ad-hoc log query.
+	 *
+	 * @param id
+	 *            ID of the query to cancel, as listed by {@link #getRunningQueries()}.
+	 * @return A result object indicating if the query has been <code>canceled</code>, or a 404 response if no such query
+	 *         is running.
+	 */
+	@PreAuthorize("hasAuthority('ROLE_ADMIN')")
+	@RequestMapping(value = "/api/logdb/queries/{id}", method = RequestMethod.DELETE, produces = JSON_TYPE)
+	public ResponseEntity<String> cancelQuery(@PathVariable("id") long id) {
+		if (!logDb.getQueryGovernor().cancel(id)) {
+			return ResponseEntity.notFound().build();
+		}
 		JSONObject result = new JSONObject();
-		result.put("columns", buildColumnsArray(rowSet));
-		result.put("data", buildDataArray(rowSet));
+		result.put("canceled", true);
+		return wrapResultObject(result);
+	}
+
+	private static String getName(Principal principal) {
+		return principal == null ? null : principal.getName();
+	}
+
+	private JSONObject toJson(Histogram histogram) {
+		JSONObject result = new JSONObject();
+		result.put("count", histogram.getCount());
+		result.put("mean", histogram.getMean());
+		result.put("p50", histogram.getValueAtPercentile(50));
+		result.put("p90", histogram.getValueAtPercentile(90));
+		result.put("p99", histogram.getValueAtPercentile(99));
+		result.put("max", histogram.getMax());
+		return result;
+	}
+
+	private static boolean isSelectQuery(String query) {
+		// quick check: Query must start with SELECT (note: this is not enough to
+		// prevent modification)
+		return query.trim().toLowerCase(Locale.US).startsWith("select");
+	}
+
+	/**
+	 * Writes the results of the given cursor in the structure of {@link #toJson(LogQueryCursor)}, wrapped in a result
+	 * object. Package-private for benchmarks.
+	 */
+	void writeJson(LogQueryCursor cursor, OutputStream out) throws IOException, SQLException {
+		JsonGenerator json = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8);
+		ResultSet rs = cursor.getResultSet();
+		ResultSetMetaData metaData = rs.getMetaData();
+		int colCount = metaData.getColumnCount();
+
+		json.writeStartObject();
+		json.writeObjectFieldStart("result");
+
+		json.writeArrayFieldStart("columns");
+		for (int i = 1; i <= colCount; i++) {
+			json.writeStartObject();
+			json.writeStringField("type", metaData.getColumnTypeName(i));
+			json.writeStringField("label", metaData.getColumnLabel(i));
+			json.writeEndObject();
+		}
+		json.writeEndArray();
+
+		// as in buildDataArray(), NULL values are omitted
+		json.writeArrayFieldStart("data");
+		while (cursor.next()) {
+			json.writeStartObject();
+			for (int i = 1; i <= colCount; i++) {
+				String value = rs.getString(i);
+				if (value != null) {
+					json.writeStringField(Integer.toString(i), value);
+				}
+			}
+			json.writeEndObject();
+		}
+		json.writeEndArray();
+		if (cursor.isTruncated()) {
+			json.writeBooleanField("truncated", true);
+		}
+
+		json.writeEndObject();
+		json.writeEndObject();
+		json.flush();
+	}
+
+	// package-private for benchmarks
+	JSONObject toJson(LogQueryCursor cursor) throws SQLException {
+		JSONObject result = new JSONObject();
+		result.put("columns", buildColumnsArray(cursor.getResultSet()));
+		result.put("data", buildDataArray(cursor));
+		if (cursor.isTruncated()) {
+			result.put("truncated", true);
+		}
 
 		return result;
 	}
 
-	private JSONArray buildColumnsArray(CachedRowSet rowSet) throws SQLException {
+	private JSONArray buildColumnsArray(ResultSet rs) throws SQLException {
 		JSONArray result = new JSONArray();
-		ResultSetMetaData metaData = rowSet.getMetaData();
+		ResultSetMetaData metaData = rs.getMetaData();
 
 		for (int i = 1; i <= metaData.getColumnCount(); i++) {
 			JSONObject col = new JSONObject();
@@ -63,14 +307,15 @@ public class LogController extends AbstractRestController {
 		return result;
 	}
 
-	private JSONArray buildDataArray(CachedRowSet rowSet) throws SQLException {
+	private JSONArray buildDataArray(LogQueryCursor cursor) throws SQLException {
 		JSONArray result = new JSONArray();
-		int colCount = rowSet.getMetaData().getColumnCount();
+		ResultSet rs = cursor.getResultSet();
+		int colCount = rs.getMetaData().getColumnCount();
 
-		while (rowSet.next()) {
+		while (cursor.next()) {
 			JSONObject row = new JSONObject();
 			for (int i = 1; i <= colCount; i++) {
-				row.put("" + i, rowSet.getString(i));
+				row.put("" + i, rs.getString(i));
 			}
 			result.put(row);
 		}
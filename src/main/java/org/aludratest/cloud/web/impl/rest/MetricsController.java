@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import org.aludratest.cloud.web.impl.metrics.MetricsRegistry;
+import org.aludratest.cloud.web.rest.AbstractRestController;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * REST controller exposing the application metrics in the Prometheus text exposition format.
+ */
+@Controller
+public class MetricsController extends AbstractRestController {
+
+	private static final String PROMETHEUS_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	@Autowired
+	private MetricsRegistry metricsRegistry;
+
+	/**
+	 * Returns all metrics of the application, see {@link MetricsRegistry}.
+	 *
+	 * @return The metrics in the Prometheus text exposition format.
+	 */
+	@PreAuthorize("hasAuthority('ROLE_ADMIN')")
+	@RequestMapping(value = "/api/metrics", method = RequestMethod.GET, produces = PROMETHEUS_TYPE)
+	public ResponseEntity<String> getMetrics() {
+		StringBuilder sb = new StringBuilder(8192);
+		metricsRegistry.writePrometheus(sb);
+		return ResponseEntity.ok(sb.toString());
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import org.aludratest.cloud.web.impl.monitoring.MonitoringEventBroadcaster;
+import org.aludratest.cloud.web.rest.AbstractRestController;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * REST controller providing a Server-Sent Events stream of monitoring updates, see
+ * {@link MonitoringEventBroadcaster}. Clients should subscribe to this stream and reload the monitoring resources when
+ * notified, instead of polling them.
+ */
+@Controller
+public class MonitoringEventController extends AbstractRestController {
+
+	@Autowired
+	private MonitoringEventBroadcaster broadcaster;
+
+	/**
+	 * Opens a Server-Sent Events stream of request state changes and working resource count deltas.
+	 *
+	 * @return The event stream, or status 503 if too many clients are subscribed.
+	 */
+	@RequestMapping(value = "/api/monitoring/events", method = RequestMethod.GET,
+			produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public ResponseEntity<SseEmitter> getMonitoringEvents() {
+		SseEmitter emitter = broadcaster.subscribe();
+		if (emitter == null) {
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "30").build();
+		}
+		// disable response buffering of reverse proxies like nginx
+		return ResponseEntity.ok().header("Cache-Control", "no-cache").header("X-Accel-Buffering", "no")
+				.body(emitter);
+	}
+
+}
@@ -1,5 +1,8 @@
 package org.aludratest.cloud.web.impl.rest;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
 import org.aludratest.cloud.user.StoreException;
 import org.aludratest.cloud.user.User;
 import org.aludratest.cloud.user.admin.UserDatabaseRegistry;
@@ -9,20 +12,28 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 
 /**
+ * Generic REST endpoint for resource requests. Polls are answered
+ * asynchronously via
+ * {@link ClientRequestHandlerImpl#handleResourceRequest(User, JSONObject)}, so
+ * no servlet container thread is held while a client waits for a resource.
+ * Resource modules may still provide their own, API specific endpoints.
+ *
  * @author falbrech
- * @deprecated Currently, no generic endpoint for resource requests - use module
- *             specific endpoints
  *
  */
-@Deprecated
-// @Controller
+@Controller
 public class RequestController extends AbstractRestController {
 
 	private static final Log LOG = LogFactory.getLog(RequestController.class);
@@ -31,42 +42,51 @@ public class RequestController extends AbstractRestController {
 
 	private ClientRequestHandlerImpl requestHandler;
 
-	// @Autowired
+	@Autowired
 	public RequestController(UserDatabaseRegistry userDatabaseRegistry, ClientRequestHandlerImpl requestHandler) {
 		this.userDatabaseRegistry = userDatabaseRegistry;
 		this.requestHandler = requestHandler;
 	}
 
-	// @RequestMapping(value = "/resource", method = RequestMethod.POST, consumes =
-	// MediaType.APPLICATION_JSON_VALUE, produces =
-	// MediaType.APPLICATION_JSON_VALUE)
-	public ResponseEntity<String> handleResourceRequest(@RequestBody String jsonRequest, @RequestHeader("Authorization") String authorization) {
+	// Returning a future lets the servlet container release the request thread
+	// while the client waits for a resource.
+	@RequestMapping(value = "/resource", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE,
+			produces = MediaType.APPLICATION_JSON_VALUE)
+	public CompletableFuture<ResponseEntity<String>> handleResourceRequest(@RequestBody String jsonRequest,
+			@RequestHeader("Authorization") String authorization) {
 		User user;
 		try {
 			user = BasicAuthUtil.authenticate(authorization, userDatabaseRegistry.getSelectedUserDatabase());
 		}
 		catch (IllegalArgumentException e) {
-			return createErrorObject(e);
+			return CompletableFuture.completedFuture(createErrorObject(e));
 		}
 		catch (StoreException e) {
 			LOG.error("Could not authenticate user due to StoreException", e);
-			return createErrorObject("Internal error, please contact the system administrator", e,
-					HttpStatus.INTERNAL_SERVER_ERROR.value());
+			return CompletableFuture.completedFuture(createErrorObject(
+					"Internal error, please contact the system administrator", e,
+					HttpStatus.INTERNAL_SERVER_ERROR.value()));
 		}
 
 		try {
 			JSONObject requestObject = new JSONObject(jsonRequest);
-			JSONObject resultObject = requestHandler.handleResourceRequest(user, requestObject);
-			return ResponseEntity.ok(resultObject.toString());
+			return requestHandler.handleResourceRequest(user, requestObject).handle((resultObject, t) -> {
+				if (t != null) {
+					Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+					LOG.error("Could not complete resource request", cause);
+					return ClientRequestHandlerImpl.toResponseEntity(requestHandler.createErrorObject(cause));
+				}
+				return ClientRequestHandlerImpl.toResponseEntity(resultObject);
+			});
 		}
 		catch (JSONException e) {
 			LOG.debug("JSON exception occurred. Sending BAD_REQUEST.", e);
-			return createErrorObject("Invalid JSON format", e, HttpStatus.BAD_REQUEST.value());
+			return CompletableFuture.completedFuture(
+					createErrorObject("Invalid JSON format", e, HttpStatus.BAD_REQUEST.value()));
 		}
 	}
 
-	// @RequestMapping(value = "/resource/{requestId}", method =
-	// RequestMethod.DELETE)
+	@RequestMapping(value = "/resource/{requestId}", method = RequestMethod.DELETE)
 	public ResponseEntity<String> releaseResource(@PathVariable("requestId") String requestId) {
 		if (requestHandler.handleReleaseRequest(requestId)) {
 			return ResponseEntity.status(HttpStatus.NO_CONTENT).build();
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.aludratest.cloud.web.impl.logdb.LogArchive;
+import org.aludratest.cloud.web.impl.logdb.LogDb;
+import org.aludratest.cloud.web.impl.logdb.LogQueryCursor;
+import org.aludratest.cloud.web.impl.logdb.RequestLogRows;
+import org.aludratest.cloud.web.rest.AbstractRestController;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * REST controller for paging through the request log. In contrast to the free-form queries of {@link LogController},
+ * pages are selected using a keyset cursor on <code>(start_wait_time_utc, request_id)</code>, so every page is an
+ * index range scan on <code>idx_start_wait_id</code> or, for descending order, <code>idx_start_wait_id_desc</code>,
+ * regardless of how deep the client has paged. As Derby cannot scan an index backwards, both indexes are required to
+ * avoid sorting the remaining range before <code>FETCH FIRST</code>. The position
+ * after the last returned entry is handed to the client as an opaque continuation token. <br>
+ * Optionally, entries which have been moved to the {@link LogArchive} are included; the archive files of the
+ * requested time range are then scanned, keeping only the entries needed for the page in memory.
+ */
+@Controller
+public class RequestLogController extends AbstractRestController {
+
+	private static final int DEFAULT_PAGE_SIZE = 100;
+
+	private static final int MAX_PAGE_SIZE = 1000;
+
+	private static final String TOKEN_VERSION = "1";
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	private static final Comparator<PageEntry> ASCENDING = Comparator
+			.comparing((PageEntry e) -> e.startWaitTime).thenComparingLong(e -> e.requestId);
+
+	@Autowired
+	private LogDb logDb;
+
+	/**
+	 * Returns one page of request log entries, ordered by the time the requests started waiting.
+	 *
+	 * @param from
+	 *            Optional ISO-8601 instant; only requests which started waiting at or after this time are returned.
+	 * @param to
+	 *            Optional ISO-8601 instant; only requests which started waiting before this time are returned.
+	 * @param order
+	 *            <code>asc</code> or <code>desc</code> (default). Must match the order of the continuation token, if
+	 *            one is given.
+	 * @param limit
+	 *            Maximum number of entries to return, at most {@value #MAX_PAGE_SIZE}.
+	 * @param continuation
+	 *            Continuation token returned with the previous page, or <code>null</code> to retrieve the first page.
+	 * @param includeArchive
+	 *            If <code>true</code>, entries which have been moved to the log archive are included.
+	 *
+	 * @return A result object containing the <code>requests</code> of this page and, if more entries are available,
+	 *         the <code>continuation</code> token for the next page.
+	 */
+	@PreAuthorize("hasAuthority('ROLE_ADMIN')")
+	@RequestMapping(value = "/api/logdb/requests", method = RequestMethod.GET, produces = JSON_TYPE)
+	public ResponseEntity<String> getRequestLogPage(@RequestParam(value = "from", required = false) String from,
+			@RequestParam(value = "to", required = false) String to,
+			@RequestParam(value = "order", defaultValue = "desc") String order,
+			@RequestParam(value = "limit", defaultValue = "" + DEFAULT_PAGE_SIZE) int limit,
+			@RequestParam(value = "continuation", required = false) String continuation,
+			@RequestParam(value = "includeArchive", defaultValue = "false") boolean includeArchive) {
+		boolean descending;
+		if ("desc".equalsIgnoreCase(order)) {
+			descending = true;
+		}
+		else if ("asc".equalsIgnoreCase(order)) {
+			descending = false;
+		}
+		else {
+			return createErrorObject("Invalid order", new IllegalArgumentException("Invalid order: " + order));
+		}
+
+		if (limit < 1 || limit > MAX_PAGE_SIZE) {
+			return createErrorObject("Invalid limit",
+					new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE + ", but was " + limit));
+		}
+
+		Timestamp fromTime;
+		Timestamp toTime;
+		try {
+			fromTime = from == null ? null : Timestamp.from(Instant.parse(from));
+			toTime = to == null ? null : Timestamp.from(Instant.parse(to));
+		}
+		catch (DateTimeParseException e) {
+			return createErrorObject("Invalid time range", e);
+		}
+
+		Position position = null;
+		if (continuation != null) {
+			try {
+				position = Position.decode(continuation);
+			}
+			catch (IllegalArgumentException e) {
+				return createErrorObject("Invalid continuation token", e);
+			}
+			if (position.descending != descending) {
+				return createErrorObject("Invalid continuation token",
+						new IllegalArgumentException("Continuation token does not match requested order"));
+			}
+		}
+
+		List<Object> params = new ArrayList<>();
+		// fetch one more row to find out whether there is a next page
+		String sql = createPageQuery(fromTime, toTime, position == null ? null : position.startWaitTime,
+				position == null ? 0 : position.requestId, descending, limit + 1, params);
+
+		List<PageEntry> entries = new ArrayList<>();
+		try (LogQueryCursor cursor = logDb.openQuery(sql, params.toArray())) {
+			ResultSet rs = cursor.getResultSet();
+			Calendar utc = Calendar.getInstance(UTC);
+			while (rs.next()) {
+				entries.add(new PageEntry(rs.getTimestamp("start_wait_time_utc", utc), rs.getLong("request_id"),
+						RequestLogRows.toJson(rs)));
+			}
+		}
+		catch (SQLException e) {
+			return createErrorObject("Error when reading request log", e);
+		}
+
+		if (includeArchive) {
+			try {
+				entries = mergeArchived(entries, fromTime, toTime, position, descending, limit + 1);
+			}
+			catch (IOException | RuntimeException e) {
+				return createErrorObject("Error when reading request log archive", e);
+			}
+		}
+
+		JSONArray requests = new JSONArray();
+		for (int i = 0; i < entries.size() && i < limit; i++) {
+			requests.put(entries.get(i).json);
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("requests", requests);
+		if (entries.size() > limit) {
+			PageEntry last = entries.get(limit - 1);
+			result.put("continuation", new Position(descending, last.startWaitTime, last.requestId).encode());
+		}
+		return wrapResultObject(result);
+	}
+
+	/**
+	 * Creates the query selecting one page of request log entries. The matching index is forced, because Derby's
+	 * optimizer does not take <code>FETCH FIRST</code> into account and would otherwise prefer to scan and sort the
+	 * whole range for large tables.
+	 *
+	 * @param fromTime
+	 *            Inclusive lower bound of the start wait time, or <code>null</code>.
+	 * @param toTime
+	 *            Exclusive upper bound of the start wait time, or <code>null</code>.
+	 * @param afterTime
+	 *            Start wait time of the last entry of the previous page, or <code>null</code> for the first page.
+	 * @param afterId
+	 *            Request ID of the last entry of the previous page.
+	 * @param descending
+	 *            <code>true</code> to return the newest entries first.
+	 * @param rows
+	 *            Maximum number of rows to return.
+	 * @param params
+	 *            List to add the query parameters to.
+	 *
+	 * @return The query.
+	 */
+	static String createPageQuery(Timestamp fromTime, Timestamp toTime, Timestamp afterTime, long afterId,
+			boolean descending, int rows, List<Object> params) {
+		// optimizer overrides must be terminated by a line break
+		StringBuilder sql = new StringBuilder("SELECT ").append(RequestLogRows.COLUMNS)
+				.append(" FROM acm_request --DERBY-PROPERTIES index=")
+				.append(descending ? "idx_start_wait_id_desc" : "idx_start_wait_id")
+				.append("\n WHERE start_wait_time_utc IS NOT NULL");
+
+		if (fromTime != null) {
+			sql.append(" AND start_wait_time_utc >= ?");
+			params.add(fromTime);
+		}
+		if (toTime != null) {
+			sql.append(" AND start_wait_time_utc < ?");
+			params.add(toTime);
+		}
+
+		if (afterTime != null) {
+			// the leading single-column bound lets Derby start the index scan at the cursor position; the OR only
+			// filters the entries sharing the cursor's timestamp
+			String cmp = descending ? "<" : ">";
+			sql.append(" AND start_wait_time_utc ").append(cmp).append("= ?");
+			sql.append(" AND (start_wait_time_utc ").append(cmp).append(" ? OR request_id ").append(cmp).append(" ?)");
+			params.add(afterTime);
+			params.add(afterTime);
+			params.add(Long.valueOf(afterId));
+		}
+
+		String direction = descending ? " DESC" : " ASC";
+		sql.append(" ORDER BY start_wait_time_utc").append(direction).append(", request_id").append(direction);
+		sql.append(" FETCH FIRST ").append(rows).append(" ROWS ONLY");
+		return sql.toString();
+	}
+
+	/**
+	 * Merges the given page of live entries with the matching entries of the log archive, and returns the first
+	 * <code>max</code> entries in page order. Only that many entries are kept in memory while scanning the archive.
+	 */
+	private List<PageEntry> mergeArchived(List<PageEntry> live, Timestamp fromTime, Timestamp toTime,
+			Position position, boolean descending, int max) throws IOException {
+		Comparator<PageEntry> order = descending ? ASCENDING.reversed() : ASCENDING;
+		PageEntry after = position == null ? null
+				: new PageEntry(position.startWaitTime, position.requestId, null);
+
+		// head of the queue is the entry to drop first
+		PriorityQueue<PageEntry> best = new PriorityQueue<>(order.reversed());
+		Set<Long> ids = new HashSet<>();
+		for (PageEntry entry : live) {
+			best.add(entry);
+			ids.add(Long.valueOf(entry.requestId));
+		}
+
+		LogArchive archive = logDb.getLogArchive();
+		List<YearMonth> months = archive.getMonths();
+		if (descending) {
+			Collections.reverse(months);
+		}
+
+		for (YearMonth month : months) {
+			Timestamp monthStart = Timestamp.from(month.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC));
+			Timestamp monthEnd = Timestamp.from(month.plusMonths(1).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC));
+			if ((fromTime != null && !monthEnd.after(fromTime)) || (toTime != null && !monthStart.before(toTime))) {
+				continue;
+			}
+			if (best.size() >= max) {
+				// months are visited in page order, so no later month can contribute
+				Timestamp worst = best.peek().startWaitTime;
+				if (descending ? !monthEnd.after(worst) : monthStart.after(worst)) {
+					break;
+				}
+			}
+
+			archive.readMonth(month, (id, time, json) -> {
+				PageEntry entry = new PageEntry(Timestamp.from(time), id, json);
+				if ((fromTime != null && entry.startWaitTime.before(fromTime))
+						|| (toTime != null && !entry.startWaitTime.before(toTime))
+						|| (after != null && order.compare(entry, after) <= 0) || !ids.add(Long.valueOf(id))) {
+					return;
+				}
+				best.add(entry);
+				if (best.size() > max) {
+					ids.remove(Long.valueOf(best.poll().requestId));
+				}
+			});
+		}
+
+		List<PageEntry> result = new ArrayList<>(best);
+		result.sort(order);
+		return result;
+	}
+
+	private static final class PageEntry {
+
+		private final Timestamp startWaitTime;
+
+		private final long requestId;
+
+		private final JSONObject json;
+
+		private PageEntry(Timestamp startWaitTime, long requestId, JSONObject json) {
+			this.startWaitTime = startWaitTime;
+			this.requestId = requestId;
+			this.json = json;
+		}
+	}
+
+	/**
+	 * Keyset position after the last entry of a page. Encoded as URL-safe Base64, so clients do not depend on its
+	 * structure.
+	 */
+	private static final class Position {
+
+		private final boolean descending;
+
+		private final Timestamp startWaitTime;
+
+		private final long requestId;
+
+		private Position(boolean descending, Timestamp startWaitTime, long requestId) {
+			this.descending = descending;
+			this.startWaitTime = startWaitTime;
+			this.requestId = requestId;
+		}
+
+		private String encode() {
+			String plain = TOKEN_VERSION + "|" + (descending ? "d" : "a") + "|" + startWaitTime.getTime() + "|"
+					+ startWaitTime.getNanos() + "|" + requestId;
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+		}
+
+		private static Position decode(String token) {
+			String plain = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+			String[] parts = plain.split("\\|");
+			if (parts.length != 5 || !TOKEN_VERSION.equals(parts[0])
+					|| !("d".equals(parts[1]) || "a".equals(parts[1]))) {
+				throw new IllegalArgumentException("Invalid continuation token");
+			}
+			try {
+				Timestamp ts = new Timestamp(Long.parseLong(parts[2]));
+				ts.setNanos(Integer.parseInt(parts[3]));
+				return new Position("d".equals(parts[1]), ts, Long.parseLong(parts[4]));
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid continuation token", e);
+			}
+		}
+	}
+
+}
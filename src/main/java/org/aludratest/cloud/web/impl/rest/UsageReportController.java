@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.aludratest.cloud.web.impl.logdb.LogDb;
+import org.aludratest.cloud.web.impl.logdb.LogQueryCursor;
+import org.aludratest.cloud.web.rest.AbstractRestController;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * REST controller for usage and wait time reports. Reports are answered from the hourly rollup table, which is
+ * maintained incrementally by the request logger, instead of aggregating the raw request log.
+ */
+@Controller
+public class UsageReportController extends AbstractRestController {
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	private static final Map<String, String> DIMENSIONS = new LinkedHashMap<String, String>();
+
+	static {
+		DIMENSIONS.put("hour", "hour_utc");
+		DIMENSIONS.put("resourcetype", "resource_type");
+		DIMENSIONS.put("user", "user_name");
+	}
+
+	@Autowired
+	private LogDb logDb;
+
+	/**
+	 * Returns aggregated request counts, wait and work times for the given time range, grouped by the given dimensions.
+	 *
+	 * @param from
+	 *            Optional ISO-8601 instant; only requests which started waiting in or after the hour containing this
+	 *            time are included. Defaults to 24 hours ago.
+	 * @param to
+	 *            Optional ISO-8601 instant; only requests which started waiting before this time (rounded up to full
+	 *            hours) are included. Defaults to now.
+	 * @param resourceType
+	 *            Optional resource type to restrict the report to.
+	 * @param user
+	 *            Optional user name to restrict the report to.
+	 * @param groupBy
+	 *            Comma-separated list of dimensions to group by, out of <code>hour</code>, <code>resourceType</code> and
+	 *            <code>user</code>. Empty to aggregate over the whole time range.
+	 *
+	 * @return A result object containing the aggregated <code>rows</code>.
+	 */
+	@PreAuthorize("hasAuthority('ROLE_ADMIN')")
+	@RequestMapping(value = "/api/logdb/usage", method = RequestMethod.GET, produces = JSON_TYPE)
+	public ResponseEntity<String> getUsageReport(@RequestParam(value = "from", required = false) String from,
+			@RequestParam(value = "to", required = false) String to,
+			@RequestParam(value = "resourceType", required = false) String resourceType,
+			@RequestParam(value = "user", required = false) String user,
+			@RequestParam(value = "groupBy", defaultValue = "hour,resourceType,user") String groupBy) {
+		Instant fromTime;
+		Instant toTime;
+		try {
+			toTime = to == null ? Instant.now() : Instant.parse(to);
+			fromTime = from == null ? toTime.minus(24, ChronoUnit.HOURS) : Instant.parse(from);
+		}
+		catch (DateTimeParseException e) {
+			return createErrorObject("Invalid time range", e);
+		}
+
+		List<String> dimensions = new ArrayList<String>();
+		for (String dim : StringUtils.commaDelimitedListToStringArray(groupBy)) {
+			String column = DIMENSIONS.get(dim.trim().toLowerCase(Locale.US));
+			if (column == null) {
+				return createErrorObject("Invalid groupBy", new IllegalArgumentException("Unknown dimension: " + dim));
+			}
+			if (!dimensions.contains(column)) {
+				dimensions.add(column);
+			}
+		}
+
+		String columns = StringUtils.collectionToDelimitedString(dimensions, ", ");
+		StringBuilder sql = new StringBuilder("SELECT ");
+		if (!dimensions.isEmpty()) {
+			sql.append(columns).append(", ");
+		}
+		sql.append("SUM(request_count), SUM(total_wait_ms), MAX(max_wait_ms), SUM(total_work_ms), MAX(peak_active) ");
+		sql.append("FROM acm_request_hourly WHERE hour_utc >= ? AND hour_utc < ?");
+
+		List<Object> params = new ArrayList<Object>();
+		params.add(Timestamp.from(fromTime.truncatedTo(ChronoUnit.HOURS)));
+		Instant toHour = toTime.truncatedTo(ChronoUnit.HOURS);
+		params.add(Timestamp.from(toHour.equals(toTime) ? toHour : toHour.plus(1, ChronoUnit.HOURS)));
+		if (resourceType != null) {
+			sql.append(" AND resource_type = ?");
+			params.add(resourceType);
+		}
+		if (user != null) {
+			sql.append(" AND user_name = ?");
+			params.add(user);
+		}
+		if (!dimensions.isEmpty()) {
+			sql.append(" GROUP BY ").append(columns).append(" ORDER BY ").append(columns);
+		}
+
+		JSONArray rows = new JSONArray();
+		try (LogQueryCursor cursor = logDb.openQuery(sql.toString(), params.toArray())) {
+			ResultSet rs = cursor.getResultSet();
+			Calendar utc = Calendar.getInstance(UTC);
+			while (rs.next()) {
+				JSONObject row = new JSONObject();
+				int col = 1;
+				for (String column : dimensions) {
+					if ("hour_utc".equals(column)) {
+						row.put("hour", rs.getTimestamp(col++, utc).toInstant().toString());
+					}
+					else {
+						row.put("resource_type".equals(column) ? "resourceType" : "user", rs.getString(col++));
+					}
+				}
+				long count = rs.getLong(col++);
+				long totalWait = rs.getLong(col++);
+				row.put("requestCount", count);
+				row.put("totalWaitMs", totalWait);
+				row.put("avgWaitMs", count == 0 ? 0 : totalWait / count);
+				row.put("maxWaitMs", rs.getLong(col++));
+				row.put("totalWorkMs", rs.getLong(col++));
+				row.put("peakActive", rs.getInt(col++));
+				rows.put(row);
+			}
+		}
+		catch (SQLException e) {
+			return createErrorObject("Error when reading usage rollups", e);
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("rows", rows);
+		return wrapResultObject(result);
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.threads;
+
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.embedded.ConfigurableEmbeddedServletContainer;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+/**
+ * Optionally runs request handling on virtual threads, if enabled via <code>acm.threads.virtual=true</code> and
+ * supported by the Java runtime. Tomcat then processes every request on its own virtual thread instead of a pooled
+ * platform thread, and asynchronous Spring MVC results (e.g. streamed log queries) are written on virtual threads, too.
+ * Requests blocked in long-polls or on the log database then only hold a small amount of heap. <br>
+ * Note that Tomcat's <code>maxThreads</code> no longer limits concurrent requests in this mode; they are limited by
+ * <code>server.tomcat.max-connections</code>, the log database connection pool and admission control instead.
+ */
+@Configuration
+public class VirtualThreadConfiguration extends WebMvcConfigurerAdapter implements EmbeddedServletContainerCustomizer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadConfiguration.class);
+
+	@Value("${acm.threads.virtual:false}")
+	private boolean virtualThreads;
+
+	private ExecutorService requestExecutor;
+
+	private ExecutorService asyncExecutor;
+
+	@PostConstruct
+	private void createExecutors() {
+		if (!virtualThreads) {
+			return;
+		}
+
+		requestExecutor = VirtualThreads.newThreadPerTaskExecutor("acm-http-virtual-");
+		asyncExecutor = VirtualThreads.newThreadPerTaskExecutor("acm-mvc-async-virtual-");
+		if (requestExecutor == null || asyncExecutor == null) {
+			LOG.warn("acm.threads.virtual is set, but this Java runtime does not support virtual threads; "
+					+ "using platform threads");
+			requestExecutor = null;
+			asyncExecutor = null;
+		}
+		else {
+			LOG.info("Using virtual threads for request handling");
+		}
+	}
+
+	@Override
+	public void customize(ConfigurableEmbeddedServletContainer container) {
+		if (requestExecutor == null) {
+			return;
+		}
+		if (!(container instanceof TomcatEmbeddedServletContainerFactory)) {
+			LOG.warn("Virtual threads are only supported for the embedded Tomcat container");
+			return;
+		}
+
+		((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers((connector) -> {
+			ProtocolHandler handler = connector.getProtocolHandler();
+			if (handler instanceof AbstractProtocol) {
+				((AbstractProtocol<?>) handler).setExecutor(requestExecutor);
+			}
+		});
+	}
+
+	@Override
+	public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+		if (asyncExecutor != null) {
+			configurer.setTaskExecutor(new ConcurrentTaskExecutor(asyncExecutor));
+		}
+	}
+
+	/**
+	 * Stops the virtual thread executors. Tomcat does not stop executors it has not created itself.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		if (requestExecutor != null) {
+			requestExecutor.shutdownNow();
+		}
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdownNow();
+		}
+	}
+
+}
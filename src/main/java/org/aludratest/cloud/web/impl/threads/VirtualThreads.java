@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.threads;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads (Java 21 and newer) via reflection, so the application still compiles and runs on older
+ * Java versions, where virtual threads are simply reported as unsupported.
+ */
+public final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Checks if the running Java version supports virtual threads.
+	 *
+	 * @return <code>true</code> if virtual threads are supported, <code>false</code> otherwise.
+	 */
+	public static boolean isSupported() {
+		return newThreadFactory("acm-virtual-") != null;
+	}
+
+	/**
+	 * Creates a factory for virtual threads which are named with the given prefix and a sequence number.
+	 *
+	 * @param namePrefix
+	 *            Prefix of the thread names.
+	 *
+	 * @return The thread factory, or <code>null</code> if virtual threads are not supported.
+	 */
+	public static ThreadFactory newThreadFactory(String namePrefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0l);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		}
+		catch (ReflectiveOperationException e) {
+			// not available, or preview feature not enabled (Java 19 and 20)
+			return null;
+		}
+	}
+
+	/**
+	 * Creates an executor which starts a new virtual thread for each task. Virtual threads are cheap to block, so the
+	 * executor is unbounded.
+	 *
+	 * @param namePrefix
+	 *            Prefix of the thread names.
+	 *
+	 * @return The executor, or <code>null</code> if virtual threads are not supported.
+	 */
+	public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+		ThreadFactory factory = newThreadFactory(namePrefix);
+		if (factory == null) {
+			return null;
+		}
+		try {
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+					.invoke(null, factory);
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+}
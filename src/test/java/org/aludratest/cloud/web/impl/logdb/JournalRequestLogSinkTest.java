@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.aludratest.cloud.user.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JournalRequestLogSinkTest {
+
+	private TestLogDatabase database;
+
+	private File journalFile;
+
+	private Thread loggerThread;
+
+	private Thread replayThread;
+
+	@Before
+	public void setUp() throws Exception {
+		database = new TestLogDatabase();
+		journalFile = File.createTempFile("acm-test", ".journal");
+		journalFile.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		stopThreads();
+		database.close();
+		journalFile.delete();
+	}
+
+	@Test
+	public void testEventsRecoveredAfterCrash() throws Exception {
+		User user = (User) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { User.class },
+				(p, method, args) -> "getName".equals(method.getName()) ? "test"
+						: "getSource".equals(method.getName()) ? "local" : null);
+
+		// the first process journals the events, but terminates before its request logger writes them
+		DatabaseRequestLogger crashedLogger = new DatabaseRequestLogger(database.getDatabase());
+		JournalRequestLogSink crashedSink = new JournalRequestLogSink(crashedLogger, journalFile, 64);
+		long id1 = crashedSink.createRequestLog(user, "job-1");
+		long id2 = crashedSink.createRequestLog(user, "job-2");
+		crashedSink.updateRequestLogWorkStarted(id1, "selenium", "res-1");
+		crashedSink.updateRequestLogWorkDone(id1, "OK", 0);
+		// let the replay thread close the journal; the commands it enqueues are never executed
+		startThreads(null, crashedSink);
+		stopThreads();
+		assertEquals(0, countRows("SELECT COUNT(*) FROM acm_request"));
+
+		// the next process replays the journal
+		startSink();
+		assertEquals(2, countRows("SELECT COUNT(*) FROM acm_request"));
+		try (Connection connection = database.openConnection(); Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery("SELECT request_id, user_name, job_name, resource_type, "
+						+ "received_resource, end_work_status, start_work_time_utc FROM acm_request "
+						+ "ORDER BY request_id")) {
+			assertTrue(rs.next());
+			assertEquals(id1, rs.getLong(1));
+			assertEquals("test", rs.getString(2));
+			assertEquals("job-1", rs.getString(3));
+			assertEquals("selenium", rs.getString(4));
+			assertEquals("res-1", rs.getString(5));
+			assertEquals("OK", rs.getString(6));
+			assertTrue(rs.next());
+			assertEquals(id2, rs.getLong(1));
+			assertEquals("job-2", rs.getString(3));
+			assertNull(rs.getTimestamp(7));
+			assertFalse(rs.next());
+		}
+		stopThreads();
+		long rollupCount = countRows("SELECT COALESCE(SUM(request_count), 0) FROM acm_request_hourly");
+
+		// nothing is replayed after a clean restart
+		JournalRequestLogSink sink = new JournalRequestLogSink(new DatabaseRequestLogger(database.getDatabase()),
+				journalFile, 64);
+		assertEquals(0, sink.getPendingRecords());
+		startThreads(null, sink);
+		stopThreads();
+
+		// records replayed twice, e.g. when the checkpoint could not be written, do not change the log
+		try (Connection connection = database.openConnection(); Statement statement = connection.createStatement()) {
+			statement.executeUpdate("UPDATE " + DatabaseRequestLogger.JOURNAL_CHECKPOINT_TABLE
+					+ " SET journal_sequence = 0");
+		}
+		startSink();
+		assertEquals(2, countRows("SELECT COUNT(*) FROM acm_request"));
+		assertEquals(rollupCount, countRows("SELECT COALESCE(SUM(request_count), 0) FROM acm_request_hourly"));
+	}
+
+	/**
+	 * Starts a request logger and a journal sink on the journal file, and waits until all recovered records have been
+	 * written to the database.
+	 */
+	private void startSink() throws Exception {
+		DatabaseRequestLogger logger = new DatabaseRequestLogger(database.getDatabase());
+		JournalRequestLogSink sink = new JournalRequestLogSink(logger, journalFile, 64);
+		assertTrue(sink.getPendingRecords() > 0);
+		startThreads(logger, sink);
+
+		long deadline = System.currentTimeMillis() + 30000;
+		while (sink.getPendingRecords() > 0) {
+			assertTrue("Journal records not written in time", System.currentTimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+	}
+
+	private void startThreads(DatabaseRequestLogger logger, JournalRequestLogSink sink) {
+		if (logger != null) {
+			loggerThread = new Thread(logger, "test-request-logger");
+			loggerThread.start();
+		}
+		replayThread = new Thread(sink, "test-journal-replay");
+		replayThread.start();
+	}
+
+	private void stopThreads() throws InterruptedException {
+		for (Thread thread : new Thread[] { replayThread, loggerThread }) {
+			if (thread != null) {
+				thread.interrupt();
+				thread.join(10000);
+			}
+		}
+		replayThread = null;
+		loggerThread = null;
+	}
+
+	private long countRows(String sql) throws SQLException {
+		try (Connection connection = database.openConnection(); Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery(sql)) {
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+
+}
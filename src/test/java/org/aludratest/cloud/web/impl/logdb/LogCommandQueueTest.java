@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogCommandQueueTest {
+
+	private File spillDirectory;
+
+	@Before
+	public void createSpillDirectory() throws IOException {
+		spillDirectory = Files.createTempDirectory("acm-test").toFile();
+	}
+
+	@After
+	public void deleteSpillDirectory() throws IOException {
+		FileUtils.deleteDirectory(spillDirectory);
+	}
+
+	private static DatabaseCommand command(long value) {
+		return new DatabaseCommand("UPDATE t SET v = ?", new Object[] { Long.valueOf(value) }, false);
+	}
+
+	private static long valueOf(DatabaseCommand command) {
+		return ((Long) command.parameters[0]).longValue();
+	}
+
+	@Test
+	public void testBlockLosesNothing() throws Exception {
+		final LogCommandQueue queue = new LogCommandQueue(2, LogOverflowPolicy.BLOCK, null);
+		final int producers = 4;
+		final int perProducer = 2500;
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < perProducer; i++) {
+					queue.offer(command(producer * perProducer + i));
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		long[] lastByProducer = new long[producers];
+		for (int p = 0; p < producers; p++) {
+			lastByProducer[p] = -1;
+		}
+		for (int i = 0; i < producers * perProducer; i++) {
+			DatabaseCommand command = queue.poll(10, TimeUnit.SECONDS);
+			assertTrue("Consumer starved after " + i + " commands", command != null);
+			int producer = (int) (valueOf(command) / perProducer);
+			assertTrue(valueOf(command) > lastByProducer[producer]);
+			lastByProducer[producer] = valueOf(command);
+		}
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+
+		assertNull(queue.poll());
+		assertEquals(0, queue.getDroppedCommands());
+		assertTrue(queue.getHighWaterMark() <= queue.getCapacity());
+	}
+
+	@Test
+	public void testDropOldest() {
+		LogCommandQueue queue = new LogCommandQueue(4, LogOverflowPolicy.DROP_OLDEST, null);
+		for (int i = 0; i < 10; i++) {
+			queue.offer(command(i));
+		}
+
+		assertEquals(6, queue.getDroppedCommands());
+		for (int i = 6; i < 10; i++) {
+			assertEquals(i, valueOf(queue.poll()));
+		}
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testSpillPreservesOrder() {
+		LogCommandQueue queue = new LogCommandQueue(2, LogOverflowPolicy.SPILL, spillDirectory);
+		for (int i = 0; i < 6; i++) {
+			queue.offer(command(i));
+		}
+		assertEquals(4, queue.getSpilledCommands());
+
+		assertEquals(0, valueOf(queue.poll()));
+		assertEquals(1, valueOf(queue.poll()));
+		// takes over the spill file, so new commands go to the buffer again, but are returned after the spilled ones
+		assertEquals(2, valueOf(queue.poll()));
+		queue.offer(command(6));
+		for (int i = 3; i <= 6; i++) {
+			assertEquals(i, valueOf(queue.poll()));
+		}
+		assertNull(queue.poll());
+		assertEquals(0, queue.getPendingSpilledCommands());
+		queue.close();
+	}
+
+	@Test
+	public void testSpillFileRecovered() {
+		LogCommandQueue queue = new LogCommandQueue(2, LogOverflowPolicy.SPILL, spillDirectory);
+		for (int i = 0; i < 10; i++) {
+			queue.offer(command(i));
+		}
+		// commands in the buffer are lost with the process, spilled ones are kept
+		queue.close();
+
+		LogCommandQueue recovered = new LogCommandQueue(2, LogOverflowPolicy.SPILL, spillDirectory);
+		for (int i = 2; i < 10; i++) {
+			assertEquals(i, valueOf(recovered.poll()));
+		}
+		assertNull(recovered.poll());
+		recovered.close();
+	}
+
+	@Test
+	public void testTakeWakesUpOnOffer() throws Exception {
+		final LogCommandQueue queue = new LogCommandQueue(4, LogOverflowPolicy.BLOCK, null);
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			queue.offer(command(42));
+		});
+		producer.start();
+
+		assertEquals(42, valueOf(queue.take()));
+		producer.join();
+	}
+
+}
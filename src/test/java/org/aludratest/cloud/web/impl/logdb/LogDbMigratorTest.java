@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogDbMigratorTest {
+
+	private TestLogDatabase database;
+
+	@Before
+	public void setUp() throws Exception {
+		// migrated from the initial schema through all migrations
+		database = new TestLogDatabase();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		database.close();
+	}
+
+	@Test
+	public void testFullChain() throws SQLException {
+		assertEquals(DatabaseRequestLogger.DB_SCHEMA_VERSION[0], queryLong("SELECT major FROM acm_version"));
+		assertEquals(DatabaseRequestLogger.DB_SCHEMA_VERSION[1], queryLong("SELECT minor FROM acm_version"));
+		assertEquals(1, queryLong("SELECT COUNT(*) FROM acm_version"));
+
+		assertTrue(exists("SELECT 1 FROM SYS.SYSCONSTRAINTS WHERE CONSTRAINTNAME = 'PK_ACM_REQUEST'"));
+		assertTrue(indexExists("IDX_START_WAIT_ID"));
+		assertTrue(indexExists("IDX_START_WAIT_ID_DESC"));
+		assertFalse(indexExists("IDX_START_WAIT_TIME"));
+		assertFalse(indexExists("IDX_USER_NAME"));
+		assertEquals(0, queryLong("SELECT journal_sequence FROM " + DatabaseRequestLogger.JOURNAL_CHECKPOINT_TABLE));
+		assertEquals(1, queryLong("SELECT COUNT(*) FROM " + RollupBackfill.STATE_TABLE));
+
+		// running again is a no-op
+		new LogDbMigrator(database.getDatabase()).migrate(DatabaseRequestLogger.DB_SCHEMA_VERSION[0],
+				DatabaseRequestLogger.DB_SCHEMA_VERSION[1]);
+	}
+
+	@Test
+	public void testFailedMigrationRolledBack() throws SQLException {
+		int major = DatabaseRequestLogger.DB_SCHEMA_VERSION[0];
+		int minor = DatabaseRequestLogger.DB_SCHEMA_VERSION[1];
+		LogDbMigration current = new LogDbMigration(major, minor, "current version", db -> {
+		});
+		LogDbMigration failing = new LogDbMigration(major, minor + 1, "failing migration", db -> {
+			db.executeStatement("CREATE TABLE acm_migration_test (id INTEGER)");
+			db.executeStatement("INSERT INTO acm_no_such_table VALUES (1)");
+		});
+
+		try {
+			new LogDbMigrator(database.getDatabase(), Arrays.asList(current, failing)).migrate(major, minor + 1);
+			fail("Expected SQLException");
+		}
+		catch (SQLException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("remains at version " + major + "." + minor));
+		}
+
+		assertEquals(minor, queryLong("SELECT minor FROM acm_version"));
+		assertFalse(exists("SELECT 1 FROM SYS.SYSTABLES WHERE TABLENAME = 'ACM_MIGRATION_TEST'"));
+	}
+
+	@Test
+	public void testUnknownVersionRejected() throws SQLException {
+		try (Connection connection = database.openConnection(); Statement statement = connection.createStatement()) {
+			statement.executeUpdate("UPDATE acm_version SET minor = 99");
+		}
+		try {
+			new LogDbMigrator(database.getDatabase()).migrate(DatabaseRequestLogger.DB_SCHEMA_VERSION[0],
+					DatabaseRequestLogger.DB_SCHEMA_VERSION[1]);
+			fail("Expected SQLException");
+		}
+		catch (SQLException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Unsupported version"));
+		}
+	}
+
+	@Test
+	public void testDuplicateRequestsMerged() throws SQLException {
+		// reconstruct schema version 1.4, which allowed duplicate request IDs
+		try (Connection connection = database.openConnection(); Statement statement = connection.createStatement()) {
+			statement.executeUpdate("ALTER TABLE acm_request DROP CONSTRAINT pk_acm_request");
+			statement.executeUpdate("DROP INDEX idx_start_wait_id");
+			statement.executeUpdate("DROP INDEX idx_start_wait_id_desc");
+			statement.executeUpdate("CREATE INDEX idx_start_wait_time ON acm_request (start_wait_time_utc)");
+			statement.executeUpdate("ALTER TABLE " + RollupBackfill.STATE_TABLE + " DROP COLUMN next_start_utc");
+			statement.executeUpdate("UPDATE acm_version SET minor = 4");
+		}
+
+		Timestamp t1 = Timestamp.valueOf("2019-06-01 10:00:00");
+		Timestamp t2 = Timestamp.valueOf("2019-06-01 10:05:00");
+		Timestamp t3 = Timestamp.valueOf("2019-06-01 11:00:00");
+		try (Connection connection = database.openConnection();
+				PreparedStatement statement = connection.prepareStatement("INSERT INTO acm_request (request_id, "
+						+ "start_wait_time_utc, start_work_time_utc, end_work_time_utc, user_name, job_name, "
+						+ "end_work_status) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+			// request 1 logged twice by a journal replay: creation only, and the complete life cycle
+			insert(statement, 1, t1, null, null, "test", "job-1", null);
+			insert(statement, 1, t1, t2, t3, "test", "job-1", "OK");
+			insert(statement, 2, t2, null, null, "test", "job-2", null);
+		}
+
+		new LogDbMigrator(database.getDatabase()).migrate(DatabaseRequestLogger.DB_SCHEMA_VERSION[0],
+				DatabaseRequestLogger.DB_SCHEMA_VERSION[1]);
+
+		assertEquals(2, queryLong("SELECT COUNT(*) FROM acm_request"));
+		assertEquals(1, queryLong("SELECT COUNT(*) FROM acm_request WHERE request_id = 1 "
+				+ "AND start_work_time_utc IS NOT NULL AND end_work_status = 'OK'"));
+		assertEquals(1, queryLong("SELECT COUNT(*) FROM acm_request WHERE request_id = 2"));
+		assertFalse(exists("SELECT 1 FROM SYS.SYSTABLES WHERE TABLENAME = 'ACM_REQUEST_DEDUP'"));
+		assertTrue(exists("SELECT 1 FROM SYS.SYSCONSTRAINTS WHERE CONSTRAINTNAME = 'PK_ACM_REQUEST'"));
+		assertTrue(indexExists("IDX_START_WAIT_ID"));
+	}
+
+	private static void insert(PreparedStatement statement, long id, Timestamp startWait, Timestamp startWork,
+			Timestamp endWork, String userName, String jobName, String status) throws SQLException {
+		statement.setLong(1, id);
+		statement.setTimestamp(2, startWait);
+		statement.setTimestamp(3, startWork);
+		statement.setTimestamp(4, endWork);
+		statement.setString(5, userName);
+		statement.setString(6, jobName);
+		statement.setString(7, status);
+		statement.executeUpdate();
+	}
+
+	private boolean indexExists(String name) throws SQLException {
+		return exists("SELECT 1 FROM SYS.SYSCONGLOMERATES WHERE ISINDEX AND CONGLOMERATENAME = '" + name + "'");
+	}
+
+	private boolean exists(String sql) throws SQLException {
+		try (Connection connection = database.openConnection(); Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery(sql)) {
+			return rs.next();
+		}
+	}
+
+	private long queryLong(String sql) throws SQLException {
+		try (Connection connection = database.openConnection(); Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery(sql)) {
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class LogQueryCacheTest {
+
+	private static final long HORIZON = Instant.parse("2020-01-01T00:00:00Z").toEpochMilli();
+
+	private static boolean isStable(String query) {
+		return LogQueryCache.isStable(LogQueryCache.normalize(query), HORIZON);
+	}
+
+	@Test
+	public void testNormalize() {
+		assertEquals("select * from acm_request where user_name = 'John Doe'",
+				LogQueryCache.normalize("  SELECT *\n\tFROM acm_request WHERE user_name = 'John Doe';"));
+	}
+
+	@Test
+	public void testStableQueries() {
+		assertTrue(isStable("SELECT * FROM acm_request WHERE start_wait_time_utc < '2019-06-01'"));
+		assertTrue(isStable("SELECT COUNT(*) FROM acm_request WHERE user_name = 'x' "
+				+ "AND start_wait_time_utc >= '2019-05-01 00:00:00' AND start_wait_time_utc <= '2019-06-01 00:00:00'"));
+		assertTrue(isStable("SELECT * FROM acm_request r "
+				+ "WHERE r.end_work_time_utc BETWEEN '2019-05-01' AND '2019-06-01' AND r.end_work_status IS NOT NULL "
+				+ "ORDER BY r.end_work_time_utc"));
+		assertTrue(isStable("SELECT resource_type, SUM(request_count) FROM acm_request_hourly "
+				+ "WHERE hour_utc < TIMESTAMP('2019-06-01 00:00:00') GROUP BY resource_type"));
+	}
+
+	@Test
+	public void testUnstableQueries() {
+		// no upper bound
+		assertFalse(isStable("SELECT * FROM acm_request WHERE start_wait_time_utc >= '2019-06-01'"));
+		assertFalse(isStable("SELECT COUNT(*) FROM acm_request"));
+		// literal after the horizon
+		assertFalse(isStable("SELECT * FROM acm_request WHERE start_wait_time_utc < '2020-06-01'"));
+		// upper bound only within a branch or negated
+		assertFalse(isStable("SELECT * FROM acm_request WHERE start_wait_time_utc < '2019-06-01' OR user_name = 'x'"));
+		assertFalse(isStable("SELECT * FROM acm_request WHERE NOT (start_wait_time_utc <= '2019-06-01')"));
+		assertFalse(isStable("SELECT * FROM acm_request WHERE (start_wait_time_utc < '2019-06-01' OR 1 = 1)"));
+		// literal not bounding the selected rows
+		assertFalse(isStable("SELECT CASE WHEN start_wait_time_utc < '2019-06-01' THEN 1 ELSE 0 END "
+				+ "FROM acm_request WHERE job_name = 'x'"));
+		assertFalse(isStable("SELECT COUNT(*) FROM acm_request WHERE user_name < '2019-06-01'"));
+		assertFalse(isStable("SELECT COUNT(*), (SELECT MAX(start_wait_time_utc) FROM acm_request) FROM acm_request "
+				+ "WHERE start_wait_time_utc < '2019-06-01'"));
+		assertFalse(isStable("SELECT * FROM acm_request a, acm_request_hourly h "
+				+ "WHERE a.start_wait_time_utc < '2019-06-01'"));
+		assertFalse(isStable("SELECT * FROM acm_request WHERE start_wait_time_utc < '2019-06-01' "
+				+ "AND end_work_time_utc > CURRENT_TIMESTAMP"));
+		// bound hidden in a literal
+		assertFalse(isStable("SELECT * FROM acm_request WHERE job_name = ' AND start_wait_time_utc < ''2019-06-01'''"));
+	}
+
+	@Test
+	public void testInvalidatedByWrite() {
+		AtomicLong epoch = new AtomicLong();
+		LogQueryCache cache = new LogQueryCache(1 << 20, 0, 60000, epoch::get);
+		String key = LogQueryCache.normalize("SELECT * FROM acm_request");
+		cache.put(key, cache.getCurrentEpoch(), "result");
+		assertEquals("result", cache.get(key));
+
+		epoch.incrementAndGet();
+		assertNull(cache.get(key));
+
+		// result of a query started before the write is not cached
+		cache.put(key, epoch.get() - 1, "result");
+		assertNull(cache.get(key));
+	}
+
+	@Test
+	public void testStableEntryInvalidatedByMaintenance() {
+		AtomicLong epoch = new AtomicLong();
+		LogQueryCache cache = new LogQueryCache(1 << 20, 0, 60000, epoch::get);
+		String key = LogQueryCache.normalize("SELECT * FROM acm_request WHERE start_wait_time_utc < '2019-06-01'");
+		long started = cache.getCurrentEpoch();
+		cache.put(key, started, "result");
+
+		// writes of the request logger do not affect old log entries
+		epoch.incrementAndGet();
+		assertEquals("result", cache.get(key));
+
+		epoch.incrementAndGet();
+		cache.invalidateAll();
+		assertNull(cache.get(key));
+		// query started before maintenance
+		cache.put(key, started, "result");
+		assertNull(cache.get(key));
+	}
+
+	@Test
+	public void testStableEntryExpires() throws InterruptedException {
+		LogQueryCache cache = new LogQueryCache(1 << 20, 0, 1, () -> 0);
+		String key = LogQueryCache.normalize("SELECT * FROM acm_request WHERE start_wait_time_utc < '2019-06-01'");
+		cache.put(key, 0, "result");
+		Thread.sleep(5);
+		assertNull(cache.get(key));
+	}
+
+}
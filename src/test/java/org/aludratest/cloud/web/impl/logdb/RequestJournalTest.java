@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestJournalTest {
+
+	private File directory;
+
+	private File journalFile;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("acm-test").toFile();
+		journalFile = new File(directory, "request.journal");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private static void appendRecords(RequestJournal journal, int count) {
+		for (int i = 0; i < count; i++) {
+			long sequence = journal.getNextSequence();
+			journal.append(RequestJournal.TYPE_REQUEST_CREATED, 100 + sequence, 1000 * sequence, (int) sequence,
+					"user" + sequence, 50, "source", 100, null, 400);
+		}
+	}
+
+	@Test
+	public void testRecoverAfterCheckpoint() throws IOException {
+		try (RequestJournal journal = new RequestJournal(journalFile, 16, 0)) {
+			assertTrue(journal.recover().isEmpty());
+			appendRecords(journal, 5);
+		}
+
+		try (RequestJournal journal = new RequestJournal(journalFile, 16, 2)) {
+			List<RequestJournal.Record> records = journal.recover();
+			assertEquals(3, records.size());
+			for (int i = 0; i < 3; i++) {
+				RequestJournal.Record record = records.get(i);
+				long sequence = 3 + i;
+				assertEquals(sequence, record.sequence);
+				assertEquals(RequestJournal.TYPE_REQUEST_CREATED, record.type);
+				assertEquals(100 + sequence, record.id);
+				assertEquals(1000 * sequence, record.timeMillis);
+				assertEquals(sequence, record.value);
+				assertEquals("user" + sequence, record.s1);
+				assertEquals("source", record.s2);
+				assertNull(record.s3);
+			}
+			assertEquals(6, journal.getNextSequence());
+		}
+	}
+
+	@Test
+	public void testRecoveryStopsAtCorruptRecord() throws IOException {
+		try (RequestJournal journal = new RequestJournal(journalFile, 16, 0)) {
+			appendRecords(journal, 5);
+		}
+		// flip a byte within the payload of record 4
+		try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+			long offset = 4L * RequestJournal.RECORD_SIZE + 20;
+			file.seek(offset);
+			int b = file.read();
+			file.seek(offset);
+			file.write(b ^ 0xFF);
+		}
+
+		try (RequestJournal journal = new RequestJournal(journalFile, 16, 0)) {
+			List<RequestJournal.Record> records = journal.recover();
+			assertEquals(3, records.size());
+			assertEquals(3, records.get(2).sequence);
+			// new records overwrite the corrupt one
+			assertEquals(4, journal.getNextSequence());
+		}
+	}
+
+	@Test
+	public void testRecoveryAfterWrapAround() throws IOException {
+		try (RequestJournal journal = new RequestJournal(journalFile, 4, 0)) {
+			appendRecords(journal, 6);
+		}
+
+		// records 1 and 2 have been overwritten by 5 and 6, slot of record 7 still holds record 3
+		try (RequestJournal journal = new RequestJournal(journalFile, 4, 3)) {
+			List<RequestJournal.Record> records = journal.recover();
+			assertEquals(3, records.size());
+			assertEquals(4, records.get(0).sequence);
+			assertEquals(6, records.get(2).sequence);
+			assertEquals("user6", records.get(2).s1);
+		}
+	}
+
+	@Test
+	public void testStringsTruncated() throws IOException {
+		StringBuilder longName = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			longName.append('x');
+		}
+		try (RequestJournal journal = new RequestJournal(journalFile, 4, 0)) {
+			long sequence = journal.append(RequestJournal.TYPE_WORK_DONE, 1, 0, 0, longName.toString(), 20, null, 0,
+					null, 0);
+			assertEquals(20, journal.read(sequence).s1.length());
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+	@Test
+	public void testCapacityRoundedUp() {
+		assertEquals(2, new RingBuffer<Object>(1).capacity());
+		assertEquals(8, new RingBuffer<Object>(8).capacity());
+		assertEquals(16, new RingBuffer<Object>(9).capacity());
+	}
+
+	@Test
+	public void testFifoUntilFull() {
+		RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+		assertTrue(buffer.isEmpty());
+		for (int i = 0; i < 4; i++) {
+			assertTrue(buffer.offer(Integer.valueOf(i)));
+		}
+		assertFalse(buffer.offer(Integer.valueOf(4)));
+		assertEquals(4, buffer.size());
+
+		for (int i = 0; i < 4; i++) {
+			assertEquals(Integer.valueOf(i), buffer.poll());
+		}
+		assertNull(buffer.poll());
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void testWrapAround() {
+		RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(buffer.offer(Integer.valueOf(i)));
+			assertTrue(buffer.offer(Integer.valueOf(-i)));
+			assertEquals(Integer.valueOf(i), buffer.poll());
+			assertEquals(Integer.valueOf(-i), buffer.poll());
+		}
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void testConcurrentProducersAndConsumers() throws Exception {
+		final int producers = 4;
+		final int consumers = 2;
+		final int perProducer = 100000;
+		final RingBuffer<long[]> buffer = new RingBuffer<long[]>(64);
+		final AtomicInteger received = new AtomicInteger();
+		// per consumer and producer, the last sequence number seen, to verify the order of each producer
+		final long[][] lastSeen = new long[consumers][producers];
+		final boolean[] seen = new boolean[producers * perProducer];
+		final List<Throwable> errors = new ArrayList<Throwable>();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < perProducer; i++) {
+					long[] element = new long[] { producer, i };
+					while (!buffer.offer(element)) {
+						Thread.yield();
+					}
+				}
+			}));
+		}
+		for (int c = 0; c < consumers; c++) {
+			final long[] last = lastSeen[c];
+			Arrays.fill(last, -1);
+			threads.add(new Thread(() -> {
+				try {
+					while (received.get() < producers * perProducer) {
+						long[] element = buffer.poll();
+						if (element == null) {
+							Thread.yield();
+							continue;
+						}
+						int producer = (int) element[0];
+						assertTrue(element[1] > last[producer]);
+						last[producer] = element[1];
+						synchronized (seen) {
+							int index = producer * perProducer + (int) element[1];
+							assertFalse(seen[index]);
+							seen[index] = true;
+						}
+						received.incrementAndGet();
+					}
+				}
+				catch (Throwable t) {
+					synchronized (errors) {
+						errors.add(t);
+					}
+					received.set(Integer.MAX_VALUE);
+				}
+			}));
+		}
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join(60000);
+		}
+
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(producers * perProducer, received.get());
+		for (boolean b : seen) {
+			assertTrue(b);
+		}
+		assertTrue(buffer.isEmpty());
+	}
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.logdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A log database with the current schema in a temporary directory, for tests. The directory is deleted on
+ * {@link #close()}.
+ */
+public final class TestLogDatabase implements AutoCloseable {
+
+	private final File directory;
+
+	private final LogDbAccess database;
+
+	/**
+	 * Creates the database and brings it to the current schema version.
+	 *
+	 * @throws Exception
+	 *             If the database could not be created.
+	 */
+	public TestLogDatabase() throws Exception {
+		directory = Files.createTempDirectory("acm-test").toFile();
+		database = new LogDbAccess(directory, null);
+		new DatabaseRequestLogger(database);
+	}
+
+	public LogDbAccess getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Opens a new, unpooled connection with auto commit enabled, which must be closed by the caller.
+	 *
+	 * @return A new connection to the database.
+	 *
+	 * @throws SQLException
+	 *             If the connection could not be opened.
+	 */
+	public Connection openConnection() throws SQLException {
+		Connection connection = database.openAdHocConnection();
+		connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+		connection.setAutoCommit(true);
+		return connection;
+	}
+
+	/**
+	 * Shuts the database down and deletes its directory.
+	 *
+	 * @throws IOException
+	 *             If the directory could not be deleted.
+	 */
+	@Override
+	public void close() throws IOException {
+		database.shutdown();
+		FileUtils.deleteDirectory(directory);
+	}
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.aludratest.cloud.impl.request.ClientRequestImpl;
+import org.aludratest.cloud.manager.ManagedResourceRequest;
+import org.aludratest.cloud.manager.ResourceManager;
+import org.aludratest.cloud.module.ResourceModule;
+import org.aludratest.cloud.module.ResourceModuleRegistry;
+import org.aludratest.cloud.resource.Resource;
+import org.aludratest.cloud.resource.ResourceType;
+import org.aludratest.cloud.user.User;
+import org.aludratest.cloud.web.impl.admission.AdmissionControl;
+import org.aludratest.cloud.web.impl.metrics.MetricsRegistry;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+@SuppressWarnings("deprecation")
+public class ClientRequestHandlerImplTest {
+
+	private ClientRequestHandlerImpl handler;
+
+	private User user;
+
+	/** Requests created by the stubbed resource manager, in submission order. */
+	private List<ManagedResourceRequest> managedRequests = new ArrayList<ManagedResourceRequest>();
+
+	@Before
+	public void setUp() throws Exception {
+		handler = new ClientRequestHandlerImpl();
+		ResourceType resourceType = stub(ResourceType.class, "getName", "selenium");
+		ResourceModule module = stub(ResourceModule.class, "getResourceType", resourceType);
+		setField(handler, "resourceModuleRegistry", stub(ResourceModuleRegistry.class, "getResourceModule", module));
+		// admission limits are disabled without Spring, as all rates are 0
+		setField(handler, "admissionControl", new AdmissionControl());
+		setField(handler, "metricsRegistry", new MetricsRegistry());
+		setField(handler, "manager", Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ResourceManager.class }, (p, method, args) -> {
+					switch (method.getName()) {
+						case "handleResourceRequest":
+							ManagedResourceRequest request = stub(ManagedResourceRequest.class, "getRequest", args[0],
+									"getResourceFuture", new CompletableFuture<Resource>(), "getState",
+									ManagedResourceRequest.State.WAITING);
+							managedRequests.add(request);
+							return request;
+						case "getManagedRequests":
+							throw new AssertionError("Lookups must not scan the managed requests");
+						default:
+							return stubDefault(p, method, args);
+					}
+				}));
+		Method registerMetrics = ClientRequestHandlerImpl.class.getDeclaredMethod("registerMetrics");
+		registerMetrics.setAccessible(true);
+		registerMetrics.invoke(handler);
+
+		user = stub(User.class, "getName", "test", "getSource", "local");
+	}
+
+	@After
+	public void tearDown() {
+		handler.shutdown();
+	}
+
+	@Test
+	public void testIndexFilledAndPruned() throws Exception {
+		submit(3);
+		for (ManagedResourceRequest request : managedRequests) {
+			assertSame(request, handler.getRequest(getRequestId(request)).get());
+		}
+
+		ManagedResourceRequest finished = managedRequests.get(1);
+		handler.unregisterRequest(finished);
+		assertFalse(handler.getRequest(getRequestId(finished)).isPresent());
+		assertFalse(handler.handleReleaseRequest(getRequestId(finished)));
+		assertTrue(handler.getRequest(getRequestId(managedRequests.get(0))).isPresent());
+		assertTrue(handler.getRequest(getRequestId(managedRequests.get(2))).isPresent());
+	}
+
+	@Test
+	public void testLookupAt10kInFlightDoesNotScan() throws Exception {
+		submit(10000);
+		assertEquals(10000, managedRequests.size());
+
+		// the stubbed manager fails any lookup which scans its managed requests
+		for (ManagedResourceRequest request : managedRequests) {
+			assertSame(request, handler.getRequest(getRequestId(request)).get());
+		}
+		assertFalse(handler.getRequest("unknown").isPresent());
+	}
+
+	@Test
+	public void testThrottledResponseIs429WithRetryAfter() throws Exception {
+		JSONObject result = new JSONObject();
+		result.put("errorMessage", "Too many requests, please retry later");
+		result.put("retryAfterMs", 1001);
+
+		ResponseEntity<String> response = ClientRequestHandlerImpl.toResponseEntity(result);
+		assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+		assertEquals("2", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+		assertEquals(1001, new JSONObject(response.getBody()).getLong("retryAfterMs"));
+	}
+
+	@Test
+	public void testOtherResponsesAre200() throws Exception {
+		JSONObject result = new JSONObject();
+		result.put("requestId", "abc123");
+		result.put("waiting", true);
+
+		ResponseEntity<String> response = ClientRequestHandlerImpl.toResponseEntity(result);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertNull(response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+		assertEquals("abc123", new JSONObject(response.getBody()).getString("requestId"));
+	}
+
+	private void submit(int count) throws Exception {
+		JSONObject object = new JSONObject();
+		object.put("resourceType", "selenium");
+		for (int i = 0; i < count; i++) {
+			handler.submitRequest(user, object);
+		}
+	}
+
+	private static String getRequestId(ManagedResourceRequest request) {
+		return ((ClientRequestImpl) request.getRequest()).getRequestId();
+	}
+
+	/**
+	 * Creates a proxy of the given interface returning the given values per method name, and <code>null</code> or the
+	 * default value of a primitive return type for all other methods.
+	 */
+	private static <T> T stub(Class<T> type, Object... methodResults) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (p, method, args) -> {
+			for (int i = 0; i < methodResults.length; i += 2) {
+				if (methodResults[i].equals(method.getName())) {
+					return methodResults[i + 1];
+				}
+			}
+			return stubDefault(p, method, args);
+		}));
+	}
+
+	private static Object stubDefault(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+			case "hashCode":
+				return Integer.valueOf(System.identityHashCode(proxy));
+			case "equals":
+				return Boolean.valueOf(proxy == args[0]);
+			case "toString":
+				return method.getDeclaringClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+			default:
+				Class<?> returnType = method.getReturnType();
+				if (!returnType.isPrimitive() || returnType == void.class) {
+					return null;
+				}
+				return Array.get(Array.newInstance(returnType, 1), 0);
+		}
+	}
+
+	private static void setField(Object target, String fieldName, Object value) throws ReflectiveOperationException {
+		Field field = target.getClass().getDeclaredField(fieldName);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2010-2015 AludraTest.org and the contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.aludratest.cloud.web.impl.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.aludratest.cloud.web.impl.logdb.TestLogDatabase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestLogControllerTest {
+
+	private static final int ROWS = 5000;
+
+	private static final long BASE_TIME = 1500000000000l;
+
+	private TestLogDatabase db;
+
+	private Connection connection;
+
+	@Before
+	public void setUp() throws Exception {
+		db = new TestLogDatabase();
+		connection = db.openConnection();
+		connection.setAutoCommit(false);
+		String sql = "INSERT INTO acm_request (request_id, start_wait_time_utc, user_name) VALUES (?, ?, ?)";
+		try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+			for (int i = 1; i <= ROWS; i++) {
+				stmt.setLong(1, i);
+				// several requests share the same start time, so pages also split such groups
+				stmt.setTimestamp(2, new Timestamp(BASE_TIME + (i / 3) * 1000l));
+				stmt.setString(3, "user" + (i % 7));
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+		connection.commit();
+		connection.setAutoCommit(true);
+		try (Statement stmt = connection.createStatement()) {
+			stmt.execute("CALL SYSCS_UTIL.SYSCS_UPDATE_STATISTICS('APP', 'ACM_REQUEST', NULL)");
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		connection.close();
+		db.close();
+	}
+
+	@Test
+	public void testPagesDescending() throws SQLException {
+		assertEquals(queryIds("SELECT request_id FROM acm_request "
+				+ "ORDER BY start_wait_time_utc DESC, request_id DESC", new ArrayList<>()), pageThrough(true, 97));
+	}
+
+	@Test
+	public void testPagesAscending() throws SQLException {
+		assertEquals(queryIds("SELECT request_id FROM acm_request ORDER BY start_wait_time_utc, request_id",
+				new ArrayList<>()), pageThrough(false, 100));
+	}
+
+	@Test
+	public void testPagesWithinTimeRange() throws SQLException {
+		Timestamp from = new Timestamp(BASE_TIME + 100000);
+		Timestamp to = new Timestamp(BASE_TIME + 200000);
+		List<Object> params = new ArrayList<>();
+		String sql = RequestLogController.createPageQuery(from, to, null, 0, true, 1000, params);
+		List<Long> ids = queryIds(sql, params);
+		// start times 100..199 s, three requests per second
+		assertEquals(300, ids.size());
+		assertEquals(Long.valueOf(599), ids.get(0));
+		assertEquals(Long.valueOf(300), ids.get(ids.size() - 1));
+	}
+
+	@Test
+	public void testDeepPageUsesIndexWithoutSort() throws SQLException {
+		for (boolean descending : new boolean[] { true, false }) {
+			List<Object> params = new ArrayList<>();
+			String sql = RequestLogController.createPageQuery(null, null, new Timestamp(BASE_TIME + 800000), 2400,
+					descending, 101, params);
+
+			try (Statement stmt = connection.createStatement()) {
+				stmt.execute("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(1)");
+			}
+			assertEquals(101, queryIds(sql, params).size());
+			String plan;
+			try (Statement stmt = connection.createStatement();
+					ResultSet rs = stmt.executeQuery("VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()")) {
+				rs.next();
+				plan = rs.getString(1);
+			}
+			try (Statement stmt = connection.createStatement()) {
+				stmt.execute("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(0)");
+			}
+
+			String index = descending ? "IDX_START_WAIT_ID_DESC" : "IDX_START_WAIT_ID";
+			assertTrue(plan, plan.contains("using index " + index + " "));
+			assertFalse(plan, plan.contains("Sort ResultSet"));
+		}
+	}
+
+	private List<Long> pageThrough(boolean descending, int pageSize) throws SQLException {
+		List<Long> result = new ArrayList<>();
+		Timestamp afterTime = null;
+		long afterId = 0;
+		while (true) {
+			List<Object> params = new ArrayList<>();
+			String sql = RequestLogController.createPageQuery(null, null, afterTime, afterId, descending,
+					pageSize + 1, params);
+			List<Long> page = new ArrayList<>();
+			Timestamp lastTime = null;
+			try (PreparedStatement stmt = prepare(sql, params); ResultSet rs = stmt.executeQuery()) {
+				while (rs.next() && page.size() < pageSize) {
+					page.add(Long.valueOf(rs.getLong("request_id")));
+					lastTime = rs.getTimestamp("start_wait_time_utc");
+				}
+			}
+			result.addAll(page);
+			if (page.size() < pageSize) {
+				return result;
+			}
+			afterTime = lastTime;
+			afterId = page.get(page.size() - 1).longValue();
+		}
+	}
+
+	private List<Long> queryIds(String sql, List<Object> params) throws SQLException {
+		List<Long> result = new ArrayList<>();
+		try (PreparedStatement stmt = prepare(sql, params); ResultSet rs = stmt.executeQuery()) {
+			while (rs.next()) {
+				result.add(Long.valueOf(rs.getLong("request_id")));
+			}
+		}
+		return result;
+	}
+
+	private PreparedStatement prepare(String sql, List<Object> params) throws SQLException {
+		PreparedStatement stmt = connection.prepareStatement(sql);
+		for (int i = 0; i < params.size(); i++) {
+			stmt.setObject(i + 1, params.get(i));
+		}
+		return stmt;
+	}
+
+}
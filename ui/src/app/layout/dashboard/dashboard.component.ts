@@ -2,8 +2,12 @@ import { Component, OnInit, OnDestroy } from '@angular/core';
 import { routerTransition } from '../../router.animations';
 import { MonitoringService, ManagedRequest } from '../../shared/services/monitoring.service';
 import { ResourceGroupService, ResourceGroup } from '../../shared/services/resourcegroup.service';
+import { Subscription } from 'rxjs/Subscription';
+import 'rxjs/add/operator/auditTime';
 
-const REFRESH_INTERVAL = 5000;
+// minimum time between two reloads triggered by monitoring events; as every reload fetches the full state,
+// this must not be shorter than the former polling interval
+const REFRESH_THROTTLE = 5000;
 
 @Component({
     selector: 'app-dashboard',
@@ -25,7 +29,7 @@ export class DashboardComponent implements OnInit, OnDestroy {
 
     private resourceGroups: Array<ResourceGroup> = [];
 
-    private intervalHandle: number;
+    private eventsSubscription: Subscription;
 
     constructor(private monitoringService: MonitoringService, private resourceGroupService: ResourceGroupService) {
     }
@@ -72,12 +76,12 @@ export class DashboardComponent implements OnInit, OnDestroy {
 
     ngOnInit() {
        this.pullStats();
-       this.intervalHandle = window.setInterval(() => { this.pullStats(); }, REFRESH_INTERVAL);
+       this.eventsSubscription = this.monitoringService.events().auditTime(REFRESH_THROTTLE).subscribe(() => this.pullStats());
     }
 
     ngOnDestroy() {
-        if (this.intervalHandle) {
-            window.clearInterval(this.intervalHandle);
+        if (this.eventsSubscription) {
+            this.eventsSubscription.unsubscribe();
         }
     }
 
@@ -2,8 +2,13 @@ import { Component, OnInit, OnDestroy } from '@angular/core';
 import { ResourceGroup, ResourceGroupService, Resource } from '../../shared/services/resourcegroup.service';
 import { ActivatedRoute } from '@angular/router';
 import { NgbModal } from '@ng-bootstrap/ng-bootstrap';
+import { MonitoringService } from '../../shared/services/monitoring.service';
+import { Subscription } from 'rxjs/Subscription';
+import 'rxjs/add/operator/auditTime';
 
-const REFRESH_INTERVAL = 5000;
+// minimum time between two reloads triggered by monitoring events; as every reload fetches the full state,
+// this must not be shorter than the former polling interval
+const REFRESH_THROTTLE = 5000;
 
 @Component({
     selector: 'app-group-page',
@@ -20,11 +25,12 @@ export class GroupPageComponent implements OnInit, OnDestroy {
 
     public currentScreenshotSrc: string;
 
-    private intervalHandle: number;
+    private eventsSubscription: Subscription;
 
     private groupId: number;
 
-    constructor(public groupService: ResourceGroupService, private route: ActivatedRoute, private modalService: NgbModal) {
+    constructor(public groupService: ResourceGroupService, private route: ActivatedRoute, private modalService: NgbModal,
+        private monitoringService: MonitoringService) {
     }
 
     ngOnInit() {
@@ -38,12 +44,17 @@ export class GroupPageComponent implements OnInit, OnDestroy {
             }
         });
 
-        this.intervalHandle = window.setInterval(() => { this.updateStatus(); }, REFRESH_INTERVAL);
+        // resource states change with the requests using them
+        this.eventsSubscription = this.monitoringService.events().auditTime(REFRESH_THROTTLE).subscribe(() => {
+            if (this.groupId != null) {
+                this.updateStatus();
+            }
+        });
     }
 
     ngOnDestroy() {
-        if (this.intervalHandle) {
-            window.clearInterval(this.intervalHandle);
+        if (this.eventsSubscription) {
+            this.eventsSubscription.unsubscribe();
         }
     }
 
@@ -1,8 +1,13 @@
 import { Component, OnInit, OnDestroy } from '@angular/core';
 import { MonitoringService, ManagedRequest } from '../../shared/services/monitoring.service';
 import { ActivatedRoute } from '@angular/router';
+import { Subscription } from 'rxjs/Subscription';
+import 'rxjs/add/operator/auditTime';
+import 'rxjs/add/operator/filter';
 
-const REFRESH_INTERVAL = 5000;
+// minimum time between two reloads triggered by monitoring events; as every reload fetches the full state,
+// this must not be shorter than the former polling interval
+const REFRESH_THROTTLE = 5000;
 
 @Component({
     selector: 'app-requests',
@@ -13,7 +18,7 @@ export class RequestsComponent implements OnInit, OnDestroy {
 
     requests: Array<ManagedRequest>;
 
-    private intervalHandle: number;
+    private eventsSubscription: Subscription;
 
     constructor(private requestsService: MonitoringService) {
     }
@@ -36,12 +41,14 @@ export class RequestsComponent implements OnInit, OnDestroy {
     ngOnInit() {
         this.updateData();
 
-        this.intervalHandle = window.setInterval(() => { this.updateData(); }, REFRESH_INTERVAL);
+        // working count deltas do not affect the request list
+        this.eventsSubscription = this.requestsService.events().filter(e => e.type !== 'stats')
+            .auditTime(REFRESH_THROTTLE).subscribe(() => this.updateData());
     }
 
     ngOnDestroy() {
-        if (this.intervalHandle) {
-            window.clearInterval(this.intervalHandle);
+        if (this.eventsSubscription) {
+            this.eventsSubscription.unsubscribe();
         }
     }
 }
@@ -1,8 +1,15 @@
 import { HttpClient, HttpHeaders } from '@angular/common/http';
 import { Injectable } from '@angular/core';
 import { Observable } from 'rxjs/Observable';
+import { Observer } from 'rxjs/Observer';
+import 'rxjs/add/operator/share';
 import { UserService } from './user.service';
 
+const EVENTS_RECONNECT_DELAY = 3000;
+
+// the response text of the event stream grows with every event; reconnect once this many characters were consumed
+const EVENTS_MAX_BUFFER = 1024 * 1024;
+
 export interface ManagedRequest {
 
     creationTimestamp: string;
@@ -29,9 +36,23 @@ export interface ResourceRequest {
 
 }
 
+/**
+ * Event received from the monitoring event stream. Type <code>resync</code> is emitted when the stream has been
+ * (re-)connected, so updates may have been missed, and consumers should reload their data.
+ */
+export interface MonitoringEvent {
+
+    type: string;
+
+    data?: any;
+
+}
+
 @Injectable()
 export class MonitoringService {
 
+    private events$: Observable<MonitoringEvent>;
+
     constructor(private http: HttpClient, private userService: UserService) {
     }
 
@@ -43,4 +64,84 @@ export class MonitoringService {
         return this.http.get('/api/monitoring/stats', { headers: this.userService.createJwtHeader() }).map((d: any) => d.result);
     }
 
+    /**
+     * Returns the stream of monitoring events pushed by the server. All subscribers share one connection, which is
+     * opened on first subscription and closed when the last subscriber unsubscribes.
+     */
+    events(): Observable<MonitoringEvent> {
+        if (!this.events$) {
+            this.events$ = Observable.create((observer: Observer<MonitoringEvent>) => this.connectEvents(observer)).share();
+        }
+        return this.events$;
+    }
+
+    /**
+     * Reads the Server-Sent Events stream via XMLHttpRequest, as EventSource cannot send the JWT header.
+     * Reconnects after a delay when the stream ends, and immediately once the consumed part of the response exceeds
+     * EVENTS_MAX_BUFFER, so the response text does not grow for the whole lifetime of the stream.
+     */
+    private connectEvents(observer: Observer<MonitoringEvent>): () => void {
+        let xhr: XMLHttpRequest;
+        let reconnectHandle: number;
+        let closed = false;
+
+        const connect = () => {
+            let offset = 0;
+            xhr = new XMLHttpRequest();
+            xhr.open('GET', '/api/monitoring/events');
+            const headers = this.userService.createJwtHeader();
+            headers.keys().forEach(key => xhr.setRequestHeader(key, headers.get(key)));
+            xhr.setRequestHeader('Accept', 'text/event-stream');
+
+            xhr.onprogress = () => {
+                let end: number;
+                while ((end = xhr.responseText.indexOf('\n\n', offset)) >= 0) {
+                    const event = this.parseEvent(xhr.responseText.substring(offset, end));
+                    offset = end + 2;
+                    if (event) {
+                        observer.next(event);
+                    }
+                }
+                if (offset > EVENTS_MAX_BUFFER && !closed) {
+                    xhr.onprogress = null;
+                    xhr.onloadend = null;
+                    xhr.abort();
+                    connect();
+                }
+            };
+            xhr.onloadend = () => {
+                if (!closed) {
+                    reconnectHandle = window.setTimeout(connect, EVENTS_RECONNECT_DELAY);
+                }
+            };
+            xhr.send();
+            observer.next({ type: 'resync' });
+        };
+
+        connect();
+
+        return () => {
+            closed = true;
+            window.clearTimeout(reconnectHandle);
+            xhr.abort();
+        };
+    }
+
+    private parseEvent(block: string): MonitoringEvent {
+        let type = 'message';
+        const data: Array<string> = [];
+        block.split('\n').forEach(line => {
+            if (line.startsWith('event:')) {
+                type = line.substring(6).trim();
+            } else if (line.startsWith('data:')) {
+                data.push(line.substring(5).trim());
+            }
+        });
+        if (!data.length) {
+            // comment only, e.g. keepalive
+            return null;
+        }
+        return { type: type, data: JSON.parse(data.join('\n')) };
+    }
+
 }